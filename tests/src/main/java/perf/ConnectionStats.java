@@ -0,0 +1,114 @@
+package perf;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accepted connections of the echo upstream, with their requests and lifetimes, since the last reset.
+ * Connections carrying {@code /admin/} requests are the harness asking, they are left out.
+ */
+final class ConnectionStats {
+	// connections tracked per reset, later ones are only counted
+	private static final int MAX = 1_000_000;
+
+	static final class Connection {
+		final long acceptedNanos = System.nanoTime();
+		volatile long closedNanos;
+		volatile int requests;
+		// requests before the last reset
+		volatile int carriedRequests;
+		volatile boolean tls;
+		volatile boolean admin;
+		// accepted before the last reset
+		volatile boolean carried;
+
+		// written by the connection's own thread only
+		void request() {
+			requests++;
+		}
+
+		void closed() {
+			closedNanos = System.nanoTime();
+		}
+	}
+
+	// what is counted between two resets, replaced as a whole
+	private static final class Epoch {
+		final ConcurrentLinkedQueue<Connection> connections = new ConcurrentLinkedQueue<>();
+		final AtomicInteger tracked = new AtomicInteger();
+		final AtomicInteger untracked = new AtomicInteger();
+	}
+
+	private volatile Epoch epoch = new Epoch();
+
+	// once per accepted connection, the lock only keeps a connection from landing in a replaced epoch
+	synchronized Connection accepted() {
+		Connection connection = new Connection();
+		if (epoch.tracked.incrementAndGet() <= MAX) {
+			epoch.connections.add(connection);
+		} else {
+			epoch.untracked.incrementAndGet();
+		}
+		return connection;
+	}
+
+	/**
+	 * Forgets closed connections, open ones are carried into a new epoch with their request count restarted. Connection
+	 * threads keep counting, what they counted before the reset is subtracted.
+	 */
+	synchronized void reset() {
+		Epoch next = new Epoch();
+		for (Connection connection : epoch.connections) {
+			if (connection.closedNanos == 0) {
+				connection.carried = true;
+				connection.carriedRequests = connection.requests;
+				next.connections.add(connection);
+			}
+		}
+		next.tracked.set(next.connections.size());
+		epoch = next;
+	}
+
+	/**
+	 * {@code connections} accepted since the reset, {@code tls} of them sent a TLS ClientHello and were closed unanswered,
+	 * {@code lifetimes} lists {@code [requests, lifetime in microseconds, 1 if still open]} per connection,
+	 * including those carried over from before the reset.
+	 */
+	synchronized String json() {
+		long now = System.nanoTime();
+		Epoch epoch = this.epoch;
+		int accepted = epoch.untracked.get();
+		int tls = 0;
+		int open = 0;
+		long requests = 0;
+		StringBuilder lifetimes = new StringBuilder(1024);
+		for (Connection connection : epoch.connections) {
+			if (connection.admin) {
+				continue;
+			}
+			if (!connection.carried) {
+				accepted++;
+			}
+			if (connection.tls) {
+				tls++;
+			}
+			long closed = connection.closedNanos;
+			if (closed == 0) {
+				open++;
+			}
+			int served = connection.requests - connection.carriedRequests;
+			requests += served;
+			if (!lifetimes.isEmpty()) {
+				lifetimes.append(',');
+			}
+			lifetimes.append('[').append(served)
+					.append(',').append(((closed == 0 ? now : closed) - connection.acceptedNanos) / 1_000)
+					.append(',').append(closed == 0 ? 1 : 0).append(']');
+		}
+		return "{\"connections\":" + accepted
+				+ ",\"tls\":" + tls
+				+ ",\"open\":" + open
+				+ ",\"requests\":" + requests
+				+ ",\"lifetimes\":[" + lifetimes + "]}";
+	}
+}
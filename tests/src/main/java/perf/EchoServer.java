@@ -0,0 +1,377 @@
+package perf;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.zip.CRC32C;
+
+/**
+ * Echo upstream for proxy benchmarks: one virtual thread per connection over blocking NIO channels.
+ * <ul>
+ *     <li>{@code /rest/echo} without a body responds {@code ID: <instance uuid>} followed by the received headers,
+ *     one {@code name: value} line each, names in lower case;</li>
+ *     <li>{@code /rest/echo} with a body streams the body back as it arrives, nothing is held; a chunked body is echoed
+ *     chunked, ending with its CRC32C as received in an {@code X-Upstream-CRC32C} trailer, a body of known length is
+ *     answered before it is read, so only {@code /rest/upload} can report that CRC in the head;</li>
+ *     <li>{@code /ws/echo} echoes WebSocket frames;</li>
+ *     <li>{@code /rest/files/<size>} serves {@link StaticFiles};</li>
+ *     <li>{@code /rest/upload} reads the body as it arrives without keeping it and responds the byte count, with the
+ *     {@code X-Upstream-First-Byte} and {@code X-Upstream-Last-Byte} times and the {@code X-Upstream-CRC32C} computed on the fly;</li>
+ *     <li>{@code /admin/faults} reads ({@code GET}), replaces ({@code PUT}) or clears ({@code DELETE}) the {@link Faults} script
+ *     applied to {@code /rest/echo}, an {@code X-Fault} request header overrides the script for that request;</li>
+ *     <li>{@code /rest/work} is cancellable {@link Work}, {@code /admin/work} reports ({@code GET}) or resets ({@code DELETE}) its log;</li>
+ *     <li>{@code /admin/stats} reports ({@code GET}) or resets ({@code DELETE}) the {@link ConnectionStats}.</li>
+ * </ul>
+ * Responses are delayed by {@code DELAY} seconds, like the {@code codelev/echo-spring} image. Requests that cannot be parsed are answered with a
+ * {@code 400} as long as no response was started; a peer closing within a request just ends the connection.
+ * <p>
+ * Every response carries {@code X-Upstream-Received} and {@code X-Upstream-Sent}, the {@link System#nanoTime()} when the request
+ * head was parsed and when the response head was written, and the {@code X-Request-Id} of the request, if any.
+ * On Linux {@code nanoTime} is {@code CLOCK_MONOTONIC}, shared by all containers and the harness on the same host.
+ */
+final class EchoServer implements AutoCloseable {
+	static final String ECHO = "/rest/echo";
+	static final String WEBSOCKET = "/ws/echo";
+	static final String UPLOAD = "/rest/upload";
+	static final String ADMIN = "/admin/";
+	static final String FAULTS = "/admin/faults";
+	static final String STATS = "/admin/stats";
+	static final String WORK = "/admin/work";
+	static final String FAULT_HEADER = "X-Fault";
+	static final String REQUEST_ID = "X-Request-Id";
+	static final String RECEIVED = "X-Upstream-Received";
+	static final String SENT = "X-Upstream-Sent";
+	static final String FIRST_BYTE = "X-Upstream-First-Byte";
+	static final String LAST_BYTE = "X-Upstream-Last-Byte";
+	static final String CRC = "X-Upstream-CRC32C";
+	private static final int BUFFER = 16 * 1024;
+	private static final int MAX_SCRIPT = 64 * 1024;
+	private static final int TLS_HANDSHAKE = 0x16;
+	private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	private final ServerSocketChannel server;
+	private final String id = UUID.randomUUID().toString();
+	private final long delayNanos;
+	private final Faults faults;
+	private final ConnectionStats stats = new ConnectionStats();
+	private final Work work = new Work();
+
+	EchoServer(int port, Duration delay, String faults) throws IOException {
+		this.faults = new Faults(faults);
+		this.server = ServerSocketChannel.open();
+		this.server.bind(new InetSocketAddress(port), 1024);
+		this.delayNanos = delay.toNanos();
+	}
+
+	int port() {
+		return ((InetSocketAddress) server.socket().getLocalSocketAddress()).getPort();
+	}
+
+	String id() {
+		return id;
+	}
+
+	// blocks until closed
+	void serve() throws IOException {
+		try {
+			while (true) {
+				SocketChannel channel = server.accept();
+				Thread.ofVirtual().start(() -> connection(channel));
+			}
+		} catch (ClosedChannelException e) {
+			// closed
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		server.close();
+	}
+
+	private void connection(SocketChannel channel) {
+		ConnectionStats.Connection connection = stats.accepted();
+		try (channel) {
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			// socket streams, unlike Channels streams, allow reading and writing from different threads
+			InputStream in = new BufferedInputStream(channel.socket().getInputStream(), BUFFER);
+			Http.CountingOutputStream out = new Http.CountingOutputStream(new BufferedOutputStream(channel.socket().getOutputStream(), BUFFER));
+			in.mark(1);
+			if (in.read() == TLS_HANDSHAKE) {
+				// counted and closed, this upstream does not terminate TLS
+				connection.tls = true;
+				return;
+			}
+			in.reset();
+			byte[] scratch = new byte[BUFFER];
+			// bytes written before the response to the current request
+			long answered = 0;
+			try {
+				Http.Request request;
+				while ((request = Http.read(in, scratch)) != null) {
+					if (request.path.startsWith(ADMIN)) {
+						connection.admin = true;
+					} else {
+						connection.request();
+					}
+					if ("100-continue".equalsIgnoreCase(request.header("Expect"))) {
+						out.write(CONTINUE);
+						out.flush();
+					}
+					answered = out.count();
+					if (!handle(request, channel, in, out)) {
+						return;
+					}
+					// unread body must not be parsed as the next request
+					request.body.transferTo(OutputStream.nullOutputStream());
+					out.flush();
+					if (!request.keepAlive()) {
+						return;
+					}
+					answered = out.count();
+				}
+			} catch (Http.BadRequestException e) {
+				if (out.count() == answered) {
+					byte[] body = (e.getMessage() + "\n").getBytes(StandardCharsets.ISO_8859_1);
+					Http.writeHead(out, 400, "Bad Request",
+							"Content-Type", "text/plain",
+							"Content-Length", Integer.toString(body.length),
+							"Connection", "close");
+					out.write(body);
+					out.flush();
+				}
+			}
+		} catch (IOException e) {
+			// connection reset or closed within a request, nothing to answer
+		} finally {
+			connection.closed();
+		}
+	}
+
+	// returns false when the connection cannot carry another request
+	private boolean handle(Http.Request request, SocketChannel channel, InputStream in, OutputStream out) throws IOException {
+		if (request.path.equals(WEBSOCKET) && WebSocket.isUpgrade(request)) {
+			WebSocket.echo(request, in, out);
+			return false;
+		}
+		if (request.path.equals(FAULTS)) {
+			return admin(request, out);
+		}
+		if (request.path.equals(STATS)) {
+			if (request.method.equals("DELETE")) {
+				stats.reset();
+			}
+			respond(request, out, 200, "OK", "application/json", stats.json().getBytes(StandardCharsets.ISO_8859_1));
+			return true;
+		}
+		if (request.path.startsWith(StaticFiles.PREFIX)) {
+			StaticFiles.serve(request, channel, out);
+			return true;
+		}
+		if (request.path.equals(WORK)) {
+			if (request.method.equals("DELETE")) {
+				work.reset();
+			}
+			respond(request, out, 200, "OK", "application/json", work.json().getBytes(StandardCharsets.UTF_8));
+			return true;
+		}
+		if (request.path.equals(Work.PATH)) {
+			return work.serve(request, channel.socket(), in, out);
+		}
+		if (request.path.equals(UPLOAD)) {
+			upload(request, out);
+			return true;
+		}
+		if (!request.path.startsWith(ECHO)) {
+			respond(request, out, 404, "Not Found", "text/plain", "Not Found".getBytes(StandardCharsets.ISO_8859_1));
+			return true;
+		}
+		Faults.Decision fault;
+		try {
+			fault = faults.decide(request.header(FAULT_HEADER));
+		} catch (IllegalArgumentException e) {
+			respond(request, out, 400, "Bad Request", "text/plain", e.getMessage().getBytes(StandardCharsets.UTF_8));
+			return true;
+		}
+		if (fault.action() == Faults.Action.HANG) {
+			// holds the connection until the client gives up
+			in.transferTo(OutputStream.nullOutputStream());
+			return false;
+		}
+		sleep(delayNanos + fault.delayNanos());
+		String type = "text/plain";
+		InputStream body;
+		// -1 for a chunked request body, echoed chunked
+		long length;
+		if (request.hasBody()) {
+			String contentType = request.header("Content-Type");
+			type = contentType == null ? "application/octet-stream" : contentType;
+			body = request.body;
+			length = request.chunked() ? -1 : request.contentLength();
+		} else {
+			byte[] headers = headers(request);
+			body = new ByteArrayInputStream(headers);
+			length = headers.length;
+		}
+		switch (fault.action()) {
+			case ERROR -> respond(request, out, fault.status(), "Injected Fault", "text/plain",
+					("Injected fault " + fault.status() + "\n").getBytes(StandardCharsets.ISO_8859_1));
+			case RESET -> {
+				head(request, out, 200, "OK", type, length, null);
+				OutputStream echo = length < 0 ? new Http.ChunkedOutputStream(out) : out;
+				echo.write(body.readNBytes((int) (length < 0 ? BUFFER : length / 2)));
+				out.flush();
+				// a zero linger turns close into RST
+				channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+				channel.close();
+				return false;
+			}
+			case DRIP -> drip(request, out, type, body, length, fault.bytesPerSecond());
+			default -> echo(request, out, type, body, length);
+		}
+		return true;
+	}
+
+	private void upload(Http.Request request, OutputStream out) throws IOException {
+		byte[] buffer = new byte[BUFFER];
+		long bytes = 0;
+		long first = 0;
+		long last = 0;
+		CRC32C checksum = new CRC32C();
+		int read;
+		while ((read = request.body.read(buffer)) >= 0) {
+			if (read > 0) {
+				checksum.update(buffer, 0, read);
+				last = System.nanoTime();
+				if (bytes == 0) {
+					first = last;
+				}
+				bytes += read;
+			}
+		}
+		byte[] body = (bytes + "\n").getBytes(StandardCharsets.ISO_8859_1);
+		String id = request.header(REQUEST_ID);
+		Http.writeHead(out, 200, "OK",
+				"Content-Type", "text/plain",
+				"Content-Length", Integer.toString(body.length),
+				"Connection", request.keepAlive() ? "keep-alive" : "close",
+				RECEIVED, Long.toString(request.receivedNanos),
+				FIRST_BYTE, bytes == 0 ? null : Long.toString(first),
+				LAST_BYTE, bytes == 0 ? null : Long.toString(last),
+				SENT, Long.toString(System.nanoTime()),
+				REQUEST_ID, id,
+				CRC, Long.toString(checksum.getValue()));
+		out.write(body);
+	}
+
+	private boolean admin(Http.Request request, OutputStream out) throws IOException {
+		switch (request.method) {
+			case "GET" -> {
+			}
+			case "PUT", "POST" -> {
+				String script = new String(request.body.readNBytes(MAX_SCRIPT), StandardCharsets.UTF_8);
+				try {
+					faults.set(script);
+				} catch (IllegalArgumentException e) {
+					respond(request, out, 400, "Bad Request", "text/plain", e.getMessage().getBytes(StandardCharsets.UTF_8));
+					return true;
+				}
+			}
+			case "DELETE" -> faults.set("");
+			default -> {
+				respond(request, out, 405, "Method Not Allowed", "text/plain", new byte[0]);
+				return true;
+			}
+		}
+		respond(request, out, 200, "OK", "text/plain", (faults.script() + "\n").getBytes(StandardCharsets.UTF_8));
+		return true;
+	}
+
+	private byte[] headers(Http.Request request) {
+		StringBuilder body = new StringBuilder(256);
+		body.append("ID: ").append(id).append('\n');
+		for (int i = 0; i < request.names.size(); i++) {
+			body.append(request.names.get(i).toLowerCase(Locale.ROOT)).append(": ").append(request.values.get(i)).append('\n');
+		}
+		return body.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private void respond(Http.Request request, OutputStream out, int status, String reason, String type, byte[] body) throws IOException {
+		head(request, out, status, reason, type, body.length, null);
+		out.write(body);
+	}
+
+	// a length of -1 is a chunked response, trailer names the trailer it ends with, if any
+	private void head(Http.Request request, OutputStream out, int status, String reason, String type, long length, String trailer) throws IOException {
+		String id = request.header(REQUEST_ID);
+		Http.writeHead(out, status, reason,
+				"Content-Type", type,
+				"Content-Length", length < 0 ? null : Long.toString(length),
+				"Transfer-Encoding", length < 0 ? "chunked" : null,
+				"Trailer", trailer,
+				"Connection", request.keepAlive() ? "keep-alive" : "close",
+				RECEIVED, Long.toString(request.receivedNanos),
+				SENT, Long.toString(System.nanoTime()),
+				REQUEST_ID, id);
+	}
+
+	// copies the body through as it arrives; a chunked echo ends with the CRC32C of what was received as a trailer
+	private void echo(Http.Request request, OutputStream out, String type, InputStream body, long length) throws IOException {
+		head(request, out, 200, "OK", type, length, length < 0 ? CRC : null);
+		if (length >= 0) {
+			body.transferTo(out);
+			return;
+		}
+		Http.ChunkedOutputStream chunked = new Http.ChunkedOutputStream(out);
+		CRC32C checksum = new CRC32C();
+		byte[] buffer = new byte[BUFFER];
+		int read;
+		while ((read = body.read(buffer)) >= 0) {
+			checksum.update(buffer, 0, read);
+			chunked.write(buffer, 0, read);
+		}
+		chunked.close(CRC, Long.toString(checksum.getValue()));
+	}
+
+	// sends the body in tenths of a second worth of bytes, on a fixed schedule so that write time does not add up
+	private void drip(Http.Request request, OutputStream out, String type, InputStream body, long length, int bytesPerSecond) throws IOException {
+		head(request, out, 200, "OK", type, length, null);
+		out.flush();
+		OutputStream echo = length < 0 ? new Http.ChunkedOutputStream(out) : out;
+		int slice = Math.max(1, bytesPerSecond / 10);
+		long sliceNanos = 1_000_000_000L * slice / bytesPerSecond;
+		byte[] buffer = new byte[slice];
+		long next = System.nanoTime();
+		int read;
+		while ((read = body.readNBytes(buffer, 0, slice)) > 0) {
+			echo.write(buffer, 0, read);
+			out.flush();
+			next += sliceNanos;
+			sleep(next - System.nanoTime());
+		}
+		if (length < 0) {
+			echo.close();
+		}
+	}
+
+	private static void sleep(long nanos) {
+		if (nanos > 0) {
+			try {
+				Thread.sleep(Duration.ofNanos(nanos));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
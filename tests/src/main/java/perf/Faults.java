@@ -0,0 +1,189 @@
+package perf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Scriptable misbehaviour of the echo upstream. A profile is a {@code ;}-separated list of settings:
+ * <ul>
+ *     <li>{@code latency=fixed:<ms>}, {@code latency=lognormal:<median ms>,<sigma>} or
+ *     {@code latency=bimodal:<fast ms>,<slow ms>,<slow fraction>};</li>
+ *     <li>{@code error=<rate>[,<status>]} responds an error status, 503 by default;</li>
+ *     <li>{@code reset=<rate>} sends the head and half of the body, then resets the connection;</li>
+ *     <li>{@code drip=<rate>,<bytes per second>} sends the body at the given pace;</li>
+ *     <li>{@code hang=<rate>} never responds, the connection is held until the client gives up;</li>
+ *     <li>{@code for=<seconds>} limits the profile to a phase.</li>
+ * </ul>
+ * Phases are separated by {@code |} and run in order from the moment the script is set, the last one stays.
+ * For example {@code for=30;latency=fixed:2 | for=10;error=0.5 | latency=fixed:2} injects 50% errors for 10 seconds after 30.
+ */
+final class Faults {
+	enum Action {RESPOND, ERROR, RESET, DRIP, HANG}
+
+	record Decision(long delayNanos, Action action, int status, int bytesPerSecond) {
+		static final Decision NONE = new Decision(0, Action.RESPOND, 200, 0);
+	}
+
+	record Latency(String kind, double a, double b, double c) {
+		static final Latency NONE = new Latency("fixed", 0, 0, 0);
+
+		long sampleNanos(ThreadLocalRandom random) {
+			double millis = switch (kind) {
+				case "fixed" -> a;
+				case "lognormal" -> a * Math.exp(b * random.nextGaussian());
+				case "bimodal" -> random.nextDouble() < c ? b : a;
+				default -> throw new IllegalStateException(kind);
+			};
+			return (long) (millis * 1_000_000);
+		}
+	}
+
+	record Profile(long forNanos, Latency latency, double error, int status, double reset, double drip, int bytesPerSecond,
+				   double hang) {
+		static final Profile NONE = new Profile(0, Latency.NONE, 0, 503, 0, 0, 0, 0);
+
+		Decision decide() {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			double draw = random.nextDouble();
+			if (draw < hang) {
+				return new Decision(0, Action.HANG, 0, 0);
+			}
+			long delay = latency.sampleNanos(random);
+			if ((draw -= hang) < reset) {
+				return new Decision(delay, Action.RESET, 200, 0);
+			}
+			if ((draw -= reset) < error) {
+				return new Decision(delay, Action.ERROR, status, 0);
+			}
+			if ((draw -= error) < drip) {
+				return new Decision(delay, Action.DRIP, 200, bytesPerSecond);
+			}
+			return new Decision(delay, Action.RESPOND, 200, 0);
+		}
+	}
+
+	private volatile String script = "";
+	private volatile List<Profile> phases = List.of(Profile.NONE);
+	private volatile long startedNanos = System.nanoTime();
+
+	Faults(String script) {
+		set(script);
+	}
+
+	String script() {
+		return script;
+	}
+
+	/**
+	 * Replaces the script and restarts its phases. Throws {@link IllegalArgumentException} on a malformed script.
+	 */
+	synchronized void set(String script) {
+		List<Profile> parsed = parse(script);
+		this.phases = parsed;
+		this.script = script == null ? "" : script.trim();
+		this.startedNanos = System.nanoTime();
+	}
+
+	/**
+	 * Decides the fate of one request, a non-null override (the {@code X-Fault} request header) replaces the script.
+	 */
+	Decision decide(String override) {
+		if (override != null) {
+			return parse(override).getFirst().decide();
+		}
+		List<Profile> current = phases;
+		if (current.size() == 1 && current.getFirst() == Profile.NONE) {
+			return Decision.NONE;
+		}
+		long elapsed = System.nanoTime() - startedNanos;
+		for (int i = 0; i < current.size() - 1; i++) {
+			Profile phase = current.get(i);
+			if (elapsed < phase.forNanos) {
+				return phase.decide();
+			}
+			elapsed -= phase.forNanos;
+		}
+		return current.getLast().decide();
+	}
+
+	static List<Profile> parse(String script) {
+		if (script == null || script.isBlank()) {
+			return List.of(Profile.NONE);
+		}
+		List<Profile> phases = new ArrayList<>();
+		for (String phase : script.split("\\|")) {
+			phases.add(profile(phase));
+		}
+		return List.copyOf(phases);
+	}
+
+	private static Profile profile(String spec) {
+		long forNanos = 0;
+		Latency latency = Latency.NONE;
+		double error = 0, reset = 0, drip = 0, hang = 0;
+		int status = 503, bytesPerSecond = 0;
+		for (String setting : spec.split(";")) {
+			if (setting.isBlank()) {
+				continue;
+			}
+			int equals = setting.indexOf('=');
+			if (equals < 0) {
+				throw new IllegalArgumentException("Expected key=value: " + setting.trim());
+			}
+			String key = setting.substring(0, equals).trim().toLowerCase(Locale.ROOT);
+			String value = setting.substring(equals + 1).trim();
+			try {
+				switch (key) {
+					case "for" -> forNanos = (long) (Double.parseDouble(value) * 1_000_000_000L);
+					case "latency" -> latency = latency(value);
+					case "error" -> {
+						String[] parts = value.split(",");
+						error = rate(parts[0]);
+						if (parts.length > 1) {
+							status = Integer.parseInt(parts[1].trim());
+						}
+					}
+					case "reset" -> reset = rate(value);
+					case "drip" -> {
+						String[] parts = value.split(",");
+						drip = rate(parts[0]);
+						bytesPerSecond = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1024;
+						if (bytesPerSecond <= 0) {
+							throw new IllegalArgumentException("Drip pace must be positive: " + value);
+						}
+					}
+					case "hang" -> hang = rate(value);
+					default -> throw new IllegalArgumentException("Unknown fault: " + key);
+				}
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				throw new IllegalArgumentException("Malformed " + key + ": " + value, e);
+			}
+		}
+		if (hang + reset + error + drip > 1) {
+			throw new IllegalArgumentException("Fault rates add up to more than 1: " + spec.trim());
+		}
+		return new Profile(forNanos, latency, error, status, reset, drip, bytesPerSecond, hang);
+	}
+
+	private static Latency latency(String value) {
+		int colon = value.indexOf(':');
+		String kind = (colon < 0 ? value : value.substring(0, colon)).trim().toLowerCase(Locale.ROOT);
+		String[] parts = colon < 0 ? new String[0] : value.substring(colon + 1).split(",");
+		return switch (kind) {
+			case "fixed" -> new Latency(kind, Double.parseDouble(parts[0]), 0, 0);
+			case "lognormal" -> new Latency(kind, Double.parseDouble(parts[0]), Double.parseDouble(parts[1]), 0);
+			case "bimodal" -> new Latency(kind, Double.parseDouble(parts[0]), Double.parseDouble(parts[1]), rate(parts[2]));
+			default -> throw new IllegalArgumentException("Unknown latency distribution: " + kind);
+		};
+	}
+
+	private static double rate(String value) {
+		double rate = Double.parseDouble(value.trim());
+		if (rate < 0 || rate > 1) {
+			throw new IllegalArgumentException("Rate out of [0, 1]: " + value.trim());
+		}
+		return rate;
+	}
+}
@@ -0,0 +1,333 @@
+package perf;
+
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal HTTP/1.1 message parsing and framing for the echo upstream, without per-request reflection or regular expressions.
+ */
+final class Http {
+	static final byte[] CRLF = {'\r', '\n'};
+	private static final int MAX_LINE = 16 * 1024;
+
+	private Http() {
+	}
+
+	/**
+	 * A request that cannot be parsed. Unlike a connection that ends early, it can still be answered with a 400 as long as
+	 * nothing of a response was written.
+	 */
+	static final class BadRequestException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		BadRequestException(String message) {
+			super(message);
+		}
+	}
+
+	static final class Request {
+		String method;
+		String target;
+		String path;
+		String version;
+		// System.nanoTime() when the head was parsed
+		long receivedNanos;
+		// Content-Length, 0 when absent
+		long length;
+		// header names as received, values in the same order
+		final List<String> names = new ArrayList<>(16);
+		final List<String> values = new ArrayList<>(16);
+		InputStream body;
+
+		String header(String name) {
+			for (int i = 0; i < names.size(); i++) {
+				if (names.get(i).equalsIgnoreCase(name)) {
+					return values.get(i);
+				}
+			}
+			return null;
+		}
+
+		boolean keepAlive() {
+			String connection = header("Connection");
+			if (version.equals("HTTP/1.0")) {
+				return connection != null && connection.equalsIgnoreCase("keep-alive");
+			}
+			return connection == null || !connection.equalsIgnoreCase("close");
+		}
+
+		boolean chunked() {
+			String encoding = header("Transfer-Encoding");
+			return encoding != null && encoding.toLowerCase().contains("chunked");
+		}
+
+		long contentLength() {
+			return length;
+		}
+
+		boolean hasBody() {
+			return chunked() || contentLength() > 0;
+		}
+	}
+
+	/**
+	 * Reads the request head and prepares a body stream. Returns null when the peer closed the connection between requests.
+	 */
+	static Request read(InputStream in, byte[] scratch) throws IOException {
+		String line = readLine(in, scratch);
+		while (line != null && line.isEmpty()) {
+			line = readLine(in, scratch);
+		}
+		if (line == null) {
+			return null;
+		}
+		Request request = new Request();
+		int first = line.indexOf(' ');
+		int second = line.indexOf(' ', first + 1);
+		if (first < 0 || second < 0) {
+			throw new BadRequestException("Malformed request line: " + line);
+		}
+		request.method = line.substring(0, first);
+		request.target = line.substring(first + 1, second);
+		request.version = line.substring(second + 1);
+		int query = request.target.indexOf('?');
+		request.path = query < 0 ? request.target : request.target.substring(0, query);
+
+		while (!(line = headLine(in, scratch)).isEmpty()) {
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				request.names.add(line.substring(0, colon));
+				request.values.add(line.substring(colon + 1).trim());
+			}
+		}
+		String length = request.header("Content-Length");
+		if (length != null) {
+			request.length = number(length, 10, "Content-Length");
+		}
+		if (request.chunked()) {
+			request.body = new ChunkedInputStream(in, scratch);
+		} else {
+			request.body = new FixedLengthInputStream(in, request.contentLength());
+		}
+		request.receivedNanos = System.nanoTime();
+		return request;
+	}
+
+	// a header line, the peer closing the connection within the head is an error
+	private static String headLine(InputStream in, byte[] scratch) throws IOException {
+		String line = readLine(in, scratch);
+		if (line == null) {
+			throw new EOFException("Request head truncated");
+		}
+		return line;
+	}
+
+	// a Content-Length or chunk size
+	private static long number(String value, int radix, String what) throws BadRequestException {
+		try {
+			long number = Long.parseLong(value.trim(), radix);
+			if (number >= 0) {
+				return number;
+			}
+		} catch (NumberFormatException e) {
+			// answered below
+		}
+		throw new BadRequestException("Malformed " + what + ": " + value);
+	}
+
+	// returns null on EOF before any byte, throws on EOF within a line
+	static String readLine(InputStream in, byte[] scratch) throws IOException {
+		int length = 0;
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				if (length == 0) {
+					return null;
+				}
+				throw new EOFException("Unexpected end of stream");
+			}
+			if (length == scratch.length || length == MAX_LINE) {
+				throw new BadRequestException("Line too long");
+			}
+			scratch[length++] = (byte) b;
+		}
+		if (length > 0 && scratch[length - 1] == '\r') {
+			length--;
+		}
+		return new String(scratch, 0, length, StandardCharsets.ISO_8859_1);
+	}
+
+	// headers are name, value pairs, a null value skips the header
+	static void writeHead(OutputStream out, int status, String reason, String... headers) throws IOException {
+		StringBuilder head = new StringBuilder(128);
+		head.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+		for (int i = 0; i + 1 < headers.length; i += 2) {
+			if (headers[i + 1] == null) {
+				continue;
+			}
+			head.append(headers[i]).append(": ").append(headers[i + 1]).append("\r\n");
+		}
+		head.append("\r\n");
+		out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	static final class FixedLengthInputStream extends InputStream {
+		private final InputStream in;
+		private long remaining;
+
+		FixedLengthInputStream(InputStream in, long length) {
+			this.in = in;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException("Body truncated, " + remaining + " bytes missing");
+			}
+			remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+			if (read < 0) {
+				throw new EOFException("Body truncated, " + remaining + " bytes missing");
+			}
+			remaining -= read;
+			return read;
+		}
+	}
+
+	static final class ChunkedInputStream extends InputStream {
+		private final InputStream in;
+		private final byte[] scratch;
+		private long remaining;
+		private boolean done;
+
+		ChunkedInputStream(InputStream in, byte[] scratch) {
+			this.in = in;
+			this.scratch = scratch;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (done) {
+				return -1;
+			}
+			if (remaining == 0) {
+				String size = readLine(in, scratch);
+				if (size == null) {
+					throw new EOFException("Chunked body truncated");
+				}
+				int extension = size.indexOf(';');
+				remaining = number(extension < 0 ? size : size.substring(0, extension), 16, "chunk size");
+				if (remaining == 0) {
+					// trailers
+					String line;
+					while ((line = readLine(in, scratch)) != null && !line.isEmpty()) {
+						// ignored
+					}
+					done = true;
+					return -1;
+				}
+			}
+			int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+			if (read < 0) {
+				throw new EOFException("Chunked body truncated");
+			}
+			remaining -= read;
+			if (remaining == 0) {
+				readLine(in, scratch);
+			}
+			return read;
+		}
+	}
+
+	// counts what was written, to tell whether a response was started
+	static final class CountingOutputStream extends FilterOutputStream {
+		private long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		long count() {
+			return count;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			out.write(buffer, offset, length);
+			count += length;
+		}
+	}
+
+	static final class ChunkedOutputStream extends OutputStream {
+		private final OutputStream out;
+
+		ChunkedOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			if (length == 0) {
+				return;
+			}
+			out.write(Integer.toHexString(length).getBytes(StandardCharsets.ISO_8859_1));
+			out.write(CRLF);
+			out.write(buffer, offset, length);
+			out.write(CRLF);
+		}
+
+		// writes the last chunk, the underlying stream stays open for the next response
+		@Override
+		public void close() throws IOException {
+			close(new String[0]);
+		}
+
+		// the last chunk with trailers as name, value pairs
+		void close(String... trailers) throws IOException {
+			out.write('0');
+			out.write(CRLF);
+			for (int i = 0; i + 1 < trailers.length; i += 2) {
+				out.write((trailers[i] + ": " + trailers[i + 1]).getBytes(StandardCharsets.ISO_8859_1));
+				out.write(CRLF);
+			}
+			out.write(CRLF);
+			out.flush();
+		}
+	}
+}
@@ -1,13 +1,46 @@
 package perf;
 
-import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
+import java.time.Duration;
+
+// the annotation only serves as configuration for @SpringBootTest, the upstream itself runs without Spring
 @SpringBootApplication
 public class Main {
 
-	public static void main(String[] args) {
-		SpringApplication.run(Main.class, args);
+	public static void main(String[] args) throws Exception {
+		int port = Integer.parseInt(System.getenv().getOrDefault("PORT", "9000"));
+		String relay = System.getenv("RELAY");
+		String netem = System.getenv().getOrDefault("NETEM", "");
+		if (relay != null && !relay.isBlank()) {
+			// a relay in front of another upstream
+			int colon = relay.lastIndexOf(':');
+			try (Relay server = new Relay(port, relay.substring(0, colon), Integer.parseInt(relay.substring(colon + 1)), netem)) {
+				server.serve();
+			}
+			return;
+		}
+		double delaySeconds = Double.parseDouble(System.getenv().getOrDefault("DELAY", "0"));
+		String faults = System.getenv().getOrDefault("FAULTS", "");
+		Duration delay = Duration.ofNanos((long) (delaySeconds * 1_000_000_000L));
+		if (netem.isBlank()) {
+			try (EchoServer server = new EchoServer(port, delay, faults)) {
+				server.serve();
+			}
+			return;
+		}
+		// the echo moves to the next port, the relay takes its place
+		try (EchoServer echo = new EchoServer(port + 1, delay, faults);
+			 Relay server = new Relay(port, "localhost", port + 1, netem)) {
+			Thread.ofPlatform().daemon(true).name("echo").start(() -> {
+				try {
+					echo.serve();
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			server.serve();
+		}
 	}
 
 }
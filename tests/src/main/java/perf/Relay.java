@@ -0,0 +1,420 @@
+package perf;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * TCP relay emulating a slower network between the proxy and an upstream, on a single selector thread.
+ * Bytes read from one side are held in direct buffers until their delivery time and written to the other side as they are,
+ * without copies through the heap. The impairment is a {@code ;}-separated list of settings:
+ * <ul>
+ *     <li>{@code rtt=<ms>} round-trip time, half of it is added in each direction;</li>
+ *     <li>{@code jitter=<ms>} uniform variation of each one-way delay, order is preserved;</li>
+ *     <li>{@code bandwidth=<Mbit/s>} per connection and direction;</li>
+ *     <li>{@code stall=<rate>,<ms>} pauses a direction for the given time, the rate is per read;</li>
+ *     <li>{@code halfopen=<rate>,<ms>} after the given time the connection goes silent: nothing is forwarded any more,
+ *     and neither side is closed until the relay stops.</li>
+ * </ul>
+ * For example {@code rtt=40;jitter=5;bandwidth=100} resembles a link between availability zones.
+ */
+final class Relay implements AutoCloseable {
+	private static final int CHUNK = 64 * 1024;
+	// bytes held per direction before the relay stops reading, like a receive window
+	private static final int WINDOW = 1024 * 1024;
+
+	record Impairment(long delayNanos, long jitterNanos, long bytesPerSecond, double stallRate, long stallNanos,
+					  double halfOpenRate, long halfOpenNanos) {
+		static final Impairment NONE = new Impairment(0, 0, 0, 0, 0, 0, 0);
+
+		static Impairment parse(String spec) {
+			if (spec == null || spec.isBlank()) {
+				return NONE;
+			}
+			long delay = 0, jitter = 0, bytesPerSecond = 0, stall = 0, halfOpen = 0;
+			double stallRate = 0, halfOpenRate = 0;
+			for (String setting : spec.split(";")) {
+				if (setting.isBlank()) {
+					continue;
+				}
+				int equals = setting.indexOf('=');
+				if (equals < 0) {
+					throw new IllegalArgumentException("Expected key=value: " + setting.trim());
+				}
+				String key = setting.substring(0, equals).trim().toLowerCase(Locale.ROOT);
+				String[] values = setting.substring(equals + 1).split(",");
+				try {
+					switch (key) {
+						case "rtt" -> delay = millis(values[0]) / 2;
+						case "jitter" -> jitter = millis(values[0]);
+						case "bandwidth" -> bytesPerSecond = (long) (Double.parseDouble(values[0]) * 1_000_000 / 8);
+						case "stall" -> {
+							stallRate = rate(values[0]);
+							stall = millis(values[1]);
+						}
+						case "halfopen" -> {
+							halfOpenRate = rate(values[0]);
+							halfOpen = millis(values[1]);
+						}
+						default -> throw new IllegalArgumentException("Unknown impairment: " + key);
+					}
+				} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+					throw new IllegalArgumentException("Malformed " + key + ": " + setting.substring(equals + 1).trim(), e);
+				}
+			}
+			return new Impairment(delay, jitter, bytesPerSecond, stallRate, stall, halfOpenRate, halfOpen);
+		}
+
+		private static long millis(String value) {
+			return (long) (Double.parseDouble(value) * 1_000_000);
+		}
+
+		private static double rate(String value) {
+			double rate = Double.parseDouble(value);
+			if (rate < 0 || rate > 1) {
+				throw new IllegalArgumentException("Rate out of [0, 1]: " + value.trim());
+			}
+			return rate;
+		}
+	}
+
+	private record Chunk(ByteBuffer buffer, long due) {
+	}
+
+	// one direction of a connection
+	private static final class Pipe {
+		final Connection connection;
+		final SocketChannel source;
+		final SocketChannel sink;
+		final ArrayDeque<Chunk> queue = new ArrayDeque<>();
+		int queued;
+		long lastDue;
+		long nextFree;
+		boolean eof;
+		// a partial write waits for the sink to become writable
+		boolean blocked;
+
+		Pipe(Connection connection, SocketChannel source, SocketChannel sink) {
+			this.connection = connection;
+			this.source = source;
+			this.sink = sink;
+		}
+	}
+
+	private static final class Connection {
+		final SocketChannel client;
+		final SocketChannel upstream;
+		final Pipe up;
+		final Pipe down;
+		SelectionKey clientKey;
+		SelectionKey upstreamKey;
+		boolean connected;
+		long silentAt = Long.MAX_VALUE;
+		boolean silent;
+
+		Connection(SocketChannel client, SocketChannel upstream) {
+			this.client = client;
+			this.upstream = upstream;
+			this.up = new Pipe(this, client, upstream);
+			this.down = new Pipe(this, upstream, client);
+		}
+	}
+
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final String host;
+	private final int targetPort;
+	private final Impairment impairment;
+	private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+	// pipes with queued chunks
+	private final Set<Pipe> pending = new LinkedHashSet<>();
+	// connections that will go silent
+	private final List<Connection> halfOpen = new ArrayList<>();
+
+	Relay(int port, String host, int targetPort, String impairment) throws IOException {
+		this.impairment = Impairment.parse(impairment);
+		this.host = host;
+		this.targetPort = targetPort;
+		this.selector = Selector.open();
+		this.server = ServerSocketChannel.open();
+		this.server.bind(new InetSocketAddress(port), 1024);
+		this.server.configureBlocking(false);
+		this.server.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	int port() {
+		return ((InetSocketAddress) server.socket().getLocalSocketAddress()).getPort();
+	}
+
+	// blocks until closed
+	void serve() throws IOException {
+		try {
+			while (server.isOpen()) {
+				long wait = deliver(System.nanoTime());
+				if (wait == 0) {
+					selector.selectNow();
+				} else {
+					selector.select(wait < 0 ? 0 : Math.max(1, (wait + 999_999) / 1_000_000));
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isConnectable()) {
+							connected(connection);
+						}
+						if (key.isValid() && key.isWritable()) {
+							Pipe pipe = key.channel() == connection.client ? connection.down : connection.up;
+							pipe.blocked = false;
+							pending.add(pipe);
+							interest(connection);
+						}
+						if (key.isValid() && key.isReadable()) {
+							read(key.channel() == connection.client ? connection.up : connection.down);
+						}
+					} catch (IOException e) {
+						close(connection);
+					}
+				}
+			}
+		} catch (ClosedChannelException e) {
+			// closed
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+			selector.close();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		server.close();
+		selector.wakeup();
+	}
+
+	private void accept() throws IOException {
+		SocketChannel client = server.accept();
+		if (client == null) {
+			return;
+		}
+		SocketChannel upstream = SocketChannel.open();
+		try {
+			client.configureBlocking(false);
+			client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			upstream.configureBlocking(false);
+			upstream.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			Connection connection = new Connection(client, upstream);
+			// resolved per connection, the upstream may be replaced
+			boolean connected = upstream.connect(new InetSocketAddress(host, targetPort));
+			connection.clientKey = client.register(selector, 0, connection);
+			connection.upstreamKey = upstream.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, connection);
+			if (impairment.halfOpenRate() > 0 && ThreadLocalRandom.current().nextDouble() < impairment.halfOpenRate()) {
+				connection.silentAt = System.nanoTime() + impairment.halfOpenNanos();
+				halfOpen.add(connection);
+			}
+			if (connected) {
+				connected(connection);
+			}
+		} catch (IOException e) {
+			client.close();
+			upstream.close();
+		}
+	}
+
+	private void connected(Connection connection) throws IOException {
+		if (connection.upstream.isConnectionPending()) {
+			connection.upstream.finishConnect();
+		}
+		connection.connected = true;
+		interest(connection);
+	}
+
+	private void read(Pipe pipe) throws IOException {
+		ByteBuffer buffer = buffers.isEmpty() ? ByteBuffer.allocateDirect(CHUNK) : buffers.pop();
+		buffer.clear();
+		if (impairment.bytesPerSecond() > 0) {
+			// 10 ms worth of bytes at most, so that a slow link delivers smoothly
+			buffer.limit((int) Math.max(1500, Math.min(CHUNK, impairment.bytesPerSecond() / 100)));
+		}
+		int read = pipe.source.read(buffer);
+		if (read <= 0) {
+			buffers.push(buffer);
+			if (read < 0) {
+				pipe.eof = true;
+				if (pipe.queue.isEmpty()) {
+					finish(pipe);
+				}
+				interest(pipe.connection);
+			}
+			return;
+		}
+		buffer.flip();
+		long now = System.nanoTime();
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long sent = now;
+		if (impairment.bytesPerSecond() > 0) {
+			// serialization: the link carries one chunk after the other
+			sent = Math.max(now, pipe.nextFree) + read * 1_000_000_000L / impairment.bytesPerSecond();
+			pipe.nextFree = sent;
+		}
+		long delay = impairment.delayNanos();
+		if (impairment.jitterNanos() > 0) {
+			delay = Math.max(0, delay + random.nextLong(-impairment.jitterNanos(), impairment.jitterNanos() + 1));
+		}
+		if (impairment.stallRate() > 0 && random.nextDouble() < impairment.stallRate()) {
+			delay += impairment.stallNanos();
+		}
+		long due = Math.max(sent + delay, pipe.lastDue);
+		pipe.lastDue = due;
+		pipe.queue.add(new Chunk(buffer, due));
+		pipe.queued += read;
+		pending.add(pipe);
+		if (pipe.queued >= WINDOW) {
+			interest(pipe.connection);
+		}
+	}
+
+	// writes due chunks, returns the nanos until the next delivery or -1 when nothing is scheduled
+	private long deliver(long now) throws IOException {
+		long wait = -1;
+		for (Iterator<Connection> connections = halfOpen.iterator(); connections.hasNext(); ) {
+			Connection connection = connections.next();
+			if (connection.silentAt <= now) {
+				connections.remove();
+				silence(connection);
+			} else {
+				wait = wait < 0 ? connection.silentAt - now : Math.min(wait, connection.silentAt - now);
+			}
+		}
+		// a copy, closing a connection removes its pipes
+		for (Pipe pipe : new ArrayList<>(pending)) {
+			if (pipe.blocked || !pending.contains(pipe)) {
+				continue;
+			}
+			try {
+				boolean full = pipe.queued >= WINDOW;
+				while (!pipe.queue.isEmpty() && pipe.queue.peek().due() <= now) {
+					Chunk chunk = pipe.queue.peek();
+					int written = pipe.sink.write(chunk.buffer());
+					pipe.queued -= written;
+					if (chunk.buffer().hasRemaining()) {
+						pipe.blocked = true;
+						break;
+					}
+					pipe.queue.poll();
+					buffers.push(chunk.buffer());
+				}
+				if (pipe.queue.isEmpty()) {
+					pending.remove(pipe);
+					if (pipe.eof) {
+						finish(pipe);
+					}
+				} else if (!pipe.blocked) {
+					long next = pipe.queue.peek().due() - now;
+					wait = wait < 0 ? next : Math.min(wait, next);
+				}
+				if (pipe.blocked || full != pipe.queued >= WINDOW) {
+					interest(pipe.connection);
+				}
+			} catch (IOException e) {
+				close(pipe.connection);
+			}
+		}
+		return wait;
+	}
+
+	// forwards the end of stream, closes the connection once both directions ended
+	private void finish(Pipe pipe) throws IOException {
+		Connection connection = pipe.connection;
+		if (!pipe.sink.isOpen()) {
+			return;
+		}
+		pipe.sink.shutdownOutput();
+		if (connection.up.eof && connection.down.eof && connection.up.queue.isEmpty() && connection.down.queue.isEmpty()) {
+			close(connection);
+		}
+	}
+
+	private void silence(Connection connection) {
+		connection.silent = true;
+		for (Pipe pipe : List.of(connection.up, connection.down)) {
+			pending.remove(pipe);
+			while (!pipe.queue.isEmpty()) {
+				buffers.push(pipe.queue.poll().buffer());
+			}
+			pipe.queued = 0;
+		}
+		interest(connection);
+	}
+
+	private void interest(Connection connection) {
+		if (!connection.clientKey.isValid() || !connection.upstreamKey.isValid()) {
+			return;
+		}
+		if (connection.silent || !connection.connected) {
+			connection.clientKey.interestOps(0);
+			if (connection.silent) {
+				connection.upstreamKey.interestOps(0);
+			}
+			return;
+		}
+		connection.clientKey.interestOps(ops(connection.up, connection.down));
+		connection.upstreamKey.interestOps(ops(connection.down, connection.up));
+	}
+
+	// operations of the channel that is the source of outgoing and the sink of incoming
+	private static int ops(Pipe outgoing, Pipe incoming) {
+		int ops = 0;
+		if (!outgoing.eof && outgoing.queued < WINDOW) {
+			ops |= SelectionKey.OP_READ;
+		}
+		if (incoming.blocked) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		return ops;
+	}
+
+	private void close(Connection connection) {
+		for (Pipe pipe : List.of(connection.up, connection.down)) {
+			pending.remove(pipe);
+			while (!pipe.queue.isEmpty()) {
+				buffers.push(pipe.queue.poll().buffer());
+			}
+		}
+		halfOpen.remove(connection);
+		try {
+			connection.client.close();
+		} catch (IOException e) {
+			// already gone
+		}
+		try {
+			connection.upstream.close();
+		} catch (IOException e) {
+			// already gone
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package perf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@code /rest/files/<size>} serves a file of the given size, e.g. {@code 1k}, {@code 100m} or {@code 2g} (powers of 1024),
+ * with {@link FileChannel#transferTo}, so the bytes go from the page cache to the socket without passing through the heap.
+ * Single {@code Range} requests, {@code If-Range}, {@code If-None-Match} and {@code If-Modified-Since} are supported.
+ * A file is generated on first request: the {@link #block() pseudo-random block} repeated, so every file is a prefix of the larger ones.
+ */
+final class StaticFiles {
+	static final String PREFIX = "/rest/files/";
+	static final int BLOCK = 1024 * 1024;
+	private static final long SEED = 42;
+	private static final long MAX = 16L * 1024 * 1024 * 1024;
+	private static final Path DIRECTORY = Path.of(System.getProperty("java.io.tmpdir"), "echo-files");
+	// by size, looked up without a lock once generated
+	private static final ConcurrentHashMap<Long, Generated> FILES = new ConcurrentHashMap<>();
+
+	private record Generated(Path file, Instant modified) {
+	}
+
+	private StaticFiles() {
+	}
+
+	/**
+	 * The content of every file: this block repeated and truncated to the file size.
+	 */
+	static byte[] block() {
+		byte[] block = new byte[BLOCK];
+		new Random(SEED).nextBytes(block);
+		return block;
+	}
+
+	// e.g. 1k, 100m, 2g, or bytes
+	static long size(String size) {
+		String value = size.trim().toLowerCase(Locale.ROOT);
+		long unit = switch (value.isEmpty() ? ' ' : value.charAt(value.length() - 1)) {
+			case 'k' -> 1024L;
+			case 'm' -> 1024L * 1024;
+			case 'g' -> 1024L * 1024 * 1024;
+			default -> 1;
+		};
+		return Long.parseLong(unit == 1 ? value : value.substring(0, value.length() - 1)) * unit;
+	}
+
+	static void serve(Http.Request request, SocketChannel channel, OutputStream out) throws IOException {
+		long size;
+		try {
+			size = size(request.path.substring(PREFIX.length()));
+		} catch (NumberFormatException e) {
+			error(request, out, 404, "Not Found");
+			return;
+		}
+		if (size < 0 || size > MAX) {
+			error(request, out, 404, "Not Found");
+			return;
+		}
+		if (!request.method.equals("GET") && !request.method.equals("HEAD")) {
+			error(request, out, 405, "Method Not Allowed");
+			return;
+		}
+		Generated generated = file(size);
+		Path file = generated.file();
+		Instant modified = generated.modified();
+		String etag = "\"" + size + "-" + modified.getEpochSecond() + "\"";
+		String lastModified = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.ofInstant(modified, ZoneOffset.UTC));
+		String connection = request.keepAlive() ? "keep-alive" : "close";
+
+		if (notModified(request, etag, modified)) {
+			Http.writeHead(out, 304, "Not Modified",
+					"ETag", etag,
+					"Last-Modified", lastModified,
+					"Connection", connection);
+			return;
+		}
+
+		long start = 0;
+		long end = size - 1;
+		String range = request.header("Range");
+		String ifRange = request.header("If-Range");
+		boolean partial = range != null && (ifRange == null || ifRange.equals(etag) || ifRange.equals(lastModified));
+		if (partial) {
+			long[] bounds = range(range, size);
+			if (bounds == null) {
+				// multiple or malformed ranges, the whole file is a valid answer
+				partial = false;
+			} else if (bounds.length == 0) {
+				Http.writeHead(out, 416, "Range Not Satisfiable",
+						"Content-Range", "bytes */" + size,
+						"Content-Length", "0",
+						"Connection", connection);
+				return;
+			} else {
+				start = bounds[0];
+				end = bounds[1];
+			}
+		}
+		long length = end - start + 1;
+		Http.writeHead(out, partial ? 206 : 200, partial ? "Partial Content" : "OK",
+				"Content-Type", "application/octet-stream",
+				"Content-Length", Long.toString(length),
+				"Content-Range", partial ? "bytes " + start + "-" + end + "/" + size : null,
+				"Accept-Ranges", "bytes",
+				"ETag", etag,
+				"Last-Modified", lastModified,
+				"Connection", connection);
+		out.flush();
+		if (request.method.equals("HEAD")) {
+			return;
+		}
+		try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer fallback = null;
+			long position = start;
+			while (position <= end) {
+				long sent = source.transferTo(position, end - position + 1, channel);
+				if (sent == 0) {
+					// a virtual thread's socket is non-blocking underneath, a full send buffer transfers nothing:
+					// a regular write parks until the peer reads
+					if (fallback == null) {
+						fallback = ByteBuffer.allocateDirect(64 * 1024);
+					}
+					fallback.clear().limit((int) Math.min(fallback.capacity(), end - position + 1));
+					source.read(fallback, position);
+					fallback.flip();
+					while (fallback.hasRemaining()) {
+						sent += channel.write(fallback);
+					}
+				}
+				position += sent;
+			}
+		}
+	}
+
+	private static boolean notModified(Http.Request request, String etag, Instant modified) {
+		String ifNoneMatch = request.header("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				String candidate = tag.trim();
+				if (candidate.startsWith("W/")) {
+					candidate = candidate.substring(2);
+				}
+				if (candidate.equals("*") || candidate.equals(etag)) {
+					return true;
+				}
+			}
+			// If-Modified-Since is ignored when If-None-Match is present
+			return false;
+		}
+		String ifModifiedSince = request.header("If-Modified-Since");
+		if (ifModifiedSince != null) {
+			try {
+				return !modified.isAfter(ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant());
+			} catch (DateTimeParseException e) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	// returns {start, end} inclusive, an empty array when not satisfiable, null when not a single byte range
+	static long[] range(String range, long size) {
+		if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+			return null;
+		}
+		String spec = range.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0) {
+			return null;
+		}
+		try {
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+			if (first.isEmpty()) {
+				// suffix: the last n bytes
+				long suffix = Long.parseLong(last);
+				if (suffix == 0 || size == 0) {
+					return new long[0];
+				}
+				return new long[]{Math.max(0, size - suffix), size - 1};
+			}
+			long start = Long.parseLong(first);
+			long end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+			if (start >= size) {
+				return new long[0];
+			}
+			return end < start ? null : new long[]{start, end};
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	// generated once per size, concurrent first requests for a size wait for the same file
+	private static Generated file(long size) throws IOException {
+		try {
+			return FILES.computeIfAbsent(size, k -> {
+				try {
+					Path file = generate(k);
+					return new Generated(file, Files.getLastModifiedTime(file).toInstant().truncatedTo(ChronoUnit.SECONDS));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	// kept from an earlier run when present
+	private static Path generate(long size) throws IOException {
+		Path file = DIRECTORY.resolve(size + ".bin");
+		if (Files.exists(file)) {
+			return file;
+		}
+		Files.createDirectories(DIRECTORY);
+		Path partial = DIRECTORY.resolve(size + ".tmp");
+		ByteBuffer block = ByteBuffer.wrap(block());
+		try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			long written = 0;
+			while (written < size) {
+				block.clear();
+				block.limit((int) Math.min(BLOCK, size - written));
+				while (block.hasRemaining()) {
+					written += channel.write(block);
+				}
+			}
+		}
+		Files.move(partial, file);
+		return file;
+	}
+
+	private static void error(Http.Request request, OutputStream out, int status, String reason) throws IOException {
+		Http.writeHead(out, status, reason,
+				"Content-Type", "text/plain",
+				"Content-Length", "0",
+				"Connection", request.keepAlive() ? "keep-alive" : "close");
+	}
+}
@@ -0,0 +1,107 @@
+package perf;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * RFC 6455 echo: every data frame is sent back with the same opcode, pings are answered, close is acknowledged.
+ */
+final class WebSocket {
+	private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private static final int CONTINUATION = 0x0, TEXT = 0x1, BINARY = 0x2, CLOSE = 0x8, PING = 0x9, PONG = 0xA;
+
+	private WebSocket() {
+	}
+
+	static boolean isUpgrade(Http.Request request) {
+		String upgrade = request.header("Upgrade");
+		return upgrade != null && upgrade.equalsIgnoreCase("websocket") && request.header("Sec-WebSocket-Key") != null;
+	}
+
+	static void echo(Http.Request request, InputStream in, OutputStream out) throws IOException {
+		Http.writeHead(out, 101, "Switching Protocols",
+				"Upgrade", "websocket",
+				"Connection", "Upgrade",
+				"Sec-WebSocket-Accept", accept(request.header("Sec-WebSocket-Key")));
+		out.flush();
+
+		DataInputStream frames = new DataInputStream(in);
+		byte[] mask = new byte[4];
+		while (true) {
+			int first;
+			try {
+				first = frames.readUnsignedByte();
+			} catch (EOFException e) {
+				return;
+			}
+			int second = frames.readUnsignedByte();
+			int opcode = first & 0x0F;
+			long length = second & 0x7F;
+			if (length == 126) {
+				length = frames.readUnsignedShort();
+			} else if (length == 127) {
+				length = frames.readLong();
+			}
+			boolean masked = (second & 0x80) != 0;
+			if (masked) {
+				frames.readFully(mask);
+			}
+			if (length > Integer.MAX_VALUE - 8) {
+				throw new IOException("Frame too large");
+			}
+			byte[] payload = new byte[(int) length];
+			frames.readFully(payload);
+			if (masked) {
+				for (int i = 0; i < payload.length; i++) {
+					payload[i] ^= mask[i & 3];
+				}
+			}
+			switch (opcode) {
+				case TEXT, BINARY, CONTINUATION -> write(out, first, payload);
+				case PING -> write(out, 0x80 | PONG, payload);
+				case CLOSE -> {
+					write(out, 0x80 | CLOSE, payload);
+					return;
+				}
+				default -> {
+					// PONG and reserved opcodes are ignored
+				}
+			}
+		}
+	}
+
+	// server frames are never masked
+	private static void write(OutputStream out, int first, byte[] payload) throws IOException {
+		out.write(first);
+		if (payload.length < 126) {
+			out.write(payload.length);
+		} else if (payload.length <= 0xFFFF) {
+			out.write(126);
+			out.write(payload.length >>> 8);
+			out.write(payload.length);
+		} else {
+			out.write(127);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				out.write((int) ((long) payload.length >>> shift));
+			}
+		}
+		out.write(payload);
+		out.flush();
+	}
+
+	private static String accept(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest((key.trim() + GUID).getBytes(StandardCharsets.US_ASCII));
+			return Base64.getEncoder().encodeToString(digest);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
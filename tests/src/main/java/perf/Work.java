@@ -0,0 +1,152 @@
+package perf;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@code /rest/work?ms=<n>} reads the request body, then works for n milliseconds (1000 by default) while watching the connection:
+ * the wait is a read with a timeout, so a disconnect is observed as soon as it arrives and the work stops.
+ * Requests with an {@code X-Request-Id} are logged with when they were received, when the disconnect was observed and
+ * when the work ended, in {@link System#nanoTime()}, so the harness can tell how much work outlived the client.
+ */
+final class Work {
+	static final String PATH = "/rest/work";
+	private static final int MAX = 1_000_000;
+	// the longest wait between two looks at the connection
+	private static final int SLICE_MILLIS = 50;
+
+	record Outcome(String id, long receivedNanos, long bodyBytes, long observedNanos, long endNanos, boolean completed) {
+	}
+
+	private volatile ConcurrentLinkedQueue<Outcome> outcomes = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger size = new AtomicInteger();
+
+	void reset() {
+		outcomes = new ConcurrentLinkedQueue<>();
+		size.set(0);
+	}
+
+	/**
+	 * {@code [{"id", "received", "body", "observed" (0 when the client stayed), "end", "completed"}]}
+	 */
+	String json() {
+		StringBuilder json = new StringBuilder(1024).append('[');
+		for (Outcome outcome : outcomes) {
+			if (json.length() > 1) {
+				json.append(',');
+			}
+			json.append("{\"id\":\"").append(outcome.id().replace("\\", "\\\\").replace("\"", "\\\"")).append('"')
+					.append(",\"received\":").append(outcome.receivedNanos())
+					.append(",\"body\":").append(outcome.bodyBytes())
+					.append(",\"observed\":").append(outcome.observedNanos())
+					.append(",\"end\":").append(outcome.endNanos())
+					.append(",\"completed\":").append(outcome.completed())
+					.append('}');
+		}
+		return json.append(']').toString();
+	}
+
+	// returns false when the connection is gone
+	boolean serve(Http.Request request, Socket socket, InputStream in, OutputStream out) throws IOException {
+		String id = request.header(EchoServer.REQUEST_ID);
+		long millis = millis(request.target);
+		byte[] buffer = new byte[16 * 1024];
+		long body = 0;
+		try {
+			int read;
+			while ((read = request.body.read(buffer)) >= 0) {
+				body += read;
+			}
+		} catch (IOException e) {
+			// gone mid-upload
+			long now = System.nanoTime();
+			log(new Outcome(id, request.receivedNanos, body, now, now, false));
+			return false;
+		}
+
+		long deadline = System.nanoTime() + millis * 1_000_000;
+		long now;
+		while ((now = System.nanoTime()) < deadline) {
+			if (gone(socket, in, (int) Math.max(1, Math.min(SLICE_MILLIS, (deadline - now + 999_999) / 1_000_000)))) {
+				now = System.nanoTime();
+				log(new Outcome(id, request.receivedNanos, body, now, now, false));
+				return false;
+			}
+		}
+		byte[] response = ("worked " + millis + " ms\n").getBytes(StandardCharsets.ISO_8859_1);
+		try {
+			Http.writeHead(out, 200, "OK",
+					"Content-Type", "text/plain",
+					"Content-Length", Integer.toString(response.length),
+					"Connection", request.keepAlive() ? "keep-alive" : "close",
+					EchoServer.RECEIVED, Long.toString(request.receivedNanos),
+					EchoServer.SENT, Long.toString(System.nanoTime()),
+					EchoServer.REQUEST_ID, id);
+			out.write(response);
+			out.flush();
+		} finally {
+			log(new Outcome(id, request.receivedNanos, body, 0, System.nanoTime(), true));
+		}
+		return true;
+	}
+
+	// waits up to the timeout for the peer to close, a pipelined byte is left in the stream
+	private static boolean gone(Socket socket, InputStream in, int timeoutMillis) throws IOException {
+		int timeout = socket.getSoTimeout();
+		socket.setSoTimeout(timeoutMillis);
+		in.mark(1);
+		try {
+			int b = in.read();
+			if (b < 0) {
+				return true;
+			}
+			in.reset();
+			// the next request arrived, nothing to watch any more: wait for the rest of the work
+			Thread.sleep(timeoutMillis);
+			return false;
+		} catch (SocketTimeoutException e) {
+			return false;
+		} catch (EOFException e) {
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (IOException e) {
+			// reset
+			return true;
+		} finally {
+			if (!socket.isClosed()) {
+				socket.setSoTimeout(timeout);
+			}
+		}
+	}
+
+	private void log(Outcome outcome) {
+		if (outcome.id() != null && size.incrementAndGet() <= MAX) {
+			outcomes.add(outcome);
+		}
+	}
+
+	private static long millis(String target) {
+		int query = target.indexOf('?');
+		if (query >= 0) {
+			for (String parameter : target.substring(query + 1).split("&")) {
+				if (parameter.startsWith("ms=")) {
+					try {
+						return Math.max(0, Long.parseLong(parameter.substring(3)));
+					} catch (NumberFormatException e) {
+						break;
+					}
+				}
+			}
+		}
+		return 1_000;
+	}
+}
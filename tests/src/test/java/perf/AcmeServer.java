@@ -0,0 +1,464 @@
+package perf;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.bouncycastle.asn1.pkcs.Attribute;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+import org.bouncycastle.pkcs.jcajce.JcaPKCS10CertificationRequest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.AlgorithmParameters;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * In-JVM ACME (RFC 8555) certificate authority with HTTP-01 validation, so automatic HTTPS can be exercised offline.
+ * Serves plain HTTP; JWS signatures (ES256, RS256) and nonces are verified like a public CA would.
+ * Issued certificates chain up to {@link #authority()}, which clients trust instead of a public root.
+ */
+final class AcmeServer implements AutoCloseable {
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final Base64.Encoder B64 = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder B64D = Base64.getUrlDecoder();
+    private static final String ERROR = "urn:ietf:params:acme:error:";
+
+    /**
+     * Timeline of one certificate, in {@link System#nanoTime()}.
+     */
+    record Issuance(String domain, long orderedNanos, long validatedNanos, long issuedNanos) {
+    }
+
+    private record Account(String url, PublicKey key, String thumbprint) {
+    }
+
+    private static final class Authorization {
+        final String id;
+        final String domain;
+        final String token = token();
+        final String accountThumbprint;
+        volatile String status = "pending";
+        volatile String challengeStatus = "pending";
+        volatile long validatedNanos;
+
+        Authorization(String id, String domain, String accountThumbprint) {
+            this.id = id;
+            this.domain = domain;
+            this.accountThumbprint = accountThumbprint;
+        }
+    }
+
+    private static final class Order {
+        final String id;
+        final List<Authorization> authorizations;
+        final long orderedNanos = System.nanoTime();
+        volatile String status = "pending";
+        volatile String certificate;
+
+        Order(String id, List<Authorization> authorizations) {
+            this.id = id;
+            this.authorizations = authorizations;
+        }
+    }
+
+    private final HttpServer server;
+    private final Certificates.Issued authority;
+    private final Certificates.Issued intermediate;
+    // resolves a domain being validated to the address serving its HTTP-01 challenge
+    private final Function<String, InetSocketAddress> resolver;
+
+    private final Set<String> nonces = ConcurrentHashMap.newKeySet();
+    private final Map<String, Account> accounts = new ConcurrentHashMap<>();
+    private final Map<String, Authorization> authorizations = new ConcurrentHashMap<>();
+    private final Map<String, Order> orders = new ConcurrentHashMap<>();
+    private final Map<String, String> certificates = new ConcurrentHashMap<>();
+    private final List<Issuance> issuances = new CopyOnWriteArrayList<>();
+    private final AtomicLong ids = new AtomicLong();
+
+    AcmeServer(int port, Function<String, InetSocketAddress> resolver) throws Exception {
+        this.resolver = resolver;
+        this.authority = Certificates.authority("Millau Test ACME Root");
+        this.intermediate = Certificates.intermediate(authority, "Millau Test ACME Issuer");
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        this.server.createContext("/", this::handle);
+        this.server.start();
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    Certificates.Issued authority() {
+        return authority;
+    }
+
+    List<Issuance> issuances() {
+        return List.copyOf(issuances);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String path = exchange.getRequestURI().getPath();
+            String base = "http://" + exchange.getRequestHeaders().getFirst("Host");
+            exchange.getResponseHeaders().set("Replay-Nonce", nonce());
+            exchange.getResponseHeaders().set("Cache-Control", "no-store");
+            exchange.getResponseHeaders().add("Link", "<" + base + "/directory>;rel=\"index\"");
+            try {
+                if (path.equals("/directory")) {
+                    ObjectNode directory = JSON.createObjectNode()
+                            .put("newNonce", base + "/new-nonce")
+                            .put("newAccount", base + "/new-account")
+                            .put("newOrder", base + "/new-order")
+                            .put("revokeCert", base + "/revoke-cert")
+                            .put("keyChange", base + "/key-change");
+                    directory.putObject("meta").put("termsOfService", base + "/terms");
+                    send(exchange, 200, directory);
+                } else if (path.equals("/new-nonce")) {
+                    exchange.sendResponseHeaders(exchange.getRequestMethod().equals("HEAD") ? 200 : 204, -1);
+                } else if (!exchange.getRequestMethod().equals("POST")) {
+                    problem(exchange, 405, "malformed", "POST required");
+                } else {
+                    post(exchange, base, path);
+                }
+            } catch (AcmeException e) {
+                problem(exchange, e.status, e.type, e.getMessage());
+            } catch (Exception e) {
+                problem(exchange, 500, "serverInternal", String.valueOf(e));
+            }
+        }
+    }
+
+    private void post(HttpExchange exchange, String base, String path) throws Exception {
+        JsonNode jws = JSON.readTree(exchange.getRequestBody());
+        JsonNode header = JSON.readTree(B64D.decode(jws.path("protected").asText()));
+        String payloadText = jws.path("payload").asText();
+        JsonNode payload = payloadText.isEmpty() ? null : JSON.readTree(B64D.decode(payloadText));
+
+        if (!nonces.remove(header.path("nonce").asText())) {
+            throw new AcmeException(400, "badNonce", "unknown or reused nonce");
+        }
+        if (!header.path("url").asText().equals(base + path)) {
+            throw new AcmeException(401, "unauthorized", "url header does not match request");
+        }
+
+        Account account;
+        if (path.equals("/new-account")) {
+            PublicKey key = publicKey(header.path("jwk"));
+            verify(jws, header, key);
+            String thumbprint = thumbprint(header.path("jwk"));
+            // RFC 8555 7.3.1: an existing account is answered with 200, a lookup never creates one
+            Account existing = accounts.get(thumbprint);
+            if (existing == null) {
+                if (payload != null && payload.path("onlyReturnExisting").asBoolean()) {
+                    throw new AcmeException(400, "accountDoesNotExist", "no account for this key");
+                }
+                existing = accounts.putIfAbsent(thumbprint, new Account(base + "/account/" + ids.incrementAndGet(), key, thumbprint));
+            }
+            account = existing == null ? accounts.get(thumbprint) : existing;
+            exchange.getResponseHeaders().set("Location", account.url());
+            ObjectNode body = JSON.createObjectNode().put("status", "valid").put("orders", account.url() + "/orders");
+            send(exchange, existing == null ? 201 : 200, body);
+            return;
+        }
+        account = accounts.values().stream()
+                .filter(a -> a.url().equals(header.path("kid").asText()))
+                .findFirst()
+                .orElseThrow(() -> new AcmeException(400, "accountDoesNotExist", "unknown account"));
+        verify(jws, header, account.key());
+
+        String[] segments = path.split("/");
+        switch (segments[1]) {
+            case "account" -> send(exchange, 200, JSON.createObjectNode().put("status", "valid"));
+            case "new-order" -> {
+                List<Authorization> authz = new ArrayList<>();
+                for (JsonNode identifier : payload.path("identifiers")) {
+                    Authorization authorization = new Authorization("" + ids.incrementAndGet(), identifier.path("value").asText(), account.thumbprint());
+                    authorizations.put(authorization.id, authorization);
+                    authz.add(authorization);
+                }
+                Order order = new Order("" + ids.incrementAndGet(), authz);
+                orders.put(order.id, order);
+                exchange.getResponseHeaders().set("Location", base + "/order/" + order.id);
+                send(exchange, 201, order(base, order));
+            }
+            case "authz" -> send(exchange, 200, authorization(base, authorization(segments[2])));
+            case "challenge" -> {
+                Authorization authorization = authorization(segments[2]);
+                if (authorization.challengeStatus.equals("pending")) {
+                    authorization.challengeStatus = "processing";
+                    Thread.startVirtualThread(() -> validate(authorization));
+                }
+                exchange.getResponseHeaders().add("Link", "<" + base + "/authz/" + authorization.id + ">;rel=\"up\"");
+                send(exchange, 200, challenge(base, authorization));
+            }
+            case "order" -> send(exchange, 200, order(base, order(segments[2])));
+            case "finalize" -> {
+                Order order = order(segments[2]);
+                if (!status(order).equals("ready")) {
+                    throw new AcmeException(403, "orderNotReady", "order is " + status(order));
+                }
+                order.certificate = issue(order, B64D.decode(payload.path("csr").asText()));
+                order.status = "valid";
+                exchange.getResponseHeaders().set("Location", base + "/order/" + order.id);
+                send(exchange, 200, order(base, order));
+            }
+            case "cert" -> {
+                String chain = certificates.get(segments[2]);
+                if (chain == null) {
+                    throw new AcmeException(404, "malformed", "unknown certificate");
+                }
+                byte[] body = chain.getBytes(StandardCharsets.US_ASCII);
+                exchange.getResponseHeaders().set("Content-Type", "application/pem-certificate-chain");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+            default -> throw new AcmeException(404, "malformed", "unknown resource " + path);
+        }
+    }
+
+    private void validate(Authorization authorization) {
+        String expected = authorization.token + "." + authorization.accountThumbprint;
+        InetSocketAddress address = resolver.apply(authorization.domain);
+        try (Socket socket = new Socket(address.getHostString(), address.getPort())) {
+            socket.setSoTimeout(10_000);
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET /.well-known/acme-challenge/" + authorization.token + " HTTP/1.1\r\n"
+                    + "Host: " + authorization.domain + "\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            String status = in.readLine();
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                // headers
+            }
+            StringBuilder body = new StringBuilder();
+            while ((line = in.readLine()) != null) {
+                body.append(line);
+            }
+            boolean valid = status != null && status.contains(" 200") && body.toString().trim().equals(expected);
+            authorization.validatedNanos = System.nanoTime();
+            authorization.challengeStatus = valid ? "valid" : "invalid";
+            authorization.status = valid ? "valid" : "invalid";
+        } catch (IOException e) {
+            authorization.challengeStatus = "invalid";
+            authorization.status = "invalid";
+        }
+    }
+
+    private String issue(Order order, byte[] der) throws Exception {
+        JcaPKCS10CertificationRequest csr = new JcaPKCS10CertificationRequest(new PKCS10CertificationRequest(der));
+        Set<String> requested = new TreeSet<>();
+        for (Attribute attribute : csr.getAttributes(PKCSObjectIdentifiers.pkcs_9_at_extensionRequest)) {
+            Extensions extensions = Extensions.getInstance(attribute.getAttrValues().getObjectAt(0));
+            GeneralNames names = GeneralNames.fromExtensions(extensions, Extension.subjectAlternativeName);
+            if (names != null) {
+                for (GeneralName name : names.getNames()) {
+                    if (name.getTagNo() == GeneralName.dNSName) {
+                        requested.add(name.getName().toString());
+                    }
+                }
+            }
+        }
+        Set<String> authorized = new TreeSet<>();
+        order.authorizations.forEach(a -> authorized.add(a.domain));
+        if (!requested.isEmpty() && !requested.equals(authorized)) {
+            throw new AcmeException(400, "badCSR", "CSR names " + requested + " do not match order " + authorized);
+        }
+        Certificates.Issued cert = Certificates.leaf(intermediate, csr.getPublicKey(), authorized.toArray(new String[0]));
+        String id = "" + ids.incrementAndGet();
+        certificates.put(id, cert.pemChain());
+        long validated = order.authorizations.stream().mapToLong(a -> a.validatedNanos).max().orElse(0);
+        long issued = System.nanoTime();
+        for (String domain : authorized) {
+            issuances.add(new Issuance(domain, order.orderedNanos, validated, issued));
+        }
+        return id;
+    }
+
+    private String status(Order order) {
+        if (order.status.equals("valid")) {
+            return "valid";
+        }
+        if (order.authorizations.stream().anyMatch(a -> a.status.equals("invalid"))) {
+            return "invalid";
+        }
+        return order.authorizations.stream().allMatch(a -> a.status.equals("valid")) ? "ready" : "pending";
+    }
+
+    private ObjectNode order(String base, Order order) {
+        ObjectNode node = JSON.createObjectNode()
+                .put("status", status(order))
+                .put("expires", Instant.now().plus(1, ChronoUnit.DAYS).toString())
+                .put("finalize", base + "/finalize/" + order.id);
+        ArrayNode identifiers = node.putArray("identifiers");
+        ArrayNode authz = node.putArray("authorizations");
+        for (Authorization authorization : order.authorizations) {
+            identifiers.addObject().put("type", "dns").put("value", authorization.domain);
+            authz.add(base + "/authz/" + authorization.id);
+        }
+        if (order.certificate != null) {
+            node.put("certificate", base + "/cert/" + order.certificate);
+        }
+        return node;
+    }
+
+    private ObjectNode authorization(String base, Authorization authorization) {
+        ObjectNode node = JSON.createObjectNode()
+                .put("status", authorization.status)
+                .put("expires", Instant.now().plus(1, ChronoUnit.DAYS).toString());
+        node.putObject("identifier").put("type", "dns").put("value", authorization.domain);
+        node.putArray("challenges").add(challenge(base, authorization));
+        return node;
+    }
+
+    private ObjectNode challenge(String base, Authorization authorization) {
+        return JSON.createObjectNode()
+                .put("type", "http-01")
+                .put("url", base + "/challenge/" + authorization.id)
+                .put("token", authorization.token)
+                .put("status", authorization.challengeStatus);
+    }
+
+    private Authorization authorization(String id) throws AcmeException {
+        Authorization authorization = authorizations.get(id);
+        if (authorization == null) {
+            throw new AcmeException(404, "malformed", "unknown authorization");
+        }
+        return authorization;
+    }
+
+    private Order order(String id) throws AcmeException {
+        Order order = orders.get(id);
+        if (order == null) {
+            throw new AcmeException(404, "malformed", "unknown order");
+        }
+        return order;
+    }
+
+    private String nonce() {
+        String nonce = token();
+        nonces.add(nonce);
+        return nonce;
+    }
+
+    private static String token() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        return B64.encodeToString(bytes);
+    }
+
+    private static void verify(JsonNode jws, JsonNode header, PublicKey key) throws Exception {
+        String algorithm = switch (header.path("alg").asText()) {
+            case "ES256" -> "SHA256withECDSAinP1363Format";
+            case "RS256" -> "SHA256withRSA";
+            default -> throw new AcmeException(400, "badSignatureAlgorithm", "unsupported alg " + header.path("alg").asText());
+        };
+        Signature signature = Signature.getInstance(algorithm);
+        signature.initVerify(key);
+        signature.update((jws.path("protected").asText() + "." + jws.path("payload").asText()).getBytes(StandardCharsets.US_ASCII));
+        if (!signature.verify(B64D.decode(jws.path("signature").asText()))) {
+            throw new AcmeException(400, "malformed", "invalid JWS signature");
+        }
+    }
+
+    private static PublicKey publicKey(JsonNode jwk) throws Exception {
+        switch (jwk.path("kty").asText()) {
+            case "EC" -> {
+                AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+                parameters.init(new ECGenParameterSpec("secp256r1"));
+                ECPoint point = new ECPoint(unsigned(jwk.path("x").asText()), unsigned(jwk.path("y").asText()));
+                return KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(point, parameters.getParameterSpec(ECParameterSpec.class)));
+            }
+            case "RSA" -> {
+                return KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(unsigned(jwk.path("n").asText()), unsigned(jwk.path("e").asText())));
+            }
+            default -> throw new AcmeException(400, "badPublicKey", "unsupported kty " + jwk.path("kty").asText());
+        }
+    }
+
+    // RFC 7638: required members only, in lexicographic order, no whitespace
+    private static String thumbprint(JsonNode jwk) throws Exception {
+        String canonical = jwk.path("kty").asText().equals("EC")
+                ? String.format("{\"crv\":\"%s\",\"kty\":\"EC\",\"x\":\"%s\",\"y\":\"%s\"}", jwk.path("crv").asText(), jwk.path("x").asText(), jwk.path("y").asText())
+                : String.format("{\"e\":\"%s\",\"kty\":\"RSA\",\"n\":\"%s\"}", jwk.path("e").asText(), jwk.path("n").asText());
+        return B64.encodeToString(MessageDigest.getInstance("SHA-256").digest(canonical.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static BigInteger unsigned(String base64) {
+        return new BigInteger(1, B64D.decode(base64));
+    }
+
+    private static void send(HttpExchange exchange, int status, JsonNode body) throws IOException {
+        byte[] bytes = JSON.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static void problem(HttpExchange exchange, int status, String type, String detail) throws IOException {
+        if (exchange.getResponseCode() != -1) {
+            // failed while sending a response, closing the exchange cuts it short
+            return;
+        }
+        byte[] bytes = JSON.writeValueAsBytes(JSON.createObjectNode().put("type", ERROR + type).put("detail", detail).put("status", status));
+        exchange.getResponseHeaders().set("Content-Type", "application/problem+json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static final class AcmeException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+        final String type;
+
+        AcmeException(int status, String type, String detail) {
+            super(detail);
+            this.status = status;
+            this.type = type;
+        }
+    }
+}
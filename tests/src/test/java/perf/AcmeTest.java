@@ -0,0 +1,224 @@
+package perf;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.testcontainers.Testcontainers;
+import org.testcontainers.containers.BindMode;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.Network;
+import org.testcontainers.containers.wait.strategy.Wait;
+import org.testcontainers.utility.DockerImageName;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Automatic HTTPS against the in-JVM {@link AcmeServer}: time to the first valid certificate,
+ * the first request after issuance, and an issuance stampede when many hostnames appear at once.
+ */
+@SpringBootTest
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class AcmeTest {
+    @Value("${acme.stampede:50}")
+    private int stampede;
+    @Value("${acme.timeout:120}")
+    private int timeoutSeconds;
+
+    // app
+    static final int APP_PORT = 9000;
+    static final String DOMAIN = "acme.localhost";
+
+    // proxy
+    static final int PROXY_HTTP_PORT = 8080;
+    static final int PROXY_HTTPS_PORT = 8443;
+
+    // Docker
+    private final List<GenericContainer<?>> appContainers = new ArrayList<>();
+    private GenericContainer<?> proxyContainer;
+    private static final Network NETWORK = Network.newNetwork();
+
+    private AcmeServer acme;
+    private SSLContext sslContext;
+
+    @BeforeAll
+    void setup() throws Exception {
+        // HTTP-01 validation reaches the challenge through the proxy's HTTP port
+        acme = new AcmeServer(0, domain -> new InetSocketAddress(proxyContainer.getHost(), proxyContainer.getMappedPort(PROXY_HTTP_PORT)));
+        Testcontainers.exposeHostPorts(acme.port());
+        sslContext = TLSSharingTest.sslContext(null, null, acme.authority().certificate());
+
+        proxyContainer = new GenericContainer<>(DockerImageName.parse(proxyImage()))
+                .withExposedPorts(PROXY_HTTP_PORT, PROXY_HTTPS_PORT)
+                .withNetwork(NETWORK)
+                .withEnv("HTTP", ":" + PROXY_HTTP_PORT)
+                .withEnv("HTTPS", ":" + PROXY_HTTPS_PORT)
+                .withEnv("ACME", "http://host.testcontainers.internal:" + acme.port() + "/directory")
+                .withEnv("LOGGING", "DEBUG")
+                .withFileSystemBind("/var/run/docker.sock", "/var/run/docker.sock", BindMode.READ_ONLY)
+                .waitingFor(Wait.forListeningPort().withStartupTimeout(Duration.ofSeconds(5)));
+        proxyContainer.start();
+    }
+
+    @AfterAll
+    void tearDown() {
+        if (proxyContainer != null) {
+            proxyContainer.stop();
+        }
+        appContainers.forEach(GenericContainer::stop);
+        if (acme != null) {
+            acme.close();
+        }
+    }
+
+    String proxyImage() {
+        return "codelev/millau:test";
+    }
+
+    String appImage() {
+        return "hashicorp/http-echo:latest";
+    }
+
+    @Test
+    void issuance() throws Exception {
+        String host = "first." + DOMAIN;
+        long start = System.nanoTime();
+        startService("first", List.of(host));
+        long issued = awaitCertificate(host, start);
+
+        long requestStart = System.nanoTime();
+        String status = request(host);
+        long requestEnd = System.nanoTime();
+        assertTrue(status.startsWith("HTTP/1.1 200"), status);
+
+        AcmeServer.Issuance issuance = acme.issuances().stream().filter(i -> i.domain().equals(host)).findFirst().orElseThrow();
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("### Automatic HTTPS issuance: %s%n%n", proxyImage()));
+        result.append("| Metric                              | Value         |\n");
+        result.append("|-------------------------------------|---------------|\n");
+        result.append(String.format("| Service start to order              | %.2f ms       |%n", (issuance.orderedNanos() - start) / 1e6));
+        result.append(String.format("| Order to HTTP-01 validation         | %.2f ms       |%n", (issuance.validatedNanos() - issuance.orderedNanos()) / 1e6));
+        result.append(String.format("| Validation to issuance              | %.2f ms       |%n", (issuance.issuedNanos() - issuance.validatedNanos()) / 1e6));
+        result.append(String.format("| Service start to valid certificate  | %.2f ms       |%n", (issued - start) / 1e6));
+        result.append(String.format("| First request after issuance        | %.2f ms       |%n", (requestEnd - requestStart) / 1e6));
+        System.out.println(result);
+    }
+
+    @Test
+    void stampede() throws Exception {
+        List<String> hosts = new ArrayList<>();
+        for (int i = 0; i < stampede; i++) {
+            hosts.add("tenant-" + i + "." + DOMAIN);
+        }
+        long start = System.nanoTime();
+        startService("stampede", hosts);
+
+        // every hostname is requested concurrently, like clients arriving right after a deploy
+        Histogram timeToCertificate = new Histogram();
+        AtomicLong requests = new AtomicLong();
+        List<Future<?>> clients = new ArrayList<>();
+        long end;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (String host : hosts) {
+                clients.add(executor.submit(() -> {
+                    timeToCertificate.record((awaitCertificate(host, start) - start) / 1_000);
+                    assertTrue(request(host).startsWith("HTTP/1.1 200"));
+                    requests.incrementAndGet();
+                    return null;
+                }));
+            }
+            for (Future<?> client : clients) {
+                client.get();
+            }
+            end = System.nanoTime();
+        }
+        assertEquals(stampede, requests.get());
+
+        double seconds = (end - start) / 1e9;
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("### Automatic HTTPS stampede: %s%n%n", proxyImage()));
+        result.append(String.format("%d new hostnames at once%n%n", stampede));
+        result.append("| Metric                              | Value         |\n");
+        result.append("|-------------------------------------|---------------|\n");
+        result.append(String.format("| Certificates issued                 | %d            |%n", acme.issuances().stream().filter(i -> hosts.contains(i.domain())).count()));
+        result.append(String.format("| Issuance throughput                 | %.2f /s       |%n", stampede / seconds));
+        result.append(String.format("| Median time to valid certificate    | %.2f ms       |%n", timeToCertificate.percentile(50) / 1_000.0));
+        result.append(String.format("| Longest time to valid certificate   | %.2f ms       |%n", timeToCertificate.max() / 1_000.0));
+        System.out.println(result);
+    }
+
+    private void startService(String name, List<String> hosts) {
+        GenericContainer<?> container = new GenericContainer<>(DockerImageName.parse(appImage()))
+                .withCommand("-listen=:" + APP_PORT, "-text=" + name)
+                .withNetwork(NETWORK)
+                .withNetworkAliases(name)
+                .withLabels(Map.of(
+                        "com.docker.compose.service", name,
+                        "millau.enabled", "true",
+                        "millau.port", "" + APP_PORT,
+                        "millau.hosts", String.join(" ", hosts)
+                ));
+        appContainers.add(container);
+        container.start();
+    }
+
+    // polls handshakes until the proxy presents a certificate from the ACME server, returns the time it did
+    private long awaitCertificate(String host, long start) throws Exception {
+        long deadline = start + timeoutSeconds * 1_000_000_000L;
+        while (System.nanoTime() < deadline) {
+            try (SSLSocket socket = socket(host)) {
+                socket.startHandshake();
+                X509Certificate presented = (X509Certificate) socket.getSession().getPeerCertificates()[0];
+                socket.getSession().invalidate();
+                if (presented.getSubjectAlternativeNames() != null
+                        && presented.getSubjectAlternativeNames().stream().anyMatch(name -> host.equals(name.get(1)))) {
+                    return System.nanoTime();
+                }
+            } catch (Exception e) {
+                // no certificate for the host yet, or not one the ACME root vouches for
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("No certificate for " + host + " within " + timeoutSeconds + " s");
+    }
+
+    private String request(String host) throws Exception {
+        try (SSLSocket socket = socket(host)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET / HTTP/1.1\r\nHost: " + host + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            String status = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+            return status == null ? "" : status;
+        }
+    }
+
+    private SSLSocket socket(String host) throws Exception {
+        SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket(proxyContainer.getHost(), proxyContainer.getMappedPort(PROXY_HTTPS_PORT));
+        SSLParameters parameters = socket.getSSLParameters();
+        parameters.setServerNames(List.of(new SNIHostName(host)));
+        socket.setSSLParameters(parameters);
+        return socket;
+    }
+}
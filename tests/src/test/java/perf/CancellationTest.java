@@ -0,0 +1,314 @@
+package perf;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.testcontainers.containers.BindMode;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.Network;
+import org.testcontainers.containers.wait.strategy.Wait;
+import org.testcontainers.utility.DockerImageName;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Clients give up at random points and disconnect, the upstream's {@link Work} log tells how soon the proxy passed the
+ * disconnect on and how much upstream work outlived the client.
+ */
+@SpringBootTest
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class CancellationTest {
+    @Value("${cancel.clients:100}")
+    private int clients;
+    @Value("${cancel.duration:20}")
+    private int durationSeconds;
+    // upstream work per request in milliseconds
+    @Value("${cancel.work:2000}")
+    private int workMillis;
+    // longest a disconnect may take to stop the upstream work
+    @Value("${cancel.detection.max:500}")
+    private int detectionMaxMillis;
+
+    // app
+    static final String APP_NAME = "app";
+    static final int APP_PORT = 9000;
+    // uploads are abandoned within this body
+    static final int UPLOAD_BYTES = 1024 * 1024;
+
+    // proxy
+    static final int PROXY_PORT = 8080;
+
+    // Docker
+    GenericContainer<?> appContainer;
+    private GenericContainer<?> proxyContainer;
+    private static final Network NETWORK = Network.newNetwork();
+
+    enum Scenario {
+        BEFORE_HEADERS("before headers"),
+        MID_UPLOAD("mid-upload"),
+        AWAITING_RESPONSE("awaiting response");
+
+        final String title;
+
+        Scenario(String title) {
+            this.title = title;
+        }
+    }
+
+    // harness times: the request started, the client disconnected
+    record Abort(Scenario scenario, long startNanos, long abortNanos) {
+    }
+
+    String appUrl(String path) {
+        return String.format("http://%s:%d%s", appContainer.getHost(), appContainer.getMappedPort(APP_PORT), path);
+    }
+
+    @BeforeAll
+    void setup() {
+        appContainer = new GenericContainer<>(DockerImageName.parse(appImage()))
+                .withExposedPorts(APP_PORT)
+                .withNetwork(NETWORK)
+                .withNetworkAliases(APP_NAME)
+                .withLabels(Map.of(
+                        "com.docker.compose.service", APP_NAME,
+                        "millau.enabled", "true",
+                        "millau.port", "" + APP_PORT,
+                        "millau.path", "/rest/"
+                ))
+                .waitingFor(Wait.forListeningPort().withStartupTimeout(Duration.ofSeconds(5)));
+        appContainer.start();
+
+        proxyContainer = new GenericContainer<>(DockerImageName.parse(proxyImage()))
+                .withExposedPorts(PROXY_PORT)
+                .withNetwork(NETWORK)
+                .withEnv("HTTP", ":" + PROXY_PORT)
+                .withFileSystemBind("/var/run/docker.sock", "/var/run/docker.sock", BindMode.READ_ONLY)
+                .waitingFor(Wait.forListeningPort().withStartupTimeout(Duration.ofSeconds(5)));
+        proxyContainer.start();
+    }
+
+    @AfterAll
+    void tearDown() {
+        if (proxyContainer != null) {
+            proxyContainer.stop();
+        }
+        if (appContainer != null) {
+            appContainer.stop();
+        }
+    }
+
+    String proxyImage() {
+        return "codelev/millau:test";
+    }
+
+    String appImage() {
+        return Upstream.image();
+    }
+
+    @Test
+    void cancellation() throws Exception {
+        HttpClient admin = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        URI log = URI.create(appUrl(EchoServer.WORK));
+        assertEquals(200, admin.send(HttpRequest.newBuilder(log).DELETE().build(), HttpResponse.BodyHandlers.discarding()).statusCode());
+
+        Map<String, Abort> aborts = new ConcurrentHashMap<>();
+        AtomicLong sequence = new AtomicLong();
+        long memoryBefore;
+        long memoryAfter;
+        long cpuNanos;
+        long start;
+        long end;
+        try (ContainerStats.Sampler sampler = new ContainerStats.Sampler(proxyContainer, 250)) {
+            memoryBefore = sampler.start().memoryBytes();
+            start = System.nanoTime();
+            long deadline = start + durationSeconds * 1_000_000_000L;
+            List<Future<?>> running = new ArrayList<>();
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < clients; i++) {
+                    running.add(executor.submit(() -> {
+                        while (System.nanoTime() < deadline) {
+                            String id = "cancel-" + sequence.incrementAndGet();
+                            Scenario scenario = Scenario.values()[ThreadLocalRandom.current().nextInt(Scenario.values().length)];
+                            aborts.put(id, abort(id, scenario));
+                        }
+                        return null;
+                    }));
+                }
+            }
+            for (Future<?> client : running) {
+                client.get();
+            }
+            end = System.nanoTime();
+            cpuNanos = sampler.cpuNanosSinceStart();
+            // work the proxy did not cancel runs to its end
+            Thread.sleep(workMillis + 2_000L);
+            memoryAfter = ContainerStats.sample(proxyContainer).memoryBytes();
+        }
+
+        Map<String, JsonNode> outcomes = new HashMap<>();
+        for (JsonNode outcome : new ObjectMapper().readTree(admin.send(HttpRequest.newBuilder(log).GET().build(), HttpResponse.BodyHandlers.ofString()).body())) {
+            outcomes.put(outcome.get("id").asText(), outcome);
+        }
+
+        // upstream times are only comparable with the harness's if nothing happens before its cause
+        int reachedTotal = 0;
+        int skewed = 0;
+        for (Map.Entry<String, Abort> entry : aborts.entrySet()) {
+            JsonNode outcome = outcomes.get(entry.getKey());
+            if (outcome == null) {
+                continue;
+            }
+            reachedTotal++;
+            long observed = outcome.get("observed").asLong();
+            if (outcome.get("received").asLong() < entry.getValue().startNanos() || (observed > 0 && observed < entry.getValue().abortNanos())) {
+                skewed++;
+            }
+        }
+        boolean comparable = skewed <= reachedTotal / 100;
+
+        double seconds = (end - start) / 1_000_000_000.0;
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("### Request cancellation: %s%n%n", proxyImage()));
+        result.append(String.format("%d clients for %d s, each request aborted at a random point, upstream work %d ms%n%n", clients, durationSeconds, workMillis));
+        if (!comparable) {
+            // e.g. Docker in a VM, its monotonic clock is not the harness's
+            result.append(String.format("Upstream clock is not comparable: %d of %d samples out of order, detection and wasted work skipped%n%n", skewed, reachedTotal));
+        }
+        result.append("| Abort point       | Aborts | Reached upstream (%) | Cancelled upstream (%) | Detection p50 (ms) | Detection p99 (ms) | Wasted work p50 (ms) | Wasted work p99 (ms) | Released/s |\n");
+        result.append("|-------------------|--------|----------------------|------------------------|--------------------|--------------------|----------------------|----------------------|------------|\n");
+        long wastedTotal = 0;
+        for (Scenario scenario : Scenario.values()) {
+            int count = 0;
+            int reached = 0;
+            int cancelled = 0;
+            Histogram detection = new Histogram();
+            Histogram wasted = new Histogram();
+            for (Map.Entry<String, Abort> entry : aborts.entrySet()) {
+                Abort abort = entry.getValue();
+                if (abort.scenario() != scenario) {
+                    continue;
+                }
+                count++;
+                JsonNode outcome = outcomes.get(entry.getKey());
+                if (outcome == null) {
+                    continue;
+                }
+                reached++;
+                long observed = outcome.get("observed").asLong();
+                if (observed > 0) {
+                    cancelled++;
+                    detection.record((observed - abort.abortNanos()) / 1_000);
+                }
+                long waste = Math.max(0, outcome.get("end").asLong() - abort.abortNanos());
+                wasted.record(waste / 1_000);
+                wastedTotal += waste;
+            }
+            result.append(String.format("| %-17s | %-6d | %-20.1f | %-22.1f | %-18s | %-18s | %-20s | %-20s | %-10.1f |%n",
+                    scenario.title,
+                    count,
+                    count == 0 ? 0 : 100.0 * reached / count,
+                    reached == 0 ? 0 : 100.0 * cancelled / reached,
+                    comparable ? String.format("%.2f", detection.percentile(50) / 1_000.0) : "-",
+                    comparable ? String.format("%.2f", detection.percentile(99) / 1_000.0) : "-",
+                    comparable ? String.format("%.2f", wasted.percentile(50) / 1_000.0) : "-",
+                    comparable ? String.format("%.2f", wasted.percentile(99) / 1_000.0) : "-",
+                    cancelled / seconds));
+        }
+        result.append(String.format("%nWasted upstream work: %s s per second of load. Proxy CPU: %.2f s, memory %.1f MB before, %.1f MB after%n",
+                comparable ? String.format("%.2f", wastedTotal / 1_000_000_000.0 / seconds) : "-",
+                cpuNanos / 1_000_000_000.0,
+                memoryBefore / 1_000_000.0,
+                memoryAfter / 1_000_000.0));
+        System.out.println(result);
+
+        // a client gone well before the work would end must stop it: compared as durations, each on its own clock
+        List<String> late = new ArrayList<>();
+        int checked = 0;
+        for (Map.Entry<String, Abort> entry : aborts.entrySet()) {
+            Abort abort = entry.getValue();
+            JsonNode outcome = outcomes.get(entry.getKey());
+            long waitedMillis = (abort.abortNanos() - abort.startNanos()) / 1_000_000;
+            if (abort.scenario() != Scenario.AWAITING_RESPONSE || outcome == null || waitedMillis > workMillis - detectionMaxMillis) {
+                continue;
+            }
+            checked++;
+            long workedMillis = (outcome.get("end").asLong() - outcome.get("received").asLong()) / 1_000_000;
+            if (outcome.get("observed").asLong() == 0 || workedMillis > waitedMillis + detectionMaxMillis) {
+                late.add(String.format("%s: client gone after %d ms, upstream worked %d ms%s", entry.getKey(), waitedMillis, workedMillis,
+                        outcome.get("observed").asLong() == 0 ? " to completion" : ""));
+            }
+        }
+        assertTrue(checked > 0, "no request awaiting a response reached the upstream");
+        assertTrue(late.isEmpty(), late.size() + " of " + checked + " disconnects not passed on within " + detectionMaxMillis + " ms, e.g. "
+                + late.subList(0, Math.min(5, late.size())));
+    }
+
+    // sends as much of the request as the scenario allows, waits a random time and disconnects; returns when it did
+    private Abort abort(String id, Scenario scenario) throws IOException, InterruptedException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long start = System.nanoTime();
+        try (Socket socket = new Socket(proxyContainer.getHost(), proxyContainer.getMappedPort(PROXY_PORT))) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            String target = Work.PATH + "?ms=" + workMillis;
+            switch (scenario) {
+                case BEFORE_HEADERS -> {
+                    String head = "POST " + target + " HTTP/1.1\r\nHost: localhost\r\n" + EchoServer.REQUEST_ID + ": " + id + "\r\n";
+                    out.write(head.substring(0, random.nextInt(1, head.length())).getBytes(StandardCharsets.ISO_8859_1));
+                    out.flush();
+                    Thread.sleep(random.nextInt(1, 100));
+                }
+                case MID_UPLOAD -> {
+                    out.write(head("POST", target, id, UPLOAD_BYTES));
+                    byte[] chunk = new byte[16 * 1024];
+                    int sent = random.nextInt(0, UPLOAD_BYTES);
+                    for (int written = 0; written < sent; written += chunk.length) {
+                        out.write(chunk, 0, Math.min(chunk.length, sent - written));
+                        out.flush();
+                        Thread.sleep(1);
+                    }
+                }
+                case AWAITING_RESPONSE -> {
+                    out.write(head("GET", target, id, 0));
+                    out.flush();
+                    Thread.sleep(random.nextInt(1, workMillis));
+                }
+            }
+            return new Abort(scenario, start, System.nanoTime());
+        }
+    }
+
+    private static byte[] head(String method, String target, String id, int contentLength) {
+        return (method + " " + target + " HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + EchoServer.REQUEST_ID + ": " + id + "\r\n"
+                + (contentLength > 0 ? "Content-Type: application/octet-stream\r\nContent-Length: " + contentLength + "\r\n" : "")
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
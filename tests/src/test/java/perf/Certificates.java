@@ -0,0 +1,149 @@
+package perf;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates certificates at test time, encoded the way Millau expects them in {@code millau.cert} and {@code millau.key}
+ * labels: Base64 of the PEM text. EC P-256 keys keep generation fast enough for thousands of certificates.
+ */
+final class Certificates {
+    private static final AtomicLong SERIAL = new AtomicLong(System.currentTimeMillis());
+    private static final Duration VALIDITY = Duration.ofDays(7);
+
+    record Issued(X509Certificate certificate, PrivateKey key, List<X509Certificate> chain) {
+        // certificate followed by its intermediates, root excluded
+        String pemChain() {
+            StringBuilder pem = new StringBuilder();
+            for (X509Certificate cert : chain) {
+                pem.append(pem("CERTIFICATE", encoded(cert)));
+            }
+            return pem.toString();
+        }
+
+        String certLabel() {
+            return Base64.getEncoder().encodeToString(pemChain().getBytes(StandardCharsets.US_ASCII));
+        }
+
+        String keyLabel() {
+            return Base64.getEncoder().encodeToString(pem("PRIVATE KEY", key.getEncoded()).getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private Certificates() {
+    }
+
+    static Issued authority(String commonName) throws Exception {
+        KeyPair keys = keys();
+        X509Certificate cert = sign(new X500Name("CN=" + commonName), keys.getPublic(), new X500Name("CN=" + commonName), keys.getPrivate(), true);
+        return new Issued(cert, keys.getPrivate(), List.of(cert));
+    }
+
+    static Issued intermediate(Issued issuer, String commonName) throws Exception {
+        KeyPair keys = keys();
+        X509Certificate cert = sign(new X500Name("CN=" + commonName), keys.getPublic(), subject(issuer), issuer.key(), true);
+        return new Issued(cert, keys.getPrivate(), chain(cert, issuer));
+    }
+
+    static Issued leaf(Issued issuer, String commonName, String... dnsNames) throws Exception {
+        KeyPair keys = keys();
+        X509Certificate cert = sign(new X500Name("CN=" + commonName), keys.getPublic(), subject(issuer), issuer.key(), false, dnsNames);
+        return new Issued(cert, keys.getPrivate(), chain(cert, issuer));
+    }
+
+    // certificate for a key held elsewhere, e.g. the subject of a certificate signing request
+    static Issued leaf(Issued issuer, PublicKey publicKey, String... dnsNames) throws Exception {
+        X509Certificate cert = sign(new X500Name("CN=" + dnsNames[0]), publicKey, subject(issuer), issuer.key(), false, dnsNames);
+        return new Issued(cert, null, chain(cert, issuer));
+    }
+
+    static String pem(String type, byte[] der) {
+        return "-----BEGIN " + type + "-----\n"
+                + Base64.getMimeEncoder(64, "\n".getBytes(StandardCharsets.US_ASCII)).encodeToString(der)
+                + "\n-----END " + type + "-----\n";
+    }
+
+    private static List<X509Certificate> chain(X509Certificate cert, Issued issuer) {
+        List<X509Certificate> chain = new ArrayList<>();
+        chain.add(cert);
+        // the root is the last element of a chain and is never sent
+        if (issuer.chain().size() > 1) {
+            chain.addAll(issuer.chain());
+        } else if (!isRoot(issuer.certificate())) {
+            chain.add(issuer.certificate());
+        }
+        return List.copyOf(chain);
+    }
+
+    private static boolean isRoot(X509Certificate cert) {
+        return cert.getSubjectX500Principal().equals(cert.getIssuerX500Principal());
+    }
+
+    private static X500Name subject(Issued issued) {
+        return new X500Name(issued.certificate().getSubjectX500Principal().getName());
+    }
+
+    private static KeyPair keys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        return generator.generateKeyPair();
+    }
+
+    private static X509Certificate sign(X500Name subject, PublicKey publicKey, X500Name issuer, PrivateKey issuerKey, boolean ca, String... dnsNames) throws Exception {
+        Instant now = Instant.now();
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(
+                issuer,
+                BigInteger.valueOf(SERIAL.incrementAndGet()),
+                Date.from(now.minus(Duration.ofHours(1))),
+                Date.from(now.plus(VALIDITY)),
+                subject,
+                publicKey);
+        builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(ca));
+        if (ca) {
+            builder.addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign));
+        } else {
+            builder.addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.digitalSignature | KeyUsage.keyEncipherment));
+        }
+        if (dnsNames.length > 0) {
+            GeneralName[] names = new GeneralName[dnsNames.length];
+            for (int i = 0; i < dnsNames.length; i++) {
+                names[i] = new GeneralName(GeneralName.dNSName, dnsNames[i]);
+            }
+            builder.addExtension(Extension.subjectAlternativeName, false, new GeneralNames(names));
+        }
+        String algorithm = issuerKey.getAlgorithm().equals("RSA") ? "SHA256withRSA" : "SHA256withECDSA";
+        return new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder(algorithm).build(issuerKey)));
+    }
+
+    private static byte[] encoded(X509Certificate cert) {
+        try {
+            return cert.getEncoded();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
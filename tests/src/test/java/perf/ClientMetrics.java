@@ -0,0 +1,276 @@
+package perf;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestClientResponseException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * The harness' client-side view in OpenMetrics format: requests by status, errors, a latency histogram and responses
+ * by upstream replica, labelled by proxy image and test. With {@code openmetrics.port} set they are served on
+ * {@code /metrics} for the Prometheus of {@code docker-compose.yml}, next to the proxy's own; with
+ * {@code openmetrics.file} set they are sampled every {@code openmetrics.interval} seconds and written with timestamps
+ * when the tests end, ready for {@code promtool tsdb create-blocks-from openmetrics}.
+ * <p>
+ * One instance lives in the Spring test context shared by the test classes, so a run is one continuous series. Every
+ * request also goes to the {@link Report} timelines, and requests sent through {@link #exchange} to the {@link Samples}.
+ */
+@Component
+class ClientMetrics {
+    static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+    // in seconds, with the bounds of the SLO panels in monitoring/millau.json
+    static final double[] BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.3, 0.6, 1.2, 2.5, 5, 10};
+
+    private final ConcurrentSkipListMap<String, LongAdder> requests = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, LongAdder> errors = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, LongAdder> replicas = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, Latency> latencies = new ConcurrentSkipListMap<>();
+
+    private final Report report;
+    private final Samples samples;
+    private final HttpServer server;
+    private final Path file;
+    private final ScheduledExecutorService sampler;
+    // family, then metric by labels, then its points in time order
+    private final Map<String, Map<String, List<String>>> history = new LinkedHashMap<>();
+
+    private static final class Latency {
+        final LongAdder[] buckets = new LongAdder[BUCKETS.length];
+        final LongAdder count = new LongAdder();
+        final DoubleAdder sum = new DoubleAdder();
+
+        Latency() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(double seconds) {
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (seconds <= BUCKETS[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sum.add(seconds);
+        }
+    }
+
+    ClientMetrics(Report report,
+                  Samples samples,
+                  @Value("${openmetrics.port:0}") int port,
+                  @Value("${openmetrics.file:}") String file,
+                  @Value("${openmetrics.interval:5}") int intervalSeconds) throws IOException {
+        this.report = report;
+        this.samples = samples;
+        if (port > 0) {
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+            server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+            server.createContext("/metrics", this::serve);
+            server.start();
+        } else {
+            server = null;
+        }
+        if (!file.isBlank()) {
+            this.file = Path.of(file);
+            sampler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().name("openmetrics").factory());
+            sampler.scheduleAtFixedRate(this::sample, 0, intervalSeconds, TimeUnit.SECONDS);
+        } else {
+            this.file = null;
+            sampler = null;
+        }
+    }
+
+    /**
+     * A response received after the given time, {@code replica} is the upstream instance that served it, if known.
+     */
+    void record(String proxy, String test, int status, long micros, String replica) {
+        String labels = labels(proxy, test);
+        requests.computeIfAbsent(labels + ",code=\"" + status + "\"", k -> new LongAdder()).increment();
+        latencies.computeIfAbsent(labels, k -> new Latency()).record(micros / 1_000_000.0);
+        report.record(test + " @ " + proxy, micros, status >= 500);
+        if (replica != null) {
+            replicas.computeIfAbsent(labels + ",replica=\"" + escape(replica) + "\"", k -> new LongAdder()).increment();
+        }
+    }
+
+    void record(String proxy, String test, int status, long micros) {
+        record(proxy, test, status, micros, null);
+    }
+
+    // a request without a response: refused, reset or timed out
+    void error(String proxy, String test) {
+        errors.computeIfAbsent(labels(proxy, test), k -> new LongAdder()).increment();
+        report.error(test + " @ " + proxy);
+    }
+
+    /**
+     * Sends one request with {@code call} and records it, with the replica {@code replica} finds in the body. An error
+     * status or a request without a response is recorded too, then rethrown for the test to fail on.
+     */
+    ResponseEntity<String> exchange(String proxy, String test, Supplier<ResponseEntity<String>> call, Function<String, String> replica) {
+        int scenario = samples.id(test + " @ " + proxy);
+        long start = System.nanoTime();
+        ResponseEntity<String> response;
+        try {
+            response = call.get();
+        } catch (RestClientResponseException e) {
+            long end = System.nanoTime();
+            samples.record(scenario, start, end, e.getStatusCode().value(), e.getResponseBodyAsByteArray().length);
+            record(proxy, test, e.getStatusCode().value(), (end - start) / 1_000);
+            throw e;
+        } catch (RestClientException e) {
+            samples.error(scenario, start, System.nanoTime(), e);
+            error(proxy, test);
+            throw e;
+        }
+        long end = System.nanoTime();
+        String body = response.getBody();
+        String instance = body == null ? null : replica.apply(body);
+        samples.record(scenario, start, end, response.getStatusCode().value(), body == null ? 0 : body.length(),
+                instance == null ? Samples.NO_INSTANCE : samples.id(instance), Samples.NONE);
+        record(proxy, test, response.getStatusCode().value(), (end - start) / 1_000, instance);
+        return response;
+    }
+
+    private static String labels(String proxy, String test) {
+        return "proxy=\"" + escape(proxy) + "\",test=\"" + escape(test) + "\"";
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * The current values, one entry per metric family, each a list of metrics, each the lines of one point. A non-null
+     * timestamp in seconds is appended to every line.
+     */
+    private Map<String, Map<String, String>> families(String timestamp) {
+        String suffix = timestamp == null ? "" : " " + timestamp;
+        Map<String, Map<String, String>> families = new LinkedHashMap<>();
+        families.put("perf_client_requests", counters("perf_client_requests_total", requests, suffix));
+        families.put("perf_client_errors", counters("perf_client_errors_total", errors, suffix));
+        families.put("perf_client_replica_responses", counters("perf_client_replica_responses_total", replicas, suffix));
+        Map<String, String> histograms = new LinkedHashMap<>();
+        for (Map.Entry<String, Latency> entry : latencies.entrySet()) {
+            Latency latency = entry.getValue();
+            StringBuilder point = new StringBuilder();
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += latency.buckets[i].sum();
+                point.append(String.format("perf_client_request_duration_seconds_bucket{%s,le=\"%s\"} %d%s\n", entry.getKey(), BUCKETS[i], cumulative, suffix));
+            }
+            // a request recorded while reading counts in a bucket before it counts in total
+            long count = Math.max(cumulative, latency.count.sum());
+            point.append(String.format("perf_client_request_duration_seconds_bucket{%s,le=\"+Inf\"} %d%s\n", entry.getKey(), count, suffix));
+            point.append(String.format("perf_client_request_duration_seconds_count{%s} %d%s\n", entry.getKey(), count, suffix));
+            point.append(String.format("perf_client_request_duration_seconds_sum{%s} %s%s\n", entry.getKey(), latency.sum.sum(), suffix));
+            histograms.put(entry.getKey(), point.toString());
+        }
+        families.put("perf_client_request_duration_seconds", histograms);
+        return families;
+    }
+
+    private static Map<String, String> counters(String name, Map<String, LongAdder> values, String suffix) {
+        Map<String, String> metrics = new LinkedHashMap<>();
+        for (Map.Entry<String, LongAdder> entry : values.entrySet()) {
+            metrics.put(entry.getKey(), String.format("%s{%s} %d%s\n", name, entry.getKey(), entry.getValue().sum(), suffix));
+        }
+        return metrics;
+    }
+
+    private static void header(StringBuilder out, String family) {
+        switch (family) {
+            case "perf_client_requests" -> out.append("# TYPE perf_client_requests counter\n# HELP perf_client_requests Responses received by the test clients, by status.\n");
+            case "perf_client_errors" -> out.append("# TYPE perf_client_errors counter\n# HELP perf_client_errors Requests the test clients got no response to.\n");
+            case "perf_client_replica_responses" -> out.append("# TYPE perf_client_replica_responses counter\n# HELP perf_client_replica_responses Responses received by the test clients, by upstream replica.\n");
+            case "perf_client_request_duration_seconds" -> out.append("# TYPE perf_client_request_duration_seconds histogram\n# HELP perf_client_request_duration_seconds Request latency measured by the test clients.\n");
+            default -> throw new IllegalArgumentException(family);
+        }
+    }
+
+    String exposition() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Map<String, String>> family : families(null).entrySet()) {
+            header(out, family.getKey());
+            family.getValue().values().forEach(out::append);
+        }
+        return out.append("# EOF\n").toString();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            byte[] body = exposition().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    private synchronized void sample() {
+        String timestamp = String.format(Locale.ROOT, "%.3f", System.currentTimeMillis() / 1_000.0);
+        for (Map.Entry<String, Map<String, String>> family : families(timestamp).entrySet()) {
+            Map<String, List<String>> metrics = history.computeIfAbsent(family.getKey(), k -> new LinkedHashMap<>());
+            family.getValue().forEach((labels, point) -> metrics.computeIfAbsent(labels, k -> new ArrayList<>()).add(point));
+        }
+    }
+
+    /**
+     * Takes a last sample and writes the file, each metric's points together in time order as OpenMetrics requires.
+     */
+    @PreDestroy
+    synchronized void close() {
+        if (server != null) {
+            server.stop(0);
+        }
+        if (sampler == null) {
+            return;
+        }
+        sampler.shutdownNow();
+        sample();
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Map<String, List<String>>> family : history.entrySet()) {
+                StringBuilder header = new StringBuilder();
+                header(header, family.getKey());
+                out.write(header.toString());
+                for (List<String> points : family.getValue().values()) {
+                    for (String point : points) {
+                        out.write(point);
+                    }
+                }
+            }
+            out.write("# EOF\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package perf;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.platform.launcher.Launcher;
+import org.junit.platform.launcher.core.LauncherDiscoveryRequestBuilder;
+import org.junit.platform.launcher.core.LauncherFactory;
+import org.junit.platform.launcher.listeners.SummaryGeneratingListener;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.platform.engine.discovery.DiscoverySelectors.selectMethod;
+
+/**
+ * Runs the {@link PerfTest} benchmarks of several proxies for a number of trials, in a new random order each trial so
+ * drift over the session (thermal, page cache, noisy neighbours) spreads over all proxies alike. Reports median and p99
+ * with bootstrap confidence intervals and whether each proxy differs significantly from the first one. Off unless
+ * {@code compare.trials} is set: {@code mvn test -Dtest=ComparisonTest -Dcompare.trials=5}.
+ */
+@SpringBootTest
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class ComparisonTest {
+    @Value("${compare.trials:0}")
+    private int trials;
+    // the first is the reference the others are compared with
+    @Value("${compare.classes:PerfMillauTest,PerfHaproxyTest,PerfNginxTest,PerfTraefikTest,PerfCaddyTest}")
+    private String[] classes;
+    @Value("${compare.methods:get,post}")
+    private String[] methods;
+    @Value("${compare.seed:1}")
+    private long seed;
+    @Value("${compare.alpha:0.01}")
+    private double alpha;
+    @Value("${results.dir:target/results}")
+    private String directory;
+    @Autowired
+    private Results results;
+
+    static final double CONFIDENCE = 0.95;
+    static final int RESAMPLES = 2_000;
+
+    @Test
+    void compare() throws Exception {
+        Assumptions.assumeTrue(trials > 0, "compare.trials not set");
+        Random random = new Random(seed);
+        Launcher launcher = LauncherFactory.create();
+        List<Class<?>> order = new ArrayList<>();
+        for (String name : classes) {
+            order.add(Class.forName("perf." + name.trim()));
+        }
+        // scenario, then proxy, then one histogram per trial
+        Map<String, Map<String, List<Histogram>>> samples = new LinkedHashMap<>();
+        List<String> proxies = new ArrayList<>();
+        List<String> failures = new ArrayList<>();
+        for (int trial = 1; trial <= trials; trial++) {
+            Collections.shuffle(order, random);
+            for (Class<?> testClass : order) {
+                int before = results.results().size();
+                LauncherDiscoveryRequestBuilder request = LauncherDiscoveryRequestBuilder.request();
+                for (String method : methods) {
+                    request.selectors(selectMethod(testClass, method.trim()));
+                }
+                SummaryGeneratingListener listener = new SummaryGeneratingListener();
+                launcher.execute(request.build(), listener);
+                if (listener.getSummary().getTotalFailureCount() > 0) {
+                    failures.add(testClass.getSimpleName() + " in trial " + trial);
+                }
+                List<Results.Result> added = results.results();
+                for (Results.Result result : added.subList(before, added.size())) {
+                    samples.computeIfAbsent(result.scenario(), k -> new LinkedHashMap<>())
+                            .computeIfAbsent(result.proxy(), k -> new ArrayList<>())
+                            .add(result.latency());
+                    if (!proxies.contains(result.proxy())) {
+                        proxies.add(result.proxy());
+                    }
+                }
+            }
+        }
+
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("### Proxy comparison%n%n"));
+        result.append(String.format("%d interleaved trials in random order, %.0f%% bootstrap confidence intervals over trials, "
+                        + "differences against the first proxy significant when their interval excludes 0 and the two-sided "
+                        + "Mann-Whitney U p < %s%n%n",
+                trials, CONFIDENCE * 100, alpha));
+        if (!failures.isEmpty()) {
+            result.append(String.format("Failed: %s%n%n", String.join(", ", failures)));
+        }
+        result.append("| Scenario                | Proxy                          | Trials | Median (ms)            | p99 (ms)               | Median difference (ms)    | p99 difference (ms)       | p      | Significant |\n");
+        result.append("|-------------------------|--------------------------------|--------|------------------------|------------------------|---------------------------|---------------------------|--------|-------------|\n");
+        for (Map.Entry<String, Map<String, List<Histogram>>> scenario : samples.entrySet()) {
+            Map<String, List<Histogram>> byProxy = scenario.getValue();
+            String reference = proxies.stream().filter(byProxy::containsKey).findFirst().orElseThrow();
+            for (String proxy : proxies) {
+                List<Histogram> trialsOf = byProxy.get(proxy);
+                if (trialsOf == null) {
+                    continue;
+                }
+                double[] median = Statistics.bootstrap(trialsOf, 50, CONFIDENCE, RESAMPLES, random);
+                double[] p99 = Statistics.bootstrap(trialsOf, 99, CONFIDENCE, RESAMPLES, random);
+                String medianDifference = "";
+                String p99Difference = "";
+                String p = "";
+                String significant = "";
+                if (!proxy.equals(reference)) {
+                    List<Histogram> referenceTrials = byProxy.get(reference);
+                    double[] dMedian = Statistics.bootstrapDifference(trialsOf, referenceTrials, 50, CONFIDENCE, RESAMPLES, random);
+                    double[] dP99 = Statistics.bootstrapDifference(trialsOf, referenceTrials, 99, CONFIDENCE, RESAMPLES, random);
+                    double pValue = Statistics.different(Statistics.pool(trialsOf), Statistics.pool(referenceTrials));
+                    medianDifference = interval(dMedian);
+                    p99Difference = interval(dP99);
+                    p = String.format("%.4f", pValue);
+                    boolean excludesZero = dMedian[1] > 0 || dMedian[2] < 0 || dP99[1] > 0 || dP99[2] < 0;
+                    significant = excludesZero && pValue < alpha ? "yes" : "no";
+                }
+                result.append(String.format("| %-23s | %-30s | %-6d | %-22s | %-22s | %-25s | %-25s | %-6s | %-11s |%n",
+                        scenario.getKey(), proxy, trialsOf.size(), interval(median), interval(p99), medianDifference, p99Difference, p, significant));
+            }
+        }
+        System.out.println(result);
+        Path report = Path.of(directory).resolve("comparison.md");
+        Files.createDirectories(report.getParent());
+        Files.writeString(report, result.toString(), StandardCharsets.UTF_8);
+
+        assertTrue(failures.isEmpty(), "failed: " + failures);
+    }
+
+    // estimate with its interval in microseconds, as milliseconds
+    private static String interval(double[] bounds) {
+        return String.format("%.2f [%.2f, %.2f]", bounds[0] / 1_000, bounds[1] / 1_000, bounds[2] / 1_000);
+    }
+}
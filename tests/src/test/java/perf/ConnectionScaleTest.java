@@ -0,0 +1,373 @@
+package perf;
+
+import com.github.dockerjava.api.model.ContainerNetwork;
+import com.sun.management.UnixOperatingSystemMXBean;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.testcontainers.containers.BindMode;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.Network;
+import org.testcontainers.containers.wait.strategy.Wait;
+import org.testcontainers.utility.DockerImageName;
+
+import javax.net.ssl.SSLContext;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Opens idle keep-alive HTTP and TLS connections in steps up to C100K and, at each step, measures proxy memory per
+ * connection, what {@code millau_ingress_open_connections} reports and the latency of requests on other connections.
+ * The client needs an open file limit above the largest step ({@code ulimit -n}), steps beyond it are skipped.
+ * <p>
+ * The connections go to the proxy container's address on the test network when the host can reach it, as on Linux.
+ * Otherwise they go through the mapped ports, and so through {@code docker-proxy} unless the daemon runs with
+ * {@code "userland-proxy": false}. Either way they come from one address, and a port takes at most as many connections
+ * as {@code net.ipv4.ip_local_port_range} has ports: about 28k by default, so the TLS and plain halves of 100k do not
+ * fit. Steps that need more are skipped; widen the range to run them.
+ */
+@SpringBootTest
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class ConnectionScaleTest {
+    @Value("${connections.levels:1000,10000,50000,100000}")
+    private int[] levels;
+    // share of the connections using TLS
+    @Value("${connections.tls:0.5}")
+    private double tlsShare;
+    // connections being set up at once
+    @Value("${connections.parallel:500}")
+    private int parallel;
+    @Value("${connections.active:1000}")
+    private int activeRequests;
+    // share of the held connections millau_ingress_open_connections may be off by
+    @Value("${connections.gauge.tolerance:0.01}")
+    private double gaugeTolerance;
+
+    // app
+    static final String APP_NAME = "app";
+    static final int APP_PORT = 9000;
+    static final String HOST = "localhost";
+    static final String PATH = "/rest/echo";
+    // keep-alive connections carrying the measured requests
+    static final int ACTIVE_CONCURRENCY = 10;
+
+    // proxy
+    static final int PROXY_HTTP_PORT = 8080;
+    static final int PROXY_HTTPS_PORT = 8443;
+    static final int HEALTHCHECK_PORT = 9100;
+    static final String HTTP_SERIES = "millau_ingress_open_connections{port=\":" + PROXY_HTTP_PORT + "\",protocol=\"http\"}";
+    static final String HTTPS_SERIES = "millau_ingress_open_connections{port=\":" + PROXY_HTTPS_PORT + "\",protocol=\"https\"}";
+    // time for the proxy to account for the new connections before measuring
+    static final Duration SETTLE = Duration.ofSeconds(2);
+    // connections the gauge may be off by at any step, closes still being accounted for
+    static final int GAUGE_SLACK = 10;
+    // Linux default of net.ipv4.ip_local_port_range, 32768-60999
+    static final int EPHEMERAL_PORTS = 28_232;
+
+    // Docker
+    GenericContainer<?> appContainer;
+    private GenericContainer<?> proxyContainer;
+    private static final Network NETWORK = Network.newNetwork();
+
+    private SSLContext sslContext;
+    // where the connections go: the container directly or the mapped ports
+    private String proxyHost;
+    private int httpPort;
+    private int httpsPort;
+
+    String metricsUrl() {
+        return String.format("http://%s:%d/metrics", proxyContainer.getHost(), proxyContainer.getMappedPort(HEALTHCHECK_PORT));
+    }
+
+    @BeforeAll
+    void setup() throws Exception {
+        Certificates.Issued authority = Certificates.authority("Millau Test CA");
+        Certificates.Issued cert = Certificates.leaf(authority, HOST, HOST);
+        sslContext = TLSSharingTest.sslContext(null, null, authority.certificate());
+
+        appContainer = new GenericContainer<>(DockerImageName.parse(appImage()))
+                .withExposedPorts(APP_PORT)
+                .withNetwork(NETWORK)
+                .withNetworkAliases(APP_NAME)
+                .withLabels(Map.of(
+                        "com.docker.compose.service", APP_NAME,
+                        "millau.enabled", "true",
+                        "millau.port", "" + APP_PORT,
+                        "millau.path", "/rest/",
+                        "millau.hosts", HOST,
+                        "millau.cert", cert.certLabel(),
+                        "millau.key", cert.keyLabel()
+                ))
+                .waitingFor(Wait.forListeningPort().withStartupTimeout(Duration.ofSeconds(5)));
+        appContainer.start();
+
+        proxyContainer = new GenericContainer<>(DockerImageName.parse(proxyImage()))
+                .withExposedPorts(PROXY_HTTP_PORT, PROXY_HTTPS_PORT, HEALTHCHECK_PORT)
+                .withNetwork(NETWORK)
+                .withEnv("HTTP", ":" + PROXY_HTTP_PORT)
+                .withEnv("HTTPS", ":" + PROXY_HTTPS_PORT)
+                .withFileSystemBind("/var/run/docker.sock", "/var/run/docker.sock", BindMode.READ_ONLY)
+                .waitingFor(Wait.forListeningPort().withStartupTimeout(Duration.ofSeconds(5)));
+        proxyContainer.start();
+        route();
+    }
+
+    // the container's address on the test network if the host reaches it, keeps docker-proxy out of the measurements
+    private void route() {
+        for (ContainerNetwork network : proxyContainer.getContainerInfo().getNetworkSettings().getNetworks().values()) {
+            if (!NETWORK.getId().equals(network.getNetworkID())) {
+                continue;
+            }
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(network.getIpAddress(), PROXY_HTTP_PORT), 1_000);
+                proxyHost = network.getIpAddress();
+                httpPort = PROXY_HTTP_PORT;
+                httpsPort = PROXY_HTTPS_PORT;
+                return;
+            } catch (IOException e) {
+                // not routable from here, e.g. Docker Desktop
+            }
+        }
+        proxyHost = proxyContainer.getHost();
+        httpPort = proxyContainer.getMappedPort(PROXY_HTTP_PORT);
+        httpsPort = proxyContainer.getMappedPort(PROXY_HTTPS_PORT);
+    }
+
+    @AfterAll
+    void tearDown() {
+        if (proxyContainer != null) {
+            proxyContainer.stop();
+        }
+        if (appContainer != null) {
+            appContainer.stop();
+        }
+    }
+
+    String proxyImage() {
+        return "codelev/millau:test";
+    }
+
+    String appImage() {
+        return Upstream.image();
+    }
+
+    @Test
+    void idle() throws Exception {
+        awaitRoute();
+        long fileLimit = fileLimit();
+        int ports = ephemeralPorts();
+        // one selector per shard, handshakes are the client's bottleneck
+        int shards = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        List<IdleConnections> http = new ArrayList<>();
+        List<IdleConnections> https = new ArrayList<>();
+        for (int i = 0; i < shards; i++) {
+            http.add(new IdleConnections(proxyHost, httpPort, null, HOST, PATH));
+            https.add(new IdleConnections(proxyHost, httpsPort, sslContext, HOST, PATH));
+        }
+        HttpClient metrics = HttpClient.newHttpClient();
+        long baseline = ContainerStats.sample(proxyContainer).memoryBytes();
+
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("### Idle connections: %s%n%n", proxyImage()));
+        result.append(String.format("%.0f%% TLS, %d active requests over %d other connections per step, baseline proxy memory %.1f MB, connected to %s:%d and %s:%d%n%n",
+                tlsShare * 100, activeRequests, ACTIVE_CONCURRENCY, baseline / 1_000_000.0, proxyHost, httpPort, proxyHost, httpsPort));
+        result.append("| Connections | Held HTTP | Held TLS | Gauge HTTP | Gauge TLS | Failed | Dropped | Opened/s | Proxy memory (MB) | Per connection (KB) | Active p50 (ms) | Active p99 (ms) | Active max (ms) |\n");
+        result.append("|-------------|-----------|----------|------------|-----------|--------|---------|----------|-------------------|---------------------|-----------------|-----------------|-----------------|\n");
+        int firstHeld = -1;
+        List<String> inaccurate = new ArrayList<>();
+        try {
+            for (int level : levels) {
+                if (level + ACTIVE_CONCURRENCY + 100 > fileLimit) {
+                    result.append(String.format("| %-11d | skipped: open file limit %d |%n", level, fileLimit));
+                    continue;
+                }
+                int tlsTarget = (int) Math.round(level * tlsShare);
+                if (Math.max(tlsTarget, level - tlsTarget + ACTIVE_CONCURRENCY) + 100 > ports) {
+                    result.append(String.format("| %-11d | skipped: %d ports per destination (net.ipv4.ip_local_port_range) |%n", level, ports));
+                    continue;
+                }
+                long start = System.nanoTime();
+                int opened = open(https, tlsTarget) + open(http, level - tlsTarget);
+                double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+                Thread.sleep(SETTLE.toMillis());
+
+                int heldHttp = http.stream().mapToInt(IdleConnections::held).sum();
+                int heldHttps = https.stream().mapToInt(IdleConnections::held).sum();
+                String exposition = metrics.send(HttpRequest.newBuilder(URI.create(metricsUrl())).GET().build(), HttpResponse.BodyHandlers.ofString()).body();
+                long memory = ContainerStats.sample(proxyContainer).memoryBytes();
+                Histogram active = active();
+                if (firstHeld < 0) {
+                    firstHeld = heldHttp + heldHttps;
+                    assertEquals(level, firstHeld, "idle connections held at the first step");
+                }
+                double gaugeHttp = gauge(exposition, HTTP_SERIES);
+                double gaugeHttps = gauge(exposition, HTTPS_SERIES);
+                if (!accurate(gaugeHttp, heldHttp) || !accurate(gaugeHttps, heldHttps)) {
+                    inaccurate.add(String.format("%d: gauge %.0f/%.0f, held %d/%d", level, gaugeHttp, gaugeHttps, heldHttp, heldHttps));
+                }
+                result.append(String.format("| %-11d | %-9d | %-8d | %-10.0f | %-9.0f | %-6d | %-7d | %-8.0f | %-17.1f | %-19.2f | %-15.2f | %-15.2f | %-15.2f |%n",
+                        level, heldHttp, heldHttps, gaugeHttp, gaugeHttps,
+                        http.stream().mapToInt(IdleConnections::failed).sum() + https.stream().mapToInt(IdleConnections::failed).sum(),
+                        http.stream().mapToInt(IdleConnections::dropped).sum() + https.stream().mapToInt(IdleConnections::dropped).sum(),
+                        opened / seconds,
+                        memory / 1_000_000.0,
+                        heldHttp + heldHttps == 0 ? 0 : (memory - baseline) / 1_000.0 / (heldHttp + heldHttps),
+                        active.percentile(50) / 1_000.0, active.percentile(99) / 1_000.0, active.max() / 1_000.0));
+            }
+        } finally {
+            for (IdleConnections connections : http) {
+                connections.close();
+            }
+            for (IdleConnections connections : https) {
+                connections.close();
+            }
+        }
+        System.out.println(result);
+        assertTrue(inaccurate.isEmpty(), "open connections gauge off by more than " + gaugeTolerance * 100 + "% at " + inaccurate);
+    }
+
+    // NaN, a missing series, is never accurate
+    private boolean accurate(double gauge, int held) {
+        return Math.abs(gauge - held) <= Math.max(GAUGE_SLACK, held * gaugeTolerance);
+    }
+
+    // opens connections up to the target total, spread over the shards
+    private int open(List<IdleConnections> shards, int target) throws Exception {
+        int missing = target - shards.stream().mapToInt(IdleConnections::held).sum();
+        if (missing <= 0) {
+            return 0;
+        }
+        List<Future<Integer>> opens = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < shards.size(); i++) {
+                IdleConnections shard = shards.get(i);
+                int count = missing / shards.size() + (i < missing % shards.size() ? 1 : 0);
+                // at least 10 ms per connection and shard, a stuck step gives up instead of hanging
+                Duration timeout = Duration.ofSeconds(60).plusMillis(10L * count);
+                opens.add(executor.submit(() -> shard.open(count, Math.max(1, parallel / shards.size()), timeout)));
+            }
+        }
+        int opened = 0;
+        for (Future<Integer> open : opens) {
+            opened += open.get();
+        }
+        return opened;
+    }
+
+    // request latencies in microseconds over a few keep-alive connections, next to the idle ones
+    private Histogram active() throws Exception {
+        Histogram latency = new Histogram();
+        List<Future<?>> clients = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < ACTIVE_CONCURRENCY; i++) {
+                int requests = activeRequests / ACTIVE_CONCURRENCY + (i < activeRequests % ACTIVE_CONCURRENCY ? 1 : 0);
+                clients.add(executor.submit(() -> {
+                    try (Socket socket = new Socket(proxyHost, httpPort)) {
+                        socket.setTcpNoDelay(true);
+                        InputStream in = new BufferedInputStream(socket.getInputStream());
+                        OutputStream out = socket.getOutputStream();
+                        byte[] scratch = new byte[16 * 1024];
+                        for (int r = 0; r < requests; r++) {
+                            long start = System.nanoTime();
+                            assertEquals(200, get(in, out, scratch));
+                            latency.record((System.nanoTime() - start) / 1_000);
+                        }
+                    }
+                    return null;
+                }));
+            }
+        }
+        for (Future<?> client : clients) {
+            client.get();
+        }
+        return latency;
+    }
+
+    // one keep-alive GET, returns the status once the body is read
+    private static int get(InputStream in, OutputStream out, byte[] scratch) throws IOException {
+        out.write(("GET " + PATH + " HTTP/1.1\r\nHost: " + HOST + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+        String status = Http.readLine(in, scratch);
+        if (status == null) {
+            throw new IOException("connection closed");
+        }
+        long length = 0;
+        String line;
+        while ((line = Http.readLine(in, scratch)) != null && !line.isEmpty()) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, "Content-Length:".length())) {
+                length = Long.parseLong(line.substring("Content-Length:".length()).trim());
+            }
+        }
+        in.skipNBytes(length);
+        return Integer.parseInt(status.split(" ")[1]);
+    }
+
+    // the proxy discovers the app asynchronously
+    private void awaitRoute() throws Exception {
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        while (true) {
+            try (Socket socket = new Socket(proxyHost, httpPort)) {
+                if (get(socket.getInputStream(), socket.getOutputStream(), new byte[16 * 1024]) == 200) {
+                    return;
+                }
+            } catch (IOException e) {
+                // not yet
+            }
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("no route to " + APP_NAME);
+            }
+            Thread.sleep(250);
+        }
+    }
+
+    // value of a series in the exposition text, NaN when absent
+    private static double gauge(String exposition, String series) {
+        for (String line : exposition.split("\n")) {
+            if (line.startsWith(series + " ")) {
+                return Double.parseDouble(line.substring(series.length() + 1).trim());
+            }
+        }
+        return Double.NaN;
+    }
+
+    // local ports the kernel picks from when connecting from one address to one destination
+    private static int ephemeralPorts() {
+        try {
+            String[] range = Files.readString(Path.of("/proc/sys/net/ipv4/ip_local_port_range")).trim().split("\\s+");
+            return Integer.parseInt(range[1]) - Integer.parseInt(range[0]) + 1;
+        } catch (IOException | RuntimeException e) {
+            return EPHEMERAL_PORTS;
+        }
+    }
+
+    private static long fileLimit() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        return os instanceof UnixOperatingSystemMXBean unix ? unix.getMaxFileDescriptorCount() : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,102 @@
+package perf;
+
+import com.github.dockerjava.api.async.ResultCallback;
+import com.github.dockerjava.api.model.Statistics;
+import com.github.dockerjava.api.model.StatsConfig;
+import org.testcontainers.DockerClientFactory;
+import org.testcontainers.containers.GenericContainer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads container resource usage from the Docker stats API, i.e. the container cgroup.
+ */
+final class ContainerStats {
+
+    record Sample(long memoryBytes, long cpuNanos) {
+    }
+
+    private ContainerStats() {
+    }
+
+    static Sample sample(GenericContainer<?> container) {
+        return sample(container.getContainerId());
+    }
+
+    static Sample sample(String containerId) {
+        CompletableFuture<Statistics> result = new CompletableFuture<>();
+        ResultCallback.Adapter<Statistics> callback = new ResultCallback.Adapter<>() {
+            @Override
+            public void onNext(Statistics statistics) {
+                result.complete(statistics);
+            }
+        };
+        try (callback) {
+            DockerClientFactory.instance().client().statsCmd(containerId).withNoStream(true).exec(callback);
+            Statistics stats = result.get(10, TimeUnit.SECONDS);
+            return new Sample(memory(stats), stats.getCpuStats().getCpuUsage().getTotalUsage());
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot read stats of container " + containerId, e);
+        }
+    }
+
+    // same as `docker stats`: usage without the reclaimable page cache
+    private static long memory(Statistics stats) {
+        long usage = stats.getMemoryStats().getUsage() == null ? 0 : stats.getMemoryStats().getUsage();
+        StatsConfig details = stats.getMemoryStats().getStats();
+        if (details == null) {
+            return usage;
+        }
+        Long inactiveFile = details.getInactiveFile() != null ? details.getInactiveFile() : details.getTotalInactiveFile();
+        return inactiveFile != null && inactiveFile < usage ? usage - inactiveFile : usage;
+    }
+
+    /**
+     * Polls the container in the background and keeps the peak memory, so growth during a load phase is visible
+     * even when memory is released before the phase ends.
+     */
+    static final class Sampler implements AutoCloseable {
+        private final String containerId;
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        private final AtomicLong peakMemory = new AtomicLong();
+        private final Sample start;
+
+        Sampler(GenericContainer<?> container, long intervalMillis) {
+            this(container.getContainerId(), intervalMillis);
+        }
+
+        Sampler(String containerId, long intervalMillis) {
+            this.containerId = containerId;
+            this.start = sample(containerId);
+            this.peakMemory.set(start.memoryBytes());
+            scheduler.scheduleAtFixedRate(() -> {
+                try {
+                    peakMemory.accumulateAndGet(sample(containerId).memoryBytes(), Math::max);
+                } catch (Exception e) {
+                    // container stopped or stats temporarily unavailable
+                }
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        Sample start() {
+            return start;
+        }
+
+        long peakMemory() {
+            return peakMemory.get();
+        }
+
+        long cpuNanosSinceStart() {
+            return sample(containerId).cpuNanos() - start.cpuNanos();
+        }
+
+        @Override
+        public void close() {
+            scheduler.shutdownNow();
+        }
+    }
+}
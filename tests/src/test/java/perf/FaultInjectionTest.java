@@ -0,0 +1,239 @@
+package perf;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.testcontainers.containers.BindMode;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.Network;
+import org.testcontainers.containers.wait.strategy.Wait;
+import org.testcontainers.utility.DockerImageName;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Retry and failover under a misbehaving upstream: app-a runs a {@link Faults} script, app-b stays healthy,
+ * both serve the same path behind Millau.
+ */
+@SpringBootTest
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class FaultInjectionTest {
+    @Value("${faults.requests:200}")
+    private int requests;
+    @Value("${faults.concurrency:8}")
+    private int concurrency;
+    // client gives up after this many seconds
+    @Value("${faults.timeout:10}")
+    private int timeoutSeconds;
+
+    // app
+    private static final Pattern INSTANCE_ID = Pattern.compile("ID:\\s([a-f0-9\\-]{36})", Pattern.CASE_INSENSITIVE);
+
+    static final String APP_A_NAME = "app-a";
+    static final String APP_B_NAME = "app-b";
+    static final int APP_PORT = 9000;
+    static final String APP_ENDPOINT = "/rest/echo";
+
+    // proxy
+    static final int PROXY_PORT = 8080;
+
+    // Docker
+    GenericContainer<?> appAContainer;
+    GenericContainer<?> appBContainer;
+    private GenericContainer<?> proxyContainer;
+    private static final Network NETWORK = Network.newNetwork();
+
+    private static final Map<String, String> SCENARIOS = new LinkedHashMap<>();
+
+    static {
+        SCENARIOS.put("healthy", "");
+        SCENARIOS.put("log-normal latency", "latency=lognormal:20,1");
+        SCENARIOS.put("bimodal latency", "latency=bimodal:2,1000,0.1");
+        SCENARIOS.put("20% 503", "error=0.2");
+        SCENARIOS.put("100% 503", "error=1");
+        SCENARIOS.put("20% reset mid-body", "reset=0.2");
+        SCENARIOS.put("20% slow drip", "drip=0.2,100");
+        SCENARIOS.put("20% never respond", "hang=0.2");
+        SCENARIOS.put("2 s outage", "for=1;latency=fixed:1 | for=2;error=1 | latency=fixed:1");
+    }
+
+    String url() {
+        return String.format("http://%s:%d%s", proxyContainer.getHost(), proxyContainer.getMappedPort(PROXY_PORT), APP_ENDPOINT);
+    }
+
+    // app-a directly, bypassing the proxy
+    String appAUrl(String path) {
+        return String.format("http://%s:%d%s", appAContainer.getHost(), appAContainer.getMappedPort(APP_PORT), path);
+    }
+
+    @BeforeAll
+    void setup() {
+        appAContainer = app(APP_A_NAME);
+        appBContainer = app(APP_B_NAME);
+
+        proxyContainer = new GenericContainer<>(DockerImageName.parse(proxyImage()))
+                .withExposedPorts(PROXY_PORT)
+                .withNetwork(NETWORK)
+                .withEnv("HTTP", ":" + PROXY_PORT)
+                .withFileSystemBind("/var/run/docker.sock", "/var/run/docker.sock", BindMode.READ_ONLY)
+                .waitingFor(Wait.forListeningPort().withStartupTimeout(Duration.ofSeconds(5)));
+        proxyContainer.start();
+    }
+
+    private GenericContainer<?> app(String name) {
+        GenericContainer<?> container = new GenericContainer<>(DockerImageName.parse(appImage()))
+                .withExposedPorts(APP_PORT)
+                .withNetwork(NETWORK)
+                .withNetworkAliases(name)
+                .withLabels(Map.of(
+                        "com.docker.compose.service", name,
+                        "millau.enabled", "true",
+                        "millau.port", "" + APP_PORT,
+                        "millau.path", "/rest/"
+                ))
+                .waitingFor(Wait.forListeningPort().withStartupTimeout(Duration.ofSeconds(5)));
+        container.start();
+        return container;
+    }
+
+    @AfterAll
+    void tearDown() {
+        if (proxyContainer != null) {
+            proxyContainer.stop();
+        }
+        if (appAContainer != null) {
+            appAContainer.stop();
+        }
+        if (appBContainer != null) {
+            appBContainer.stop();
+        }
+    }
+
+    String proxyImage() {
+        return "codelev/millau:test";
+    }
+
+    String appImage() {
+        return Upstream.image();
+    }
+
+    @Test
+    void failover() throws Exception {
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(timeoutSeconds))
+                .build();
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(url()))
+                .timeout(Duration.ofSeconds(timeoutSeconds))
+                .GET()
+                .build();
+        String appA = instance(client, URI.create(appAUrl(APP_ENDPOINT)));
+
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("### Failover from a faulty upstream: %s%n%n", proxyImage()));
+        result.append(String.format("`GET %s` %d requests x %d clients, client timeout %d s, %s runs the script%n%n", url(), requests, concurrency, timeoutSeconds, APP_A_NAME));
+        result.append("| Scenario             | 2xx (%) | 5xx (%) | Failed (%) | Served by app-a (%) | p50 (ms) | p99 (ms) | Max (ms) |\n");
+        result.append("|----------------------|---------|---------|------------|---------------------|----------|----------|----------|\n");
+        int healthy = -1;
+        for (Map.Entry<String, String> scenario : SCENARIOS.entrySet()) {
+            script(client, scenario.getValue());
+
+            Histogram latency = new Histogram();
+            AtomicInteger ok = new AtomicInteger();
+            AtomicInteger serverErrors = new AtomicInteger();
+            AtomicInteger failed = new AtomicInteger();
+            AtomicInteger servedByA = new AtomicInteger();
+            AtomicInteger next = new AtomicInteger();
+            List<Future<?>> clients = new ArrayList<>();
+            try (ExecutorService executor = Executors.newFixedThreadPool(concurrency)) {
+                for (int i = 0; i < concurrency; i++) {
+                    clients.add(executor.submit(() -> {
+                        while (next.getAndIncrement() < requests) {
+                            long start = System.nanoTime();
+                            try {
+                                HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                                if (response.statusCode() >= 500) {
+                                    serverErrors.incrementAndGet();
+                                } else if (response.statusCode() == 200) {
+                                    ok.incrementAndGet();
+                                    if (appA.equals(instanceId(response.body()))) {
+                                        servedByA.incrementAndGet();
+                                    }
+                                }
+                            } catch (IOException e) {
+                                // reset, truncated body or client timeout
+                                failed.incrementAndGet();
+                            }
+                            latency.record((System.nanoTime() - start) / 1_000);
+                        }
+                        return null;
+                    }));
+                }
+            }
+            for (Future<?> future : clients) {
+                future.get();
+            }
+            if (healthy < 0) {
+                healthy = ok.get();
+            }
+
+            result.append(String.format("| %-20s | %-7.1f | %-7.1f | %-10.1f | %-19.1f | %-8.2f | %-8.2f | %-8.2f |%n",
+                    scenario.getKey(),
+                    100.0 * ok.get() / requests,
+                    100.0 * serverErrors.get() / requests,
+                    100.0 * failed.get() / requests,
+                    ok.get() == 0 ? 0 : 100.0 * servedByA.get() / ok.get(),
+                    latency.percentile(50) / 1_000.0,
+                    latency.percentile(99) / 1_000.0,
+                    latency.max() / 1_000.0));
+        }
+        script(client, "");
+        System.out.println(result);
+
+        assertEquals(requests, healthy); // no faults, no failures
+    }
+
+    private void script(HttpClient client, String script) throws IOException, InterruptedException {
+        HttpRequest put = HttpRequest.newBuilder()
+                .uri(URI.create(appAUrl(EchoServer.FAULTS)))
+                .PUT(HttpRequest.BodyPublishers.ofString(script))
+                .build();
+        assertEquals(200, client.send(put, HttpResponse.BodyHandlers.discarding()).statusCode());
+    }
+
+    // instance ID of the upstream behind the given direct URL
+    private String instance(HttpClient client, URI uri) throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder().uri(uri).GET().build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode());
+        return instanceId(response.body());
+    }
+
+    private String instanceId(String responseBody) {
+        Matcher matcher = INSTANCE_ID.matcher(responseBody);
+        if (matcher.find()) {
+            return matcher.group(1);
+        }
+        return null;
+    }
+}
@@ -4,6 +4,7 @@ import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
@@ -44,6 +45,11 @@ class GuaranteedDeliveryOnFailedUpstreamTest {
     private GenericContainer<?> proxyContainer;
     private static final Network NETWORK = Network.newNetwork();
 
+    @Autowired
+    private ClientMetrics metrics;
+    @Autowired
+    private Report report;
+
     String url() {
         return String.format("http://%s:%d%s", proxyContainer.getHost(), proxyContainer.getMappedPort(PROXY_PORT), APP_ENDPOINT);
     }
@@ -114,9 +120,11 @@ class GuaranteedDeliveryOnFailedUpstreamTest {
         RestTemplate client = new RestTemplate();
         for (int i = 0; i < requests; i++) {
             if (i == requests / 2) {
+                report.event("Guaranteed delivery GET @ " + proxyImage(), "stop " + APP_A_NAME);
                 appAContainer.stop();
             }
-            ResponseEntity<String> response = client.exchange(url(), HttpMethod.GET, null, String.class);
+            ResponseEntity<String> response = metrics.exchange(proxyImage(), "Guaranteed delivery GET",
+                    () -> client.exchange(url(), HttpMethod.GET, null, String.class), this::getInstanceId);
             assertEquals(200, response.getStatusCode().value());
             assertNotNull(response.getBody());
             stats.compute(getInstanceId(response.getBody()), (k, v) -> v == null ? 1 : v + 1);
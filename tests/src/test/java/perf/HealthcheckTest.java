@@ -0,0 +1,277 @@
+package perf;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.testcontainers.containers.BindMode;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.Network;
+import org.testcontainers.containers.wait.strategy.Wait;
+import org.testcontainers.utility.DockerImageName;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Probes the healthcheck on port 9100 at a high rate, first idle and then while clients saturate the data path.
+ * Swarm restarts a task after a number of failed probes in a row, so the longest run of failures matters as much as
+ * the latency.
+ */
+@SpringBootTest
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class HealthcheckTest {
+    @Value("${health.clients:200}")
+    private int clients;
+    // seconds per phase
+    @Value("${health.duration:30}")
+    private int durationSeconds;
+    // milliseconds between probes
+    @Value("${health.interval:100}")
+    private int intervalMillis;
+    // milliseconds a probe may take, as the healthcheck timeout of the service
+    @Value("${health.timeout:1000}")
+    private int timeoutMillis;
+    // failed probes in a row that get a task restarted
+    @Value("${health.retries:3}")
+    private int retries;
+
+    // app
+    static final String APP_NAME = "app";
+    static final int APP_PORT = 9000;
+    // each saturating request echoes a body of this size
+    static final int BODY = 64 * 1024;
+
+    // proxy
+    static final int PROXY_PORT = 8080;
+    static final int HEALTHCHECK_PORT = 9100;
+
+    // Docker
+    GenericContainer<?> appContainer;
+    private GenericContainer<?> proxyContainer;
+    private static final Network NETWORK = Network.newNetwork();
+
+    enum Outcome {UP, DOWN, TIMEOUT, ERROR}
+
+    static final class Probes {
+        final Histogram latency = new Histogram();
+        final long[] outcomes = new long[Outcome.values().length];
+        int streak;
+        int longestStreak;
+
+        void add(Outcome outcome, long micros) {
+            outcomes[outcome.ordinal()]++;
+            if (outcome == Outcome.UP) {
+                latency.record(micros);
+                streak = 0;
+            } else {
+                longestStreak = Math.max(longestStreak, ++streak);
+            }
+        }
+
+        long count(Outcome outcome) {
+            return outcomes[outcome.ordinal()];
+        }
+    }
+
+    String apiUrl(String path) {
+        return String.format("http://%s:%d%s", proxyContainer.getHost(), proxyContainer.getMappedPort(PROXY_PORT), path);
+    }
+
+    @BeforeAll
+    void setup() {
+        appContainer = new GenericContainer<>(DockerImageName.parse(appImage()))
+                .withExposedPorts(APP_PORT)
+                .withNetwork(NETWORK)
+                .withNetworkAliases(APP_NAME)
+                .withLabels(Map.of(
+                        "com.docker.compose.service", APP_NAME,
+                        "millau.enabled", "true",
+                        "millau.port", "" + APP_PORT,
+                        "millau.path", "/rest/"
+                ))
+                .waitingFor(Wait.forListeningPort().withStartupTimeout(Duration.ofSeconds(5)));
+        appContainer.start();
+
+        proxyContainer = new GenericContainer<>(DockerImageName.parse(proxyImage()))
+                .withExposedPorts(PROXY_PORT, HEALTHCHECK_PORT)
+                .withNetwork(NETWORK)
+                .withEnv("HTTP", ":" + PROXY_PORT)
+                .withFileSystemBind("/var/run/docker.sock", "/var/run/docker.sock", BindMode.READ_ONLY)
+                .waitingFor(Wait.forListeningPort().withStartupTimeout(Duration.ofSeconds(5)));
+        proxyContainer.start();
+    }
+
+    @AfterAll
+    void tearDown() {
+        if (proxyContainer != null) {
+            proxyContainer.stop();
+        }
+        if (appContainer != null) {
+            appContainer.stop();
+        }
+    }
+
+    String proxyImage() {
+        return "codelev/millau:test";
+    }
+
+    String appImage() {
+        return Upstream.image();
+    }
+
+    @Test
+    void underSaturation() throws Exception {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        HttpRequest request = HttpRequest.newBuilder(URI.create(apiUrl("/rest/echo")))
+                .header("Content-Type", "application/octet-stream")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(new byte[BODY]))
+                .build();
+        assertEquals(200, client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode());
+
+        Probes idle = probe(null);
+        Histogram traffic = new Histogram();
+        AtomicLong errors = new AtomicLong();
+        Probes saturated = probe(deadline -> {
+            long sent;
+            while ((sent = System.nanoTime()) < deadline) {
+                try {
+                    if (client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() != 200) {
+                        errors.incrementAndGet();
+                    }
+                    traffic.record((System.nanoTime() - sent) / 1_000);
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                }
+            }
+        });
+
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("### Healthcheck under saturation: %s%n%n", proxyImage()));
+        result.append(String.format("A probe every %d ms for %d s, %d ms timeout; saturated by %d clients echoing %d KB: %.0f req/s, p99 %.2f ms, %d errors%n%n",
+                intervalMillis, durationSeconds, timeoutMillis, clients, BODY / 1024,
+                traffic.count() / (double) durationSeconds, traffic.percentile(99) / 1_000.0, errors.get()));
+        result.append("| Phase     | Probes | up     | down   | Timeouts | Errors | p50 (ms) | p99 (ms) | p99.9 (ms) | Max (ms) | Longest failing streak |\n");
+        result.append("|-----------|--------|--------|--------|----------|--------|----------|----------|------------|----------|------------------------|\n");
+        row(result, "idle", idle);
+        row(result, "saturated", saturated);
+        System.out.println(result);
+
+        for (Probes probes : List.of(idle, saturated)) {
+            assertEquals(0, probes.count(Outcome.DOWN));
+            assertTrue(probes.longestStreak < retries, "a task would have been restarted after " + probes.longestStreak + " failed probes");
+        }
+    }
+
+    interface Load {
+        void run(long deadline) throws Exception;
+    }
+
+    // probes for the duration, with clients running the load on the side unless null
+    private Probes probe(Load load) throws Exception {
+        Probes probes = new Probes();
+        long deadline = System.nanoTime() + durationSeconds * 1_000_000_000L;
+        List<Future<?>> running = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            if (load != null) {
+                for (int i = 0; i < clients; i++) {
+                    running.add(executor.submit(() -> {
+                        load.run(deadline);
+                        return null;
+                    }));
+                }
+            }
+            // probes on the test's platform thread, not queued behind the clients' virtual threads
+            long next = System.nanoTime();
+            while (next < deadline) {
+                long start = System.nanoTime();
+                Outcome outcome = probe();
+                probes.add(outcome, (System.nanoTime() - start) / 1_000);
+                next += intervalMillis * 1_000_000L;
+                Thread.sleep(Math.max(0, (next - System.nanoTime()) / 1_000_000));
+            }
+        }
+        for (Future<?> future : running) {
+            future.get();
+        }
+        return probes;
+    }
+
+    // one probe on a fresh connection, as Docker runs them
+    private Outcome probe() {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(proxyContainer.getHost(), proxyContainer.getMappedPort(HEALTHCHECK_PORT)), timeoutMillis);
+            socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            while (true) {
+                int timeout = (int) ((deadline - System.nanoTime()) / 1_000_000);
+                if (timeout <= 0) {
+                    return Outcome.TIMEOUT;
+                }
+                socket.setSoTimeout(timeout);
+                int read = in.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                response.write(buffer, 0, read);
+            }
+            String text = response.toString(StandardCharsets.ISO_8859_1);
+            int body = text.indexOf("\r\n\r\n");
+            if (!text.startsWith("HTTP/1.1 ") || body < 0) {
+                return Outcome.ERROR;
+            }
+            if (text.startsWith("HTTP/1.1 200") && text.substring(body + 4).trim().equals("up")) {
+                return Outcome.UP;
+            }
+            return text.substring(body + 4).trim().equals("down") ? Outcome.DOWN : Outcome.ERROR;
+        } catch (SocketTimeoutException e) {
+            return Outcome.TIMEOUT;
+        } catch (IOException e) {
+            return Outcome.ERROR;
+        }
+    }
+
+    private static void row(StringBuilder result, String phase, Probes probes) {
+        long count = 0;
+        for (long outcome : probes.outcomes) {
+            count += outcome;
+        }
+        result.append(String.format("| %-9s | %-6d | %-6d | %-6d | %-8d | %-6d | %-8.2f | %-8.2f | %-10.2f | %-8.2f | %-22d |%n",
+                phase,
+                count,
+                probes.count(Outcome.UP),
+                probes.count(Outcome.DOWN),
+                probes.count(Outcome.TIMEOUT),
+                probes.count(Outcome.ERROR),
+                probes.latency.percentile(50) / 1_000.0,
+                probes.latency.percentile(99) / 1_000.0,
+                probes.latency.percentile(99.9) / 1_000.0,
+                probes.latency.max() / 1_000.0,
+                probes.longestStreak));
+    }
+}
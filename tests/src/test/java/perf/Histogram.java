@@ -0,0 +1,143 @@
+package perf;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent log-linear histogram of non-negative values, microseconds by convention.
+ * Values below 64 are exact, larger values fall into 32 sub-buckets per power of two (~3% relative error).
+ */
+final class Histogram {
+    private static final int SUB_BITS = 5;
+    private static final int HALF = 1 << SUB_BITS;
+    static final int BUCKETS = (64 - SUB_BITS) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+        long v = Math.max(0, value);
+        counts.incrementAndGet(index(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+        min.accumulateAndGet(v, Math::min);
+        max.accumulateAndGet(v, Math::max);
+    }
+
+    void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        count.addAndGet(other.count());
+        sum.addAndGet(other.sum.get());
+        if (other.count() > 0) {
+            min.accumulateAndGet(other.min(), Math::min);
+            max.accumulateAndGet(other.max(), Math::max);
+        }
+    }
+
+    long count() {
+        return count.get();
+    }
+
+    long countAt(int bucket) {
+        return counts.get(bucket);
+    }
+
+    long min() {
+        return count() == 0 ? 0 : min.get();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    double mean() {
+        long n = count();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    // highest value equivalent to the percentile's bucket, never above the recorded maximum
+    long percentile(double percentile) {
+        long n = count();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.max(min(), Math.min(upperBound(i), max()));
+            }
+        }
+        return max();
+    }
+
+    // recorded counts by bucket, see index
+    long[] counts() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * A histogram restored from its bucket counts, its minimum, maximum and sum at bucket resolution.
+     */
+    static Histogram of(long[] bucketCounts) {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < bucketCounts.length; i++) {
+            long c = bucketCounts[i];
+            if (c != 0) {
+                histogram.counts.addAndGet(i, c);
+                histogram.count.addAndGet(c);
+                histogram.sum.addAndGet(c * ((lowerBound(i) + upperBound(i)) / 2));
+                histogram.min.accumulateAndGet(lowerBound(i), Math::min);
+                histogram.max.accumulateAndGet(upperBound(i), Math::max);
+            }
+        }
+        return histogram;
+    }
+
+    // count of recorded values not greater than the given value, at bucket resolution
+    long countAtOrBelow(long value) {
+        int last = index(Math.max(0, value));
+        long seen = 0;
+        for (int i = 0; i < last; i++) {
+            seen += counts.get(i);
+        }
+        return seen + counts.get(last);
+    }
+
+    static int index(long value) {
+        if (value < 2 * HALF) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * HALF + (int) ((value >>> shift) - HALF);
+    }
+
+    static long lowerBound(int index) {
+        if (index < 2 * HALF) {
+            return index;
+        }
+        int shift = index / HALF - 1;
+        return (long) (index % HALF + HALF) << shift;
+    }
+
+    static long upperBound(int index) {
+        if (index < 2 * HALF) {
+            return index;
+        }
+        int shift = index / HALF - 1;
+        return ((long) (index % HALF + HALF + 1) << shift) - 1;
+    }
+}
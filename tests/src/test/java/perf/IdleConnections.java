@@ -0,0 +1,507 @@
+package perf;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds many idle keep-alive connections on one selector thread: each connection sends one request, reads the response
+ * and then stays open, watched only for the peer closing it. With TLS the handshake is driven by an {@link SSLEngine},
+ * which is dropped with the buffers once the connection is idle, so an idle connection costs the client a socket and
+ * little else. Connections to a loopback address spread over 127.0.0.x source addresses, ephemeral ports run out at
+ * about 28k per source address. Other connections share the host's address, so one destination port takes at most
+ * {@code net.ipv4.ip_local_port_range} of them.
+ */
+final class IdleConnections implements AutoCloseable {
+    // connections per source address
+    private static final int PER_SOURCE = 25_000;
+    private static final int MAX_RESPONSE = 1024 * 1024;
+    // connections opened by all instances, picks the source address
+    private static final AtomicLong ATTEMPTS = new AtomicLong();
+
+    private enum State {CONNECTING, HANDSHAKE, REQUEST, RESPONSE, IDLE}
+
+    private final class Connection {
+        final SocketChannel channel;
+        final Batch batch;
+        State state = State.CONNECTING;
+        SSLEngine engine;
+        // plain request bytes not yet sent
+        ByteBuffer request = ByteBuffer.wrap(IdleConnections.this.request);
+        // network bytes to send, in read mode
+        ByteBuffer out;
+        // network bytes received, in write mode
+        ByteBuffer in;
+        // response bytes, in write mode
+        ByteBuffer response = ByteBuffer.allocate(8 * 1024);
+
+        Connection(SocketChannel channel, Batch batch) {
+            this.channel = channel;
+            this.batch = batch;
+        }
+    }
+
+    private final class Batch {
+        final CountDownLatch done;
+        final Set<Connection> connecting = new HashSet<>();
+        int remaining;
+
+        Batch(int count) {
+            done = new CountDownLatch(count);
+            remaining = count;
+        }
+    }
+
+    private final InetSocketAddress target;
+    private final SSLContext tls;
+    private final String serverName;
+    private final byte[] request;
+    private final List<InetAddress> sources = new ArrayList<>();
+    private final Selector selector;
+    private final Thread loop;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger established = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger dropped = new AtomicInteger();
+    private final ByteBuffer discard = ByteBuffer.allocateDirect(64 * 1024);
+    private final List<Batch> batches = new ArrayList<>();
+    private int parallel;
+    private int connecting;
+    private volatile boolean running = true;
+
+    /**
+     * @param tls        null for plain HTTP
+     * @param serverName sent as SNI and {@code Host}
+     * @param path       requested once per connection
+     */
+    IdleConnections(String host, int port, SSLContext tls, String serverName, String path) throws IOException {
+        this.target = new InetSocketAddress(host, port);
+        this.tls = tls;
+        this.serverName = serverName;
+        this.request = ("GET " + path + " HTTP/1.1\r\nHost: " + serverName + "\r\nConnection: keep-alive\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        if (target.getAddress().isLoopbackAddress() && bindable(InetAddress.getByAddress(new byte[]{127, 0, 0, 2}))) {
+            for (int i = 1; i < 255; i++) {
+                sources.add(InetAddress.getByAddress(new byte[]{127, 0, 0, (byte) i}));
+            }
+        }
+        this.selector = Selector.open();
+        this.loop = Thread.ofPlatform().daemon().name("idle-connections-" + port).start(this::loop);
+    }
+
+    /**
+     * Opens more connections, at most {@code parallel} being set up at once, and waits until each of them is idle or has
+     * failed. Connections still being set up at the timeout are closed and count as failed.
+     *
+     * @return connections that became idle
+     */
+    int open(int count, int parallel, Duration timeout) throws InterruptedException {
+        int before = established.get();
+        Batch batch = new Batch(count);
+        submit(() -> {
+            this.parallel = parallel;
+            batches.add(batch);
+            connect();
+        });
+        if (!batch.done.await(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+            CountDownLatch abandoned = new CountDownLatch(1);
+            submit(() -> {
+                batches.remove(batch);
+                for (int i = 0; i < batch.remaining; i++) {
+                    failed.incrementAndGet();
+                    batch.done.countDown();
+                }
+                batch.remaining = 0;
+                for (Connection connection : new ArrayList<>(batch.connecting)) {
+                    fail(connection);
+                }
+                abandoned.countDown();
+            });
+            abandoned.await();
+        }
+        return established.get() - before;
+    }
+
+    // idle connections the peer has not closed
+    int held() {
+        return established.get() - dropped.get();
+    }
+
+    // idle connections closed by the peer
+    int dropped() {
+        return dropped.get();
+    }
+
+    // connections that never became idle
+    int failed() {
+        return failed.get();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            loop.join();
+        } catch (InterruptedException e) {
+            // the loop closes the connections on its own, only the wait for it is cut short
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void submit(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void loop() {
+        try {
+            while (running) {
+                selector.select(1_000);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Connection connection = (Connection) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (connection.state == State.IDLE) {
+                        idle(connection);
+                    } else {
+                        step(connection);
+                    }
+                }
+                selector.selectedKeys().clear();
+                connect();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key.channel());
+            }
+            closeQuietly(selector);
+        }
+    }
+
+    // starts connections while the batches want more and the parallelism allows
+    private void connect() {
+        while (connecting < parallel && !batches.isEmpty()) {
+            Batch batch = batches.getFirst();
+            if (batch.remaining == 0) {
+                batches.removeFirst();
+                continue;
+            }
+            batch.remaining--;
+            connecting++;
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                if (!sources.isEmpty()) {
+                    channel.bind(new InetSocketAddress(sources.get((int) (ATTEMPTS.getAndIncrement() / PER_SOURCE % sources.size())), 0));
+                }
+                Connection connection = new Connection(channel, batch);
+                batch.connecting.add(connection);
+                channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                if (channel.connect(target)) {
+                    step(connection);
+                }
+            } catch (IOException e) {
+                closeQuietly(channel);
+                connecting--;
+                failed.incrementAndGet();
+                batch.done.countDown();
+            }
+        }
+    }
+
+    private void step(Connection connection) {
+        try {
+            while (true) {
+                switch (connection.state) {
+                    case CONNECTING -> {
+                        if (!connection.channel.finishConnect()) {
+                            interest(connection, SelectionKey.OP_CONNECT);
+                            return;
+                        }
+                        if (tls == null) {
+                            connection.state = State.REQUEST;
+                        } else {
+                            connection.engine = engine();
+                            int packet = connection.engine.getSession().getPacketBufferSize();
+                            connection.out = ByteBuffer.allocate(packet).flip();
+                            connection.in = ByteBuffer.allocate(packet);
+                            connection.response = ByteBuffer.allocate(connection.engine.getSession().getApplicationBufferSize());
+                            connection.engine.beginHandshake();
+                            connection.state = State.HANDSHAKE;
+                        }
+                    }
+                    case HANDSHAKE -> {
+                        if (!flush(connection)) {
+                            return;
+                        }
+                        switch (connection.engine.getHandshakeStatus()) {
+                            case NEED_TASK -> {
+                                Runnable task;
+                                while ((task = connection.engine.getDelegatedTask()) != null) {
+                                    task.run();
+                                }
+                            }
+                            case NEED_WRAP -> wrap(connection, ByteBuffer.allocate(0));
+                            case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> {
+                                if (!unwrap(connection)) {
+                                    return;
+                                }
+                            }
+                            default -> connection.state = State.REQUEST;
+                        }
+                    }
+                    case REQUEST -> {
+                        if (tls == null) {
+                            connection.out = connection.request;
+                        } else if (connection.request.hasRemaining() && !connection.out.hasRemaining()) {
+                            wrap(connection, connection.request);
+                        }
+                        if (!flush(connection)) {
+                            return;
+                        }
+                        if (!connection.request.hasRemaining()) {
+                            connection.state = State.RESPONSE;
+                        }
+                    }
+                    case RESPONSE -> {
+                        int complete = complete(connection.response);
+                        if (complete > 0) {
+                            established(connection);
+                            return;
+                        }
+                        if (complete < 0) {
+                            fail(connection);
+                            return;
+                        }
+                        if (connection.response.remaining() < 1024) {
+                            if (connection.response.capacity() >= MAX_RESPONSE) {
+                                fail(connection);
+                                return;
+                            }
+                            connection.response = ByteBuffer.allocate(connection.response.capacity() * 2).put(connection.response.flip());
+                        }
+                        if (tls == null) {
+                            int read = connection.channel.read(connection.response);
+                            if (read < 0) {
+                                fail(connection);
+                                return;
+                            }
+                            if (read == 0) {
+                                interest(connection, SelectionKey.OP_READ);
+                                return;
+                            }
+                        } else if (!unwrap(connection)) {
+                            return;
+                        }
+                    }
+                    case IDLE -> {
+                        return;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            fail(connection);
+        }
+    }
+
+    // writes pending network bytes, false when the socket cannot take them all now
+    private boolean flush(Connection connection) throws IOException {
+        while (connection.out != null && connection.out.hasRemaining()) {
+            if (connection.channel.write(connection.out) == 0) {
+                interest(connection, SelectionKey.OP_WRITE);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void wrap(Connection connection, ByteBuffer source) throws SSLException {
+        connection.out.compact();
+        SSLEngineResult result = connection.engine.wrap(source, connection.out);
+        connection.out.flip();
+        if (result.getStatus() != SSLEngineResult.Status.OK) {
+            throw new SSLException("wrap " + result.getStatus());
+        }
+    }
+
+    // reads and unwraps, false when the socket has nothing now
+    private boolean unwrap(Connection connection) throws IOException {
+        connection.in.flip();
+        SSLEngineResult result = connection.engine.unwrap(connection.in, connection.response);
+        connection.in.compact();
+        switch (result.getStatus()) {
+            case OK -> {
+                return true;
+            }
+            case BUFFER_UNDERFLOW -> {
+                if (!connection.in.hasRemaining()) {
+                    connection.in = ByteBuffer.allocate(connection.in.capacity() * 2).put(connection.in.flip());
+                }
+                int read = connection.channel.read(connection.in);
+                if (read < 0) {
+                    throw new IOException("closed during TLS");
+                }
+                if (read == 0) {
+                    interest(connection, SelectionKey.OP_READ);
+                    return false;
+                }
+                return true;
+            }
+            case BUFFER_OVERFLOW -> {
+                if (connection.response.capacity() >= MAX_RESPONSE) {
+                    throw new IOException("response too large");
+                }
+                connection.response = ByteBuffer.allocate(connection.response.capacity() * 2).put(connection.response.flip());
+                return true;
+            }
+            default -> throw new IOException("TLS closed");
+        }
+    }
+
+    /**
+     * 1 when the buffer holds a complete 200 response, 0 when more is needed, -1 for another status.
+     * Bodies are delimited by {@code Content-Length} or the last chunk.
+     */
+    static int complete(ByteBuffer response) {
+        int length = response.position();
+        byte[] bytes = response.array();
+        int headEnd = -1;
+        for (int i = 3; i < length; i++) {
+            if (bytes[i - 3] == '\r' && bytes[i - 2] == '\n' && bytes[i - 1] == '\r' && bytes[i] == '\n') {
+                headEnd = i + 1;
+                break;
+            }
+        }
+        if (headEnd < 0) {
+            return 0;
+        }
+        String head = new String(bytes, 0, headEnd, StandardCharsets.ISO_8859_1);
+        if (!head.startsWith("HTTP/1.1 200")) {
+            return -1;
+        }
+        for (String line : head.split("\r\n")) {
+            String lower = line.toLowerCase(Locale.ROOT);
+            if (lower.startsWith("content-length:")) {
+                return length - headEnd >= Long.parseLong(lower.substring("content-length:".length()).trim()) ? 1 : 0;
+            }
+            if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
+                return new String(bytes, headEnd, length - headEnd, StandardCharsets.ISO_8859_1).endsWith("0\r\n\r\n") ? 1 : 0;
+            }
+        }
+        return 1;
+    }
+
+    private SSLEngine engine() {
+        SSLEngine engine = tls.createSSLEngine(serverName, target.getPort());
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setServerNames(List.of(new SNIHostName(serverName)));
+        engine.setSSLParameters(parameters);
+        return engine;
+    }
+
+    // the response arrived: keep the socket, drop everything else, watch for the peer closing
+    private void established(Connection connection) {
+        connection.state = State.IDLE;
+        connection.engine = null;
+        connection.request = null;
+        connection.out = null;
+        connection.in = null;
+        connection.response = null;
+        established.incrementAndGet();
+        finished(connection);
+        interest(connection, SelectionKey.OP_READ);
+    }
+
+    // reads whatever arrives on an idle connection, TLS session tickets included, until the peer closes it
+    private void idle(Connection connection) {
+        try {
+            int read;
+            do {
+                discard.clear();
+                read = connection.channel.read(discard);
+            } while (read > 0);
+            if (read == 0) {
+                return;
+            }
+        } catch (IOException e) {
+            // reset
+        }
+        dropped.incrementAndGet();
+        closeQuietly(connection.channel);
+    }
+
+    private void fail(Connection connection) {
+        closeQuietly(connection.channel);
+        failed.incrementAndGet();
+        finished(connection);
+    }
+
+    private void finished(Connection connection) {
+        if (connection.batch.connecting.remove(connection)) {
+            connecting--;
+            connection.batch.done.countDown();
+        }
+    }
+
+    private void interest(Connection connection, int ops) {
+        SelectionKey key = connection.channel.keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(ops);
+        }
+    }
+
+    // all of 127.0.0.0/8 is local on Linux, other systems only have 127.0.0.1 unless aliased
+    private static boolean bindable(InetAddress address) {
+        try (SocketChannel channel = SocketChannel.open()) {
+            channel.bind(new InetSocketAddress(address, 0));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // closing anyway
+        }
+    }
+}
@@ -4,6 +4,8 @@ import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
@@ -12,6 +14,8 @@ import org.springframework.web.client.RestTemplate;
 import java.net.URL;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -22,6 +26,10 @@ import static org.junit.jupiter.api.Assertions.assertNotNull;
 @SpringBootTest
 @TestInstance(TestInstance.Lifecycle.PER_CLASS)
 class LBDockerTest {
+    // network impairment between proxy and app, see Relay
+    @Value("${netem:}")
+    private String netem;
+
     // app
     private static final Pattern INSTANCE_ID = Pattern.compile("ID:\\s([a-f0-9\\-]{36})", Pattern.CASE_INSENSITIVE);
 
@@ -29,6 +37,9 @@ class LBDockerTest {
     static final String APP_ENDPOINT = "/rest/echo";
     static final int PROXY_PORT = 8080;
 
+    @Autowired
+    private ClientMetrics metrics;
+
     String url() {
         return String.format("http://localhost:%d%s", PROXY_PORT, APP_ENDPOINT);
     }
@@ -49,7 +60,8 @@ class LBDockerTest {
         ConcurrentHashMap<String, Integer> stats = new ConcurrentHashMap<>(2);
         RestTemplate client = new RestTemplate();
         for (int i = 0; i < requests; i++) {
-            ResponseEntity<String> response = client.exchange(url(), HttpMethod.GET, null, String.class);
+            ResponseEntity<String> response = metrics.exchange(Upstream.PROXY_IMAGE, "LB Docker GET",
+                    () -> client.exchange(url(), HttpMethod.GET, null, String.class), this::getInstanceId);
             assertEquals(200, response.getStatusCode().value());
             assertNotNull(response.getHeaders().get("Via"));
             assertNotNull(response.getHeaders().get("X-Backend-Server"));
@@ -72,9 +84,11 @@ class LBDockerTest {
     }
 
     private void deployStack() throws Exception {
-        URL resource = getClass().getClassLoader().getResource("docker-compose." + STACK_NAME + ".yml");
-        Path path = Paths.get(resource.getPath());
-        ProcessBuilder pb = new ProcessBuilder("docker", "compose", "-f", path.toString(), "up", "-d");
+        ProcessBuilder pb = new ProcessBuilder(compose("up", "-d"));
+        if (Netem.enabled(netem)) {
+            Upstream.image();
+            pb.environment().put("NETEM", netem);
+        }
         pb.inheritIO();
         Process p = pb.start();
         p.waitFor();
@@ -82,12 +96,26 @@ class LBDockerTest {
     }
 
     private void removeStack() throws Exception {
-        URL resource = getClass().getClassLoader().getResource("docker-compose." + STACK_NAME + ".yml");
-        Path path = Paths.get(resource.getPath());
-        ProcessBuilder pb = new ProcessBuilder("docker", "compose", "-f", path.toString(), "down");
+        ProcessBuilder pb = new ProcessBuilder(compose("down"));
+        pb.environment().put("NETEM", netem);
         pb.inheritIO();
         Process p = pb.start();
         p.waitFor();
         Thread.sleep(5_000);
     }
+
+    private List<String> compose(String... command) {
+        List<String> args = new ArrayList<>(List.of("docker", "compose", "-f", file(STACK_NAME)));
+        if (Netem.enabled(netem)) {
+            args.addAll(List.of("-f", file("netem")));
+        }
+        args.addAll(List.of(command));
+        return args;
+    }
+
+    private String file(String name) {
+        URL resource = getClass().getClassLoader().getResource("docker-compose." + name + ".yml");
+        Path path = Paths.get(resource.getPath());
+        return path.toString();
+    }
 }
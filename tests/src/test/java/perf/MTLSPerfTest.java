@@ -0,0 +1,440 @@
+package perf;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.testcontainers.containers.BindMode;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.Network;
+import org.testcontainers.containers.wait.strategy.Wait;
+import org.testcontainers.utility.DockerImageName;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedKeyManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Measures the cost of client certificate authentication: plain HTTPS vs mTLS with a short and a long client chain.
+ * For the mTLS scenarios the upstream is restarted with a label giving the proxy the CA to verify client certificates
+ * with, and a client without a certificate must then be turned away.
+ */
+@SpringBootTest
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class MTLSPerfTest {
+    @Value("${mtls.duration:10}")
+    private int durationSeconds;
+    @Value("${mtls.concurrency:8}")
+    private int concurrency;
+    @Value("${mtls.requests:500}")
+    private int requests;
+    // intermediates in the long client chain
+    @Value("${mtls.chain:5}")
+    private int chainLength;
+    // label that makes the proxy require client certificates issued by the CA it holds
+    @Value("${mtls.ca.label:millau.ca}")
+    private String caLabel;
+
+    // app
+    static final String APP_NAME = "app";
+    static final int APP_PORT = 9000;
+    static final String APP_ENDPOINT = "/rest/echo";
+    static final String HOST = "localhost";
+
+    // proxy
+    static final int PROXY_PORT = 8443;
+
+    // Docker
+    GenericContainer<?> appContainer;
+    private GenericContainer<?> proxyContainer;
+    private static final Network NETWORK = Network.newNetwork();
+
+    // the scenario without a client certificate
+    static final String PLAIN = "HTTPS";
+
+    private Certificates.Issued authority;
+    private Certificates.Issued server;
+    // whether the running upstream carries the CA label
+    private boolean clientAuth;
+    private final Map<String, SSLContext> scenarios = new LinkedHashMap<>();
+    // sockets that verified the proxy's certificate, which only happens in a full handshake
+    private final Set<Socket> verified = ConcurrentHashMap.newKeySet();
+    // sockets the proxy asked for a client certificate, also only in a full handshake
+    private final Set<Socket> asked = ConcurrentHashMap.newKeySet();
+
+    String url() {
+        return String.format("https://%s:%d%s", HOST, proxyContainer.getMappedPort(PROXY_PORT), APP_ENDPOINT);
+    }
+
+    @BeforeAll
+    void setup() throws Exception {
+        authority = Certificates.authority("Millau Test CA");
+        server = Certificates.leaf(authority, HOST, HOST);
+        app(false);
+
+        proxyContainer = new GenericContainer<>(DockerImageName.parse(proxyImage()))
+                .withExposedPorts(PROXY_PORT)
+                .withNetwork(NETWORK)
+                .withEnv("HTTPS", ":" + PROXY_PORT)
+                .withFileSystemBind("/var/run/docker.sock", "/var/run/docker.sock", BindMode.READ_ONLY)
+                .waitingFor(Wait.forListeningPort().withStartupTimeout(Duration.ofSeconds(5)));
+        proxyContainer.start();
+
+        Certificates.Issued shortChain = Certificates.leaf(authority, "client-short");
+        Certificates.Issued issuer = authority;
+        for (int i = 0; i < chainLength; i++) {
+            issuer = Certificates.intermediate(issuer, "intermediate-" + i);
+        }
+        Certificates.Issued longChain = Certificates.leaf(issuer, "client-long");
+
+        X509Certificate ca = authority.certificate();
+        scenarios.put(PLAIN, context(null, null, ca));
+        scenarios.put("mTLS, chain of " + shortChain.chain().size(), context(chain(shortChain), shortChain.key(), ca));
+        scenarios.put("mTLS, chain of " + longChain.chain().size(), context(chain(longChain), longChain.key(), ca));
+    }
+
+    // (re)starts the upstream, with clientAuth its labels make the proxy require client certificates
+    private void app(boolean clientAuth) {
+        if (appContainer != null) {
+            appContainer.stop();
+        }
+        Map<String, String> labels = new HashMap<>(Map.of(
+                "com.docker.compose.service", APP_NAME,
+                "millau.enabled", "true",
+                "millau.port", "" + APP_PORT,
+                "millau.path", "/rest/",
+                "millau.hosts", HOST,
+                "millau.cert", server.certLabel(),
+                "millau.key", server.keyLabel()
+        ));
+        if (clientAuth) {
+            labels.put(caLabel, authority.certLabel());
+        }
+        appContainer = new GenericContainer<>(DockerImageName.parse(appImage()))
+                .withExposedPorts(APP_PORT)
+                .withNetwork(NETWORK)
+                .withNetworkAliases(APP_NAME)
+                .withLabels(labels)
+                .waitingFor(Wait.forListeningPort().withStartupTimeout(Duration.ofSeconds(5)));
+        appContainer.start();
+        this.clientAuth = clientAuth;
+    }
+
+    @AfterAll
+    void tearDown() {
+        if (proxyContainer != null) {
+            proxyContainer.stop();
+        }
+        if (appContainer != null) {
+            appContainer.stop();
+        }
+    }
+
+    String proxyImage() {
+        return "codelev/millau:test";
+    }
+
+    String appImage() {
+        return "codelev/echo-spring:latest";
+    }
+
+    @Test
+    void overhead() throws Exception {
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("### mTLS overhead: %s%n%n", proxyImage()));
+        result.append(String.format("`GET %s` new connections: %d s x %d clients, reused connection: %d requests%n%n", url(), durationSeconds, concurrency, requests));
+        result.append("| Scenario             | Handshakes/s | Full handshake p50 (ms) | Resumed handshake p50 (ms) | Request p50 (ms) | Request p99 (ms) | Proxy CPU per handshake (ms) |\n");
+        result.append("|----------------------|--------------|-------------------------|----------------------------|------------------|------------------|------------------------------|\n");
+        for (Map.Entry<String, SSLContext> scenario : scenarios.entrySet()) {
+            SSLContext context = scenario.getValue();
+            boolean mutual = !scenario.getKey().equals(PLAIN);
+            if (mutual != clientAuth) {
+                app(mutual);
+                routed(context);
+                if (mutual) {
+                    assertFalse(served(scenarios.get(PLAIN)), "a client without a certificate was served, " + caLabel + " did not enable client authentication");
+                }
+            }
+
+            Histogram full = new Histogram();
+            long cpuBefore = ContainerStats.sample(proxyContainer).cpuNanos();
+            long handshakes = connections(context, full, mutual, false);
+            long cpu = ContainerStats.sample(proxyContainer).cpuNanos() - cpuBefore;
+
+            // a session to resume, created before any measured handshake starts
+            connection(context, mutual, true, true);
+            Histogram resumed = new Histogram();
+            connections(context, resumed, mutual, true);
+
+            Histogram request = new Histogram();
+            HttpClient client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .sslContext(context)
+                    .build();
+            HttpRequest req = HttpRequest.newBuilder().uri(URI.create(url())).GET().build();
+            // the first request pays for the handshake
+            assertEquals(200, client.send(req, HttpResponse.BodyHandlers.discarding()).statusCode());
+            for (int i = 0; i < requests; i++) {
+                long start = System.nanoTime();
+                HttpResponse<Void> response = client.send(req, HttpResponse.BodyHandlers.discarding());
+                long end = System.nanoTime();
+                assertEquals(200, response.statusCode());
+                request.record((end - start) / 1_000);
+            }
+
+            result.append(String.format("| %-20s | %-12.1f | %-23.2f | %-26.2f | %-16.2f | %-16.2f | %-28.3f |%n",
+                    scenario.getKey(),
+                    handshakes / (double) durationSeconds,
+                    full.percentile(50) / 1_000.0,
+                    resumed.percentile(50) / 1_000.0,
+                    request.percentile(50) / 1_000.0,
+                    request.percentile(99) / 1_000.0,
+                    handshakes == 0 ? 0 : cpu / 1_000_000.0 / handshakes));
+        }
+        System.out.println(result);
+    }
+
+    // opens connections for the configured duration, each one handshakes and sends a single request
+    private long connections(SSLContext context, Histogram handshakes, boolean mutual, boolean resume) throws Exception {
+        long deadline = System.nanoTime() + durationSeconds * 1_000_000_000L;
+        AtomicLong count = new AtomicLong();
+        List<Future<?>> clients = new ArrayList<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(concurrency)) {
+            for (int i = 0; i < concurrency; i++) {
+                clients.add(executor.submit(() -> {
+                    while (System.nanoTime() < deadline) {
+                        handshakes.record(connection(context, mutual, resume, false));
+                        count.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+        }
+        for (Future<?> client : clients) {
+            client.get();
+        }
+        return count.get();
+    }
+
+    /**
+     * Handshake duration in microseconds. With {@code mutual} the proxy must have asked for the client certificate and
+     * got it, otherwise the scenario would measure plain HTTPS. A handshake is a full one when the proxy's certificate
+     * was verified, which a resumed one skips; it must be resumed with {@code resume} and full without, the
+     * {@code priming} connection that creates the session to resume is not checked.
+     */
+    private long connection(SSLContext context, boolean mutual, boolean resume, boolean priming) throws Exception {
+        try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(HOST, proxyContainer.getMappedPort(PROXY_PORT))) {
+            long start = System.nanoTime();
+            socket.startHandshake();
+            long end = System.nanoTime();
+            SSLSession session = socket.getSession();
+            boolean full = verified.remove(socket);
+            boolean certificateRequested = asked.remove(socket);
+            if (mutual) {
+                assertTrue(!full || certificateRequested, "the proxy did not ask for a client certificate");
+                assertNotNull(session.getLocalCertificates(), "no client certificate sent");
+            }
+            if (!priming) {
+                assertEquals(!resume, full, resume ? "full handshake where a resumed one was expected" : "resumed handshake where a full one was expected");
+            }
+
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + APP_ENDPOINT + " HTTP/1.1\r\nHost: " + HOST + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            String status = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+            assertTrue(status != null && status.startsWith("HTTP/1.1 200"), status);
+            if (!resume) {
+                session.invalidate();
+            }
+            return (end - start) / 1_000;
+        }
+    }
+
+    // whether a connection with the context gets a 2xx, a rejected client certificate fails the handshake or the read
+    private boolean served(SSLContext context) {
+        try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(HOST, proxyContainer.getMappedPort(PROXY_PORT))) {
+            try {
+                socket.startHandshake();
+                OutputStream out = socket.getOutputStream();
+                out.write(("GET " + APP_ENDPOINT + " HTTP/1.1\r\nHost: " + HOST + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                String status = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+                return status != null && status.startsWith("HTTP/1.1 2");
+            } finally {
+                verified.remove(socket);
+                asked.remove(socket);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // until the proxy has discovered the restarted upstream
+    private void routed(SSLContext context) throws Exception {
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .sslContext(context)
+                .build();
+        HttpRequest req = HttpRequest.newBuilder().uri(URI.create(url())).GET().build();
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (true) {
+            try {
+                if (client.send(req, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                    return;
+                }
+            } catch (IOException e) {
+                // not routed yet
+            }
+            if (System.nanoTime() > deadline) {
+                fail("the proxy does not route to the restarted " + APP_NAME);
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    // the managers of the scenario, observed to tell full handshakes from resumed ones
+    private SSLContext context(X509Certificate[] chain, PrivateKey key, X509Certificate ca) throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(new KeyManager[]{new ObservedKeyManager((X509ExtendedKeyManager) TLSSharingTest.keyManagers(chain, key)[0], asked)},
+                new TrustManager[]{new ObservedTrustManager((X509ExtendedTrustManager) TLSSharingTest.trustManagers(ca)[0], verified)},
+                null);
+        return context;
+    }
+
+    private static X509Certificate[] chain(Certificates.Issued issued) {
+        return issued.chain().toArray(new X509Certificate[0]);
+    }
+
+    // notes the sockets whose server asked for a client certificate
+    static final class ObservedKeyManager extends X509ExtendedKeyManager {
+        private final X509ExtendedKeyManager delegate;
+        private final Set<Socket> asked;
+
+        ObservedKeyManager(X509ExtendedKeyManager delegate, Set<Socket> asked) {
+            this.delegate = delegate;
+            this.asked = asked;
+        }
+
+        @Override
+        public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+            asked.add(socket);
+            return delegate.chooseClientAlias(keyType, issuers, socket);
+        }
+
+        @Override
+        public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine) {
+            return delegate.chooseEngineClientAlias(keyType, issuers, engine);
+        }
+
+        @Override
+        public String[] getClientAliases(String keyType, Principal[] issuers) {
+            return delegate.getClientAliases(keyType, issuers);
+        }
+
+        @Override
+        public String[] getServerAliases(String keyType, Principal[] issuers) {
+            return delegate.getServerAliases(keyType, issuers);
+        }
+
+        @Override
+        public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+            return delegate.chooseServerAlias(keyType, issuers, socket);
+        }
+
+        @Override
+        public X509Certificate[] getCertificateChain(String alias) {
+            return delegate.getCertificateChain(alias);
+        }
+
+        @Override
+        public PrivateKey getPrivateKey(String alias) {
+            return delegate.getPrivateKey(alias);
+        }
+    }
+
+    // notes the sockets that verified the server's certificate
+    static final class ObservedTrustManager extends X509ExtendedTrustManager {
+        private final X509ExtendedTrustManager delegate;
+        private final Set<Socket> verified;
+
+        ObservedTrustManager(X509ExtendedTrustManager delegate, Set<Socket> verified) {
+            this.delegate = delegate;
+            this.verified = verified;
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+            delegate.checkServerTrusted(chain, authType, socket);
+            verified.add(socket);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+            delegate.checkServerTrusted(chain, authType, engine);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            delegate.checkServerTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+            delegate.checkClientTrusted(chain, authType, socket);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+            delegate.checkClientTrusted(chain, authType, engine);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            delegate.checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return delegate.getAcceptedIssuers();
+        }
+    }
+}
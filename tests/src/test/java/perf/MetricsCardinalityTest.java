@@ -0,0 +1,294 @@
+package perf;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.testcontainers.containers.BindMode;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.Network;
+import org.testcontainers.containers.wait.strategy.Wait;
+import org.testcontainers.utility.DockerImageName;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Traffic across services, methods and status codes multiplies the proxy's series. For each number of services the
+ * test reports the size and latency of {@code /metrics} and the p99 of proxied traffic with and without a scrape every
+ * interval.
+ */
+@SpringBootTest
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class MetricsCardinalityTest {
+    @Value("${cardinality.services:1,10,50}")
+    private int[] levels;
+    @Value("${cardinality.codes:200,404,500,503}")
+    private int[] codes;
+    @Value("${cardinality.clients:20}")
+    private int clients;
+    // seconds of traffic with and without scrapes per step
+    @Value("${cardinality.duration:15}")
+    private int durationSeconds;
+    // milliseconds between scrapes
+    @Value("${cardinality.scrape.interval:1000}")
+    private int scrapeMillis;
+
+    // app
+    static final String APP_NAME = "app";
+    static final int APP_PORT = 9000;
+    static final String[] METHODS = {"GET", "POST", "PUT", "DELETE"};
+    // idle scrapes measured per step
+    static final int SCRAPES = 20;
+
+    // proxy
+    static final int PROXY_PORT = 8080;
+    static final int HEALTHCHECK_PORT = 9100;
+
+    // Docker
+    final List<GenericContainer<?>> appContainers = new ArrayList<>();
+    private GenericContainer<?> proxyContainer;
+    private static final Network NETWORK = Network.newNetwork();
+
+    // each service owns a path below the echo, which the upstream answers
+    static String servicePath(int service) {
+        return EchoServer.ECHO + "/" + APP_NAME + service + "/";
+    }
+
+    String apiUrl(String path) {
+        return String.format("http://%s:%d%s", proxyContainer.getHost(), proxyContainer.getMappedPort(PROXY_PORT), path);
+    }
+
+    String metricsUrl() {
+        return String.format("http://%s:%d/metrics", proxyContainer.getHost(), proxyContainer.getMappedPort(HEALTHCHECK_PORT));
+    }
+
+    @BeforeAll
+    void setup() {
+        proxyContainer = new GenericContainer<>(DockerImageName.parse(proxyImage()))
+                .withExposedPorts(PROXY_PORT, HEALTHCHECK_PORT)
+                .withNetwork(NETWORK)
+                .withEnv("HTTP", ":" + PROXY_PORT)
+                .withFileSystemBind("/var/run/docker.sock", "/var/run/docker.sock", BindMode.READ_ONLY)
+                .waitingFor(Wait.forListeningPort().withStartupTimeout(Duration.ofSeconds(5)));
+        proxyContainer.start();
+    }
+
+    @AfterAll
+    void tearDown() {
+        if (proxyContainer != null) {
+            proxyContainer.stop();
+        }
+        for (GenericContainer<?> appContainer : appContainers) {
+            appContainer.stop();
+        }
+    }
+
+    String proxyImage() {
+        return "codelev/millau:test";
+    }
+
+    String appImage() {
+        return Upstream.image();
+    }
+
+    // starts services up to the count, a small heap keeps a hundred of them affordable
+    private void services(int count) {
+        for (int i = appContainers.size(); i < count; i++) {
+            GenericContainer<?> appContainer = new GenericContainer<>(DockerImageName.parse(appImage()))
+                    .withExposedPorts(APP_PORT)
+                    .withNetwork(NETWORK)
+                    .withNetworkAliases(APP_NAME + i)
+                    .withEnv("JAVA_TOOL_OPTIONS", "-Xmx32m -XX:+UseSerialGC -XX:TieredStopAtLevel=1")
+                    .withLabels(Map.of(
+                            "com.docker.compose.service", APP_NAME + i,
+                            "millau.enabled", "true",
+                            "millau.port", "" + APP_PORT,
+                            "millau.path", servicePath(i)
+                    ))
+                    .waitingFor(Wait.forListeningPort().withStartupTimeout(Duration.ofSeconds(30)));
+            appContainer.start();
+            appContainers.add(appContainer);
+        }
+    }
+
+    @Test
+    void cardinality() throws Exception {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        HttpClient metrics = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("### Metrics cardinality: %s%n%n", proxyImage()));
+        result.append(String.format("Services x %d methods x %d status codes, %d clients for %d s without and with a scrape every %d ms%n%n",
+                METHODS.length, codes.length, clients, durationSeconds, scrapeMillis));
+        result.append("| Services | Series | /metrics (KB) | Scrape p50 (ms) | Scrape p99 (ms) | Parse (ms) | Loaded scrape p99 (ms) | Traffic p99 (ms) | Scraped traffic p99 (ms) | p99 impact (%) |\n");
+        result.append("|----------|--------|---------------|-----------------|-----------------|------------|------------------------|------------------|--------------------------|----------------|\n");
+        int previousSeries = 0;
+        for (int level : levels) {
+            services(level);
+            for (int service = 0; service < level; service++) {
+                awaitRoute(client, service);
+            }
+            // every combination once, each becomes a series of its own
+            for (int service = 0; service < level; service++) {
+                for (String method : METHODS) {
+                    for (int code : codes) {
+                        HttpResponse<Void> response = client.send(request(service, method, code), HttpResponse.BodyHandlers.discarding());
+                        assertEquals(code, response.statusCode());
+                    }
+                }
+            }
+
+            Histogram idle = new Histogram();
+            byte[] exposition = null;
+            long parseNanos = Long.MAX_VALUE;
+            for (int i = 0; i < SCRAPES; i++) {
+                long start = System.nanoTime();
+                exposition = metrics.send(HttpRequest.newBuilder(URI.create(metricsUrl())).GET().build(), HttpResponse.BodyHandlers.ofByteArray()).body();
+                idle.record((System.nanoTime() - start) / 1_000);
+                long parsing = System.nanoTime();
+                Scrape.parse(new ByteArrayInputStream(exposition), parsing);
+                parseNanos = Math.min(parseNanos, System.nanoTime() - parsing);
+            }
+            int series = series(exposition);
+
+            Histogram plain = traffic(client, level, null);
+            Histogram loaded = new Histogram();
+            Histogram scraped = traffic(client, level, () -> {
+                long start = System.nanoTime();
+                metrics.send(HttpRequest.newBuilder(URI.create(metricsUrl())).GET().build(), HttpResponse.BodyHandlers.discarding());
+                loaded.record((System.nanoTime() - start) / 1_000);
+            });
+            long plainP99 = plain.percentile(99);
+            long scrapedP99 = scraped.percentile(99);
+            result.append(String.format("| %-8d | %-6d | %-13.1f | %-15.2f | %-15.2f | %-10.2f | %-22.2f | %-16.2f | %-24.2f | %-14.1f |%n",
+                    level,
+                    series,
+                    exposition.length / 1024.0,
+                    idle.percentile(50) / 1_000.0,
+                    idle.percentile(99) / 1_000.0,
+                    parseNanos / 1_000_000.0,
+                    loaded.percentile(99) / 1_000.0,
+                    plainP99 / 1_000.0,
+                    scrapedP99 / 1_000.0,
+                    plainP99 == 0 ? 0 : 100.0 * (scrapedP99 - plainP99) / plainP99));
+            assertTrue(series > previousSeries, "series did not grow with services");
+            previousSeries = series;
+        }
+        System.out.println(result);
+    }
+
+    private HttpRequest request(int service, String method, int code) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(apiUrl(servicePath(service) + "echo")));
+        if (code != 200) {
+            builder.header(EchoServer.FAULT_HEADER, "error=1," + code);
+        }
+        return builder.method(method, method.equals("GET") || method.equals("DELETE")
+                ? HttpRequest.BodyPublishers.noBody()
+                : HttpRequest.BodyPublishers.ofString("{}")).build();
+    }
+
+    interface Scraping {
+        void scrape() throws Exception;
+    }
+
+    // GETs spread over the services for the duration, scraping every interval on the side unless null
+    private Histogram traffic(HttpClient client, int services, Scraping scraping) throws Exception {
+        Histogram latency = new Histogram();
+        AtomicLong errors = new AtomicLong();
+        AtomicBoolean stop = new AtomicBoolean();
+        long deadline = System.nanoTime() + durationSeconds * 1_000_000_000L;
+        List<Future<?>> running = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            if (scraping != null) {
+                running.add(executor.submit(() -> {
+                    long next = System.nanoTime();
+                    while (!stop.get()) {
+                        scraping.scrape();
+                        next += scrapeMillis * 1_000_000L;
+                        Thread.sleep(Math.max(0, (next - System.nanoTime()) / 1_000_000));
+                    }
+                    return null;
+                }));
+            }
+            try {
+                List<Future<?>> loading = new ArrayList<>();
+                for (int i = 0; i < clients; i++) {
+                    loading.add(executor.submit(() -> {
+                        long sent;
+                        while ((sent = System.nanoTime()) < deadline) {
+                            HttpRequest request = request(ThreadLocalRandom.current().nextInt(services), "GET", 200);
+                            try {
+                                if (client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() != 200) {
+                                    errors.incrementAndGet();
+                                }
+                                latency.record((System.nanoTime() - sent) / 1_000);
+                            } catch (Exception e) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> future : loading) {
+                    future.get();
+                }
+            } finally {
+                stop.set(true);
+            }
+        }
+        for (Future<?> future : running) {
+            future.get();
+        }
+        assertEquals(0, errors.get());
+        return latency;
+    }
+
+    private void awaitRoute(HttpClient client, int service) throws Exception {
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        while (true) {
+            try {
+                if (client.send(request(service, "GET", 200), HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                    return;
+                }
+            } catch (Exception e) {
+                // not yet
+            }
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("no route to " + APP_NAME + service);
+            }
+            Thread.sleep(250);
+        }
+    }
+
+    // sample lines of an exposition
+    private static int series(byte[] exposition) {
+        int series = 0;
+        boolean start = true;
+        for (byte b : exposition) {
+            if (start && b != '#' && b != '\n') {
+                series++;
+            }
+            start = b == '\n';
+        }
+        return series;
+    }
+}
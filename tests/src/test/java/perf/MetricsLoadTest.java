@@ -0,0 +1,357 @@
+package perf;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.testcontainers.containers.BindMode;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.Network;
+import org.testcontainers.containers.wait.strategy.Wait;
+import org.testcontainers.utility.DockerImageName;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Scrapes the proxy's own metrics while clients load it and lines both up in the same one-second windows, then checks
+ * the proxy's counters and latency buckets against what the clients measured.
+ */
+@SpringBootTest
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class MetricsLoadTest {
+    @Value("${metrics.load.clients:20}")
+    private int clients;
+    @Value("${metrics.load.duration:20}")
+    private int durationSeconds;
+    // milliseconds between scrapes
+    @Value("${metrics.scrape.interval:100}")
+    private int scrapeMillis;
+    @Value("${metrics.store.max:64m}")
+    private String storeMax;
+    @Value("${metrics.validate.clients:50}")
+    private int validateClients;
+    // requests per client
+    @Value("${metrics.validate.requests:100}")
+    private int validateRequests;
+    // upstream latency as an X-Fault profile, spreading requests over the buckets
+    @Value("${metrics.validate.latency:lognormal:100,1}")
+    private String validateLatency;
+    @Autowired
+    private ClientMetrics metrics;
+    @Autowired
+    private Results results;
+    @Autowired
+    private Samples samples;
+
+    // app
+    static final String APP_NAME = "app";
+    static final int APP_PORT = 9000;
+
+    // proxy
+    static final int PROXY_PORT = 8080;
+    static final int HEALTHCHECK_PORT = 9100;
+    static final long WINDOW_NANOS = 1_000_000_000L;
+    // request bodies are up to this size, the echo responds the same bytes
+    static final int MAX_BODY = 64 * 1024;
+    // thresholds of the SLO panels in monitoring/millau.json, seconds
+    static final double[] SLOS = {0.3, 1.2};
+
+    // Docker
+    GenericContainer<?> appContainer;
+    GenericContainer<?> proxyContainer;
+    private static final Network NETWORK = Network.newNetwork();
+
+    String apiUrl(String path) {
+        return String.format("http://%s:%d%s", proxyContainer.getHost(), proxyContainer.getMappedPort(PROXY_PORT), path);
+    }
+
+    String metricsUrl() {
+        return String.format("http://%s:%d/metrics", proxyContainer.getHost(), proxyContainer.getMappedPort(HEALTHCHECK_PORT));
+    }
+
+    @BeforeAll
+    void setup() {
+        appContainer = new GenericContainer<>(DockerImageName.parse(appImage()))
+                .withExposedPorts(APP_PORT)
+                .withNetwork(NETWORK)
+                .withNetworkAliases(APP_NAME)
+                .withLabels(Map.of(
+                        "com.docker.compose.service", APP_NAME,
+                        "millau.enabled", "true",
+                        "millau.port", "" + APP_PORT,
+                        "millau.path", "/rest/"
+                ))
+                .waitingFor(Wait.forListeningPort().withStartupTimeout(Duration.ofSeconds(5)));
+        appContainer.start();
+
+        proxyContainer = new GenericContainer<>(DockerImageName.parse(proxyImage()))
+                .withExposedPorts(PROXY_PORT, HEALTHCHECK_PORT)
+                .withNetwork(NETWORK)
+                .withEnv("HTTP", ":" + PROXY_PORT)
+                .withFileSystemBind("/var/run/docker.sock", "/var/run/docker.sock", BindMode.READ_ONLY)
+                .waitingFor(Wait.forListeningPort().withStartupTimeout(Duration.ofSeconds(5)));
+        proxyContainer.start();
+    }
+
+    @AfterAll
+    void tearDown() {
+        if (proxyContainer != null) {
+            proxyContainer.stop();
+        }
+        if (appContainer != null) {
+            appContainer.stop();
+        }
+    }
+
+    String proxyImage() {
+        return "codelev/millau:test";
+    }
+
+    String appImage() {
+        return Upstream.image();
+    }
+
+    @Test
+    void timeline() throws Exception {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        HttpRequest request = HttpRequest.newBuilder(URI.create(apiUrl("/rest/echo"))).GET().build();
+        assertEquals(200, client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode());
+
+        int windows = durationSeconds;
+        Histogram[] latencies = new Histogram[windows];
+        for (int i = 0; i < windows; i++) {
+            latencies[i] = new Histogram();
+        }
+        AtomicLong errors = new AtomicLong();
+        int scenario = samples.id("Metrics timeline GET @ " + proxyImage());
+        long start;
+        Scraper scraper = new Scraper(metricsUrl(), Duration.ofMillis(scrapeMillis), StaticFiles.size(storeMax));
+        try (scraper) {
+            scraper.start();
+            // a scrape before the first window, so every window has a sample to start from
+            Thread.sleep(2L * scrapeMillis);
+            start = System.nanoTime();
+            long deadline = start + windows * WINDOW_NANOS;
+            List<Future<?>> running = new ArrayList<>();
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < clients; i++) {
+                    running.add(executor.submit(() -> {
+                        long sent;
+                        while ((sent = System.nanoTime()) < deadline) {
+                            try {
+                                HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                                long received = System.nanoTime();
+                                samples.record(scenario, sent, received, response.statusCode(), 0);
+                                if (response.statusCode() != 200) {
+                                    errors.incrementAndGet();
+                                }
+                                int window = (int) ((received - start) / WINDOW_NANOS);
+                                latencies[Math.min(window, windows - 1)].record((received - sent) / 1_000);
+                                metrics.record(proxyImage(), "Metrics timeline GET", response.statusCode(), (received - sent) / 1_000);
+                            } catch (Exception e) {
+                                samples.error(scenario, sent, System.nanoTime(), e);
+                                errors.incrementAndGet();
+                                metrics.error(proxyImage(), "Metrics timeline GET");
+                            }
+                        }
+                        return null;
+                    }));
+                }
+            }
+            for (Future<?> future : running) {
+                future.get();
+            }
+            // the last window closes with a scrape after it
+            Thread.sleep(2L * scrapeMillis);
+        }
+
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("### Metrics timeline: %s%n%n", proxyImage()));
+        result.append(String.format("%d clients for %d s, `/metrics` scraped every %d ms, client and proxy numbers per second%n%n", clients, durationSeconds, scrapeMillis));
+        result.append("| Second | Client requests | Client p50 (ms) | Client p99 (ms) | Proxy req/s | Proxy p50 (ms) | Proxy p99 (ms) | Open connections |\n");
+        result.append("|--------|-----------------|-----------------|-----------------|-------------|----------------|----------------|------------------|\n");
+        long clientTotal = 0;
+        double proxyTotal = 0;
+        for (int i = 0; i < windows; i++) {
+            long from = start + i * WINDOW_NANOS;
+            long to = from + WINDOW_NANOS;
+            double proxied = scraper.rate("millau_ingress_requests_total", from, to, "port", ":" + PROXY_PORT);
+            clientTotal += latencies[i].count();
+            proxyTotal += proxied * (to - from) / 1_000_000_000.0;
+            result.append(String.format("| %-6d | %-15d | %-15.2f | %-15.2f | %-11.1f | %-14.2f | %-14.2f | %-16.0f |%n",
+                    i + 1,
+                    latencies[i].count(),
+                    latencies[i].percentile(50) / 1_000.0,
+                    latencies[i].percentile(99) / 1_000.0,
+                    proxied,
+                    scraper.quantile(0.5, "millau_lb_request_duration_seconds", from, to, "service", APP_NAME) * 1_000,
+                    scraper.quantile(0.99, "millau_lb_request_duration_seconds", from, to, "service", APP_NAME) * 1_000,
+                    scraper.gauge("millau_ingress_open_connections", to, "port", ":" + PROXY_PORT)));
+        }
+        SeriesStore store = scraper.store();
+        result.append(String.format("%nClient requests: %d, %d errors, proxy counted %.0f. Scrapes: %d, %d failed, p99 %.2f ms. "
+                        + "Store: %d samples in %.1f KB (%.2f bytes/sample), %d evicted%n",
+                clientTotal,
+                errors.get(),
+                proxyTotal,
+                scraper.scrapes(),
+                scraper.failures(),
+                scraper.duration().percentile(99) / 1_000.0,
+                store.samples(),
+                store.bytes() / 1_000.0,
+                store.samples() == 0 ? 0 : (double) store.bytes() / store.samples(),
+                store.evicted()));
+        System.out.println(result);
+
+        Histogram latency = new Histogram();
+        long[] completed = new long[windows];
+        for (int i = 0; i < windows; i++) {
+            latency.add(latencies[i]);
+            completed[i] = latencies[i].count();
+        }
+        results.add("Metrics timeline GET", proxyImage(), latency, errors.get(), windows * WINDOW_NANOS, completed);
+
+        assertTrue(scraper.scrapes() > 0);
+        assertEquals(0, errors.get());
+        assertEquals(0, samples.dropped(), "samples dropped, raise samples.max");
+    }
+
+    @Test
+    void crossValidation() throws Exception {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        URI uri = URI.create(apiUrl("/rest/echo"));
+        byte[] payload = new byte[MAX_BODY];
+        ThreadLocalRandom.current().nextBytes(payload);
+        Scrape before = Scrape.get(metricsUrl());
+
+        // latencies in nanoseconds, one row per client
+        long[][] latencies = new long[validateClients][validateRequests];
+        AtomicLong requestBytes = new AtomicLong();
+        AtomicLong responseBytes = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        List<Future<?>> running = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < validateClients; c++) {
+                long[] row = latencies[c];
+                running.add(executor.submit(() -> {
+                    for (int i = 0; i < row.length; i++) {
+                        int size = ThreadLocalRandom.current().nextInt(1, MAX_BODY + 1);
+                        HttpRequest request = HttpRequest.newBuilder(uri)
+                                .header(EchoServer.FAULT_HEADER, "latency=" + validateLatency)
+                                .header("Content-Type", "application/octet-stream")
+                                .POST(HttpRequest.BodyPublishers.ofByteArray(payload, 0, size))
+                                .build();
+                        long sent = System.nanoTime();
+                        HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+                        row[i] = System.nanoTime() - sent;
+                        requestBytes.addAndGet(size);
+                        responseBytes.addAndGet(response.body().length);
+                        if (response.statusCode() != 200) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+        }
+        for (Future<?> future : running) {
+            future.get();
+        }
+        Scrape delta = Scrape.get(metricsUrl()).delta(before);
+
+        long requests = (long) validateClients * validateRequests;
+        long[] sorted = new long[(int) requests];
+        for (int c = 0; c < validateClients; c++) {
+            System.arraycopy(latencies[c], 0, sorted, c * validateRequests, validateRequests);
+        }
+        Arrays.sort(sorted);
+        TreeMap<Double, Double> proxy = delta.buckets("millau_lb_request_duration_seconds", "service", APP_NAME);
+
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("### Metrics cross-validation: %s%n%n", proxyImage()));
+        result.append(String.format("%d clients x %d POST requests of 1 B to %d KB, upstream latency `%s`, proxy counters against client counts%n%n",
+                validateClients, validateRequests, MAX_BODY / 1024, validateLatency));
+        result.append("| Counter                             | Client       | Proxy        | Difference |\n");
+        result.append("|-------------------------------------|--------------|--------------|------------|\n");
+        long[][] counters = {
+                {requests, (long) delta.sum("millau_ingress_requests_total", "port", ":" + PROXY_PORT)},
+                {requestBytes.get(), (long) delta.sum("millau_ingress_requests_bytes_total", "port", ":" + PROXY_PORT)},
+                {responseBytes.get(), (long) delta.sum("millau_ingress_responses_bytes_total", "port", ":" + PROXY_PORT)},
+                {requests, (long) delta.sum("millau_lb_request_duration_seconds_count", "service", APP_NAME)}
+        };
+        String[] names = {"millau_ingress_requests_total", "millau_ingress_requests_bytes_total", "millau_ingress_responses_bytes_total", "millau_lb_request_duration_seconds_count"};
+        for (int i = 0; i < counters.length; i++) {
+            result.append(String.format("| %-35s | %-12d | %-12d | %-10d |%n", names[i], counters[i][0], counters[i][1], counters[i][1] - counters[i][0]));
+        }
+
+        result.append(String.format("%nCumulative share of requests at or below each bucket bound, the proxy times a part of what the client does%n%n"));
+        result.append("| le (s)   | Proxy        | Client       | Proxy (%) | Client (%) | Difference (pp) |\n");
+        result.append("|----------|--------------|--------------|-----------|------------|-----------------|\n");
+        List<String> inverted = new ArrayList<>();
+        for (Map.Entry<Double, Double> bucket : proxy.entrySet()) {
+            long proxied = bucket.getValue().longValue();
+            long measured = atOrBelow(sorted, bucket.getKey());
+            double proxyShare = 100.0 * proxied / requests;
+            double clientShare = 100.0 * measured / requests;
+            result.append(String.format("| %-8s | %-12d | %-12d | %-9.2f | %-10.2f | %-15.2f |%n",
+                    bucket.getKey() == Double.POSITIVE_INFINITY ? "+Inf" : bucket.getKey(), proxied, measured, proxyShare, clientShare, proxyShare - clientShare));
+            if (proxied < measured) {
+                inverted.add("le=" + bucket.getKey());
+            }
+        }
+        for (double slo : SLOS) {
+            Double proxied = proxy.get(slo);
+            result.append(String.format("%nFailing SLO of %.0f ms: proxy %s, client %.2f%%", slo * 1_000,
+                    proxied == null ? "no bucket" : String.format("%.2f%%", 100 - 100.0 * proxied / requests),
+                    100 - 100.0 * atOrBelow(sorted, slo) / requests));
+        }
+        result.append(String.format("%n"));
+        System.out.println(result);
+
+        assertEquals(0, errors.get());
+        for (long[] counter : counters) {
+            assertEquals(counter[0], counter[1]);
+        }
+        // a request within a bound at the client was within it at the proxy
+        assertTrue(inverted.isEmpty(), "proxy counts fewer requests than the client at " + inverted);
+    }
+
+    // client requests completing within the bound in seconds
+    private static long atOrBelow(long[] sortedNanos, double seconds) {
+        if (seconds == Double.POSITIVE_INFINITY) {
+            return sortedNanos.length;
+        }
+        long bound = (long) (seconds * 1_000_000_000L);
+        int low = 0;
+        int high = sortedNanos.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sortedNanos[middle] <= bound) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
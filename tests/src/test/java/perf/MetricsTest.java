@@ -97,7 +97,7 @@ class MetricsTest {
 
     @Test
     void get() throws Exception {
-        assertMetrics(List.of(
+        Scrape initial = assertMetrics(List.of(
                 "millau_ingress_open_connections{port=\":443\",protocol=\"https\"} 0",
                 "millau_ingress_open_connections{port=\":8080\",protocol=\"http\"} 0"
                 ));
@@ -118,7 +118,7 @@ class MetricsTest {
         ResponseEntity<String> response = client.exchange(apiUrl("/rest/echo"), HttpMethod.GET, null, String.class);
         assertEquals(200, response.getStatusCode().value());
         assertNotNull(response.getBody());
-        assertMetrics(List.of(
+        Scrape proxied = assertMetrics(List.of(
                 "millau_ingress_open_connections{port=\":443\",protocol=\"https\"} 0",
                 "millau_ingress_open_connections{port=\":8080\",protocol=\"http\"} 0",
                 "millau_ingress_requests_total{method=\"GET\",port=\":8080\",protocol=\"http\"} 1",
@@ -136,6 +136,9 @@ class MetricsTest {
                 "millau_topology_status{id=\"app\",mainstat=\"up\",title=\"app\"} 1",
                 "millau_topology_requests_total{id=\":8080-app\",source=\":8080\",target=\"app\"} 1"
         ));
+        Scrape delta = proxied.delta(initial);
+        assertEquals(1, delta.sum("millau_ingress_requests_total", "port", ":8080"));
+        assertEquals(1, delta.sum("millau_lb_successful_requests_total", "service", APP_NAME, "code", "200"));
         assertHealthcheck();
 
         // proxied 404
@@ -191,14 +194,14 @@ class MetricsTest {
         assertHealthcheck();
     }
 
-    private void assertMetrics(List<String> expectations) {
-        RestTemplate client = new RestTemplate();
-        ResponseEntity<String> response = client.exchange(metricsUrl(), HttpMethod.GET, null, String.class);
-        assertEquals(200, response.getStatusCode().value());
-        assertNotNull(response.getBody());
+    // each expectation is a series as the proxy prints it and its value
+    private Scrape assertMetrics(List<String> expectations) throws IOException, InterruptedException {
+        Scrape scrape = Scrape.get(metricsUrl());
         for (String expectation: expectations) {
-            assertTrue(response.getBody().contains(expectation), response.getBody());
+            int space = expectation.lastIndexOf(' ');
+            assertEquals(Double.parseDouble(expectation.substring(space + 1)), scrape.value(expectation.substring(0, space)), expectation);
         }
+        return scrape;
     }
 
     private void assertHealthcheck() {
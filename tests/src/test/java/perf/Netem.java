@@ -0,0 +1,49 @@
+package perf;
+
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.Network;
+import org.testcontainers.containers.wait.strategy.Wait;
+import org.testcontainers.utility.DockerImageName;
+
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Puts a {@link Relay} between the proxy and an upstream when the {@code netem} property is set.
+ * The relay takes over the upstream's network alias and Millau labels, the upstream moves to {@code <alias>-origin}.
+ */
+final class Netem {
+
+    private Netem() {
+    }
+
+    static boolean enabled(String spec) {
+        return spec != null && !spec.isBlank();
+    }
+
+    static String alias(String alias, String spec) {
+        return enabled(spec) ? alias + "-origin" : alias;
+    }
+
+    static Map<String, String> labels(Map<String, String> labels, String spec) {
+        return enabled(spec) ? Map.of() : labels;
+    }
+
+    // null when the spec is blank
+    static GenericContainer<?> relay(Network network, String alias, int port, Map<String, String> labels, String spec) {
+        if (!enabled(spec)) {
+            return null;
+        }
+        GenericContainer<?> relay = new GenericContainer<>(DockerImageName.parse(Upstream.image()))
+                .withExposedPorts(port)
+                .withNetwork(network)
+                .withNetworkAliases(alias)
+                .withEnv("PORT", "" + port)
+                .withEnv("RELAY", alias(alias, spec) + ":" + port)
+                .withEnv("NETEM", spec)
+                .withLabels(labels)
+                .waitingFor(Wait.forListeningPort().withStartupTimeout(Duration.ofSeconds(5)));
+        relay.start();
+        return relay;
+    }
+}
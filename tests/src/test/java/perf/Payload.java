@@ -0,0 +1,73 @@
+package perf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Request bodies of any length without holding them: the {@link StaticFiles#block()} repeated, so they match the
+ * upstream's files byte for byte. Bodies are verified with a CRC32C computed as they stream, nothing is kept.
+ */
+final class Payload extends InputStream {
+    private static final byte[] BLOCK = StaticFiles.block();
+    private static final Map<Long, Digest> DIGESTS = new ConcurrentHashMap<>();
+
+    record Digest(long bytes, long crc32c) {
+    }
+
+    private final long length;
+    private long position;
+
+    private Payload(long length) {
+        this.length = length;
+    }
+
+    static InputStream stream(long length) {
+        return new Payload(length);
+    }
+
+    // of the payload of the given length, computed once
+    static Digest digest(long length) {
+        return DIGESTS.computeIfAbsent(length, l -> digest(stream(l)));
+    }
+
+    // reads the stream to its end
+    static Digest digest(InputStream in) {
+        CRC32C crc = new CRC32C();
+        byte[] buffer = new byte[64 * 1024];
+        long bytes = 0;
+        try {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                crc.update(buffer, 0, read);
+                bytes += read;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Digest(bytes, crc.getValue());
+    }
+
+    @Override
+    public int read() {
+        if (position >= length) {
+            return -1;
+        }
+        return BLOCK[(int) (position++ % BLOCK.length)] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) {
+        if (position >= length) {
+            return -1;
+        }
+        int at = (int) (position % BLOCK.length);
+        int n = (int) Math.min(Math.min(count, BLOCK.length - at), length - position);
+        System.arraycopy(BLOCK, at, buffer, offset, n);
+        position += n;
+        return n;
+    }
+}
@@ -0,0 +1,32 @@
+package perf;
+
+import org.junit.jupiter.api.TestInstance;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class PerfEchoMainTest extends PerfTest {
+
+    @Override
+    String proxyImage() {
+        return appImage();
+    }
+
+    @Override
+    String appImage() {
+        return Upstream.image();
+    }
+
+    @Override
+    String proxyConfigFile() {
+        return null;
+    }
+
+    @Override
+    String proxyConfig() {
+        return null;
+    }
+
+    @Override
+    String url() {
+        return String.format("http://%s:%d%s", appContainer.getHost(), appContainer.getMappedPort(APP_PORT), APP_ENDPOINT);
+    }
+}
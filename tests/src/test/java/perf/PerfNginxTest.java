@@ -9,7 +9,7 @@ class PerfNginxTest extends PerfTest {
 
     @Override
     String appImage() {
-        return "codelev/echo-spring:latest";
+        return Upstream.image();
     }
 
     @Override
@@ -1,9 +1,12 @@
 package perf;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.HttpEntity;
@@ -18,17 +21,36 @@ import org.testcontainers.containers.wait.strategy.Wait;
 import org.testcontainers.utility.DockerImageName;
 import org.testcontainers.utility.MountableFile;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileWriter;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Random;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32C;
 import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -44,22 +66,63 @@ abstract class PerfTest {
     private int postSequential;
     @Value("${rest.post.parallel:100}")
     private int postParallel;
+    // file sizes and concurrent downloads in download test, see StaticFiles
+    @Value("${download.sizes:1m,100m,2g}")
+    private String[] downloadSizes;
+    @Value("${download.concurrency:1,8}")
+    private int[] downloadConcurrency;
+    // body sizes and concurrent uploaders in upload test, cells moving more than upload.max.total are skipped
+    @Value("${upload.sizes:1k,1m,100m,1g}")
+    private String[] uploadSizes;
+    @Value("${upload.concurrency:1,10,100,500}")
+    private int[] uploadConcurrency;
+    @Value("${upload.max.total:2g}")
+    private String uploadMaxTotal;
+    // slow clients (a third of each kind) next to fast ones in slowClients test, rate and response size as k, m, g
+    @Value("${slow.clients:90}")
+    private int slowClients;
+    @Value("${slow.fast:10}")
+    private int slowFast;
+    @Value("${slow.duration:30}")
+    private int slowDuration;
+    @Value("${slow.rate:10k}")
+    private String slowRate;
+    @Value("${slow.response:5m}")
+    private String slowResponse;
+    // network impairment between proxy and app, see Relay
+    @Value("${netem:}")
+    private String netem;
+    @Autowired
+    private ClientMetrics metrics;
+    @Autowired
+    private Results results;
+    @Autowired
+    private Samples samples;
 
     // POST body in bytes
     private static final byte[] BODY = new byte[5_000_000];
+    private Payload.Digest bodyDigest;
 
     // app
     private static final RestTemplate CLIENT = new RestTemplate();
+    // latency slot of a request that failed, kept out of the statistics
+    private static final long FAILED = -1;
 
     static final String APP_NAME = "app";
     static final int APP_PORT = 9000;
     static final String APP_ENDPOINT = "/rest/echo";
 
+    // slow clients
+    static final Duration SLOW_SETTLE = Duration.ofSeconds(2);
+    static final Duration SLOW_HEADER_BYTE = Duration.ofMillis(100);
+    static final long SLOW_BODY = 1024 * 1024;
+
     // proxy
     static final int PROXY_PORT = 8080;
 
     // Docker
     GenericContainer<?> appContainer;
+    private GenericContainer<?> relayContainer;
     private GenericContainer<?> proxyContainer;
     private static final Network NETWORK = Network.newNetwork();
 
@@ -78,21 +141,25 @@ abstract class PerfTest {
     @BeforeAll
     void setup() throws IOException {
         new Random().nextBytes(BODY);
-
+        bodyDigest = Payload.digest(new ByteArrayInputStream(BODY));
+
+        Map<String, String> labels = Map.of(
+                "com.docker.compose.service", APP_NAME,
+                "millau.enabled", "true",
+                "millau.port", "" + APP_PORT,
+                "millau.path", "/rest/"
+        );
         appContainer = new GenericContainer<>(DockerImageName.parse(appImage()))
                 .withExposedPorts(APP_PORT)
                 .withNetwork(NETWORK)
-                .withNetworkAliases(APP_NAME)
-                .withLabels(Map.of(
-                        "com.docker.compose.service", APP_NAME,
-                        "millau.enabled", "true",
-                        "millau.port", "" + APP_PORT,
-                        "millau.path", "/rest/"
-                ))
+                .withNetworkAliases(Netem.alias(APP_NAME, netem))
+                .withLabels(Netem.labels(labels, netem))
                 .waitingFor(Wait.forListeningPort().withStartupTimeout(Duration.ofSeconds(5)));
         appContainer.start();
 
         if (!appImage().equals(proxyImage())) {
+            relayContainer = Netem.relay(NETWORK, APP_NAME, APP_PORT, labels, netem);
+
             proxyContainer = new GenericContainer<>(DockerImageName.parse(proxyImage()))
                     .withExposedPorts(PROXY_PORT)
                     .withNetwork(NETWORK)
@@ -118,6 +185,9 @@ abstract class PerfTest {
         if (proxyContainer != null) {
             proxyContainer.stop();
         }
+        if (relayContainer != null) {
+            relayContainer.stop();
+        }
         if (appContainer != null) {
             appContainer.stop();
         }
@@ -167,54 +237,745 @@ abstract class PerfTest {
         parallel(HttpMethod.POST, entity, postParallel);
     }
 
+    @Test
+    void reuse() throws Exception {
+        if (proxyContainer == null) {
+            return;
+        }
+        HttpClient admin = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        URI stats = URI.create(String.format("http://%s:%d%s", appContainer.getHost(), appContainer.getMappedPort(APP_PORT), EchoServer.STATS));
+        HttpResponse<String> reset = admin.send(HttpRequest.newBuilder(stats).DELETE().build(), HttpResponse.BodyHandlers.ofString());
+        if (reset.statusCode() != 200) {
+            // upstream without connection stats
+            return;
+        }
+
+        int requests = getSequential + getParallel;
+        for (int i = 0; i < getSequential; i++) {
+            assertEquals(200, CLIENT.exchange(url(), HttpMethod.GET, null, String.class).getStatusCode().value());
+        }
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < getParallel; i++) {
+                futures.add(CompletableFuture.runAsync(() ->
+                        assertEquals(200, CLIENT.exchange(url(), HttpMethod.GET, null, String.class).getStatusCode().value()), executor));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+        }
+
+        JsonNode json = new ObjectMapper().readTree(admin.send(HttpRequest.newBuilder(stats).GET().build(), HttpResponse.BodyHandlers.ofString()).body());
+        Histogram perConnection = new Histogram();
+        Histogram lifetimes = new Histogram();
+        for (JsonNode connection : json.get("lifetimes")) {
+            if (connection.get(0).asLong() > 0) {
+                perConnection.record(connection.get(0).asLong());
+            }
+            if (connection.get(2).asInt() == 0) {
+                lifetimes.record(connection.get(1).asLong());
+            }
+        }
+        long connections = json.get("connections").asLong();
+
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("### Upstream connection reuse GET requests: %s%n%n", proxyImage()));
+        result.append(String.format("`GET %s` x %d sequential, then x %d parallel%n%n", url(), getSequential, getParallel));
+        result.append("| Metric                               | Value         |\n");
+        result.append("|--------------------------------------|---------------|\n");
+        result.append(String.format("| Upstream requests                    | %-13d |%n", json.get("requests").asLong()));
+        result.append(String.format("| Upstream connections                 | %-13d |%n", connections));
+        result.append(String.format("| Upstream connections per 1k requests | %-13.1f |%n", 1_000.0 * connections / requests));
+        result.append(String.format("| Requests per connection p50          | %-13d |%n", perConnection.percentile(50)));
+        result.append(String.format("| Requests per connection max          | %-13d |%n", perConnection.max()));
+        result.append(String.format("| Closed connection lifetime p50       | %-13s |%n", String.format("%.2f ms", lifetimes.percentile(50) / 1_000.0)));
+        result.append(String.format("| Closed connection lifetime p99       | %-13s |%n", String.format("%.2f ms", lifetimes.percentile(99) / 1_000.0)));
+        result.append(String.format("| Connections open at the end          | %-13d |%n", json.get("open").asLong()));
+        result.append(String.format("| TLS ClientHello received (rejected)  | %-13d |%n", json.get("tls").asLong()));
+        System.out.println(result);
+    }
+
+    @Test
+    void download() throws Exception {
+        if (proxyContainer == null) {
+            return;
+        }
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        String files = String.format("http://%s:%d%s", proxyContainer.getHost(), proxyContainer.getMappedPort(PROXY_PORT), StaticFiles.PREFIX);
+        HttpResponse<byte[]> small = client.send(HttpRequest.newBuilder(URI.create(files + "1k")).GET().build(), HttpResponse.BodyHandlers.ofByteArray());
+        if (small.statusCode() == 404) {
+            // upstream without files
+            return;
+        }
+        // ranges and conditional requests pass the proxy
+        byte[] block = StaticFiles.block();
+        assertArrayEquals(Arrays.copyOf(block, 1024), small.body());
+        String etag = small.headers().firstValue("ETag").orElseThrow();
+        HttpResponse<byte[]> range = client.send(HttpRequest.newBuilder(URI.create(files + "1k")).header("Range", "bytes=100-199").GET().build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(206, range.statusCode());
+        assertEquals("bytes 100-199/1024", range.headers().firstValue("Content-Range").orElse(null));
+        assertArrayEquals(Arrays.copyOfRange(block, 100, 200), range.body());
+        HttpResponse<Void> cached = client.send(HttpRequest.newBuilder(URI.create(files + "1k")).header("If-None-Match", etag).GET().build(), HttpResponse.BodyHandlers.discarding());
+        assertEquals(304, cached.statusCode());
+
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("### Download requests: %s%n%n", proxyImage()));
+        result.append(String.format("`GET %s<size>`, each client downloads once%n%n", files));
+        result.append("| Size    | Clients | Throughput (MB/s) | TTFB p50 (ms) | TTFB p99 (ms) | Proxy memory growth (MB) |\n");
+        result.append("|---------|---------|-------------------|---------------|---------------|--------------------------|\n");
+        for (String size : downloadSizes) {
+            long bytes = StaticFiles.size(size);
+            // generated on the first request, not measured
+            client.send(HttpRequest.newBuilder(URI.create(files + size)).method("HEAD", HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.discarding());
+            for (int clients : downloadConcurrency) {
+                HttpRequest request = HttpRequest.newBuilder(URI.create(files + size)).GET().build();
+                Histogram ttfb = new Histogram();
+                long start;
+                long end;
+                long memory;
+                try (ContainerStats.Sampler sampler = new ContainerStats.Sampler(proxyContainer, 100)) {
+                    start = System.nanoTime();
+                    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                        List<CompletableFuture<Void>> downloads = new ArrayList<>();
+                        for (int i = 0; i < clients; i++) {
+                            downloads.add(CompletableFuture.runAsync(() -> assertEquals(Payload.digest(bytes), download(client, request, ttfb)), executor));
+                        }
+                        CompletableFuture.allOf(downloads.toArray(new CompletableFuture[0])).get();
+                    }
+                    end = System.nanoTime();
+                    memory = sampler.peakMemory() - sampler.start().memoryBytes();
+                }
+                result.append(String.format("| %-7s | %-7d | %-17.1f | %-13.2f | %-13.2f | %-24.1f |%n",
+                        size,
+                        clients,
+                        bytes * clients / 1_000_000.0 / ((end - start) / 1_000_000_000.0),
+                        ttfb.percentile(50) / 1_000.0,
+                        ttfb.percentile(99) / 1_000.0,
+                        memory / 1_000_000.0));
+            }
+        }
+        System.out.println(result);
+    }
+
+    // returns the digest of the body as it streamed in, the time to the first body byte is recorded
+    private static Payload.Digest download(HttpClient client, HttpRequest request, Histogram ttfb) {
+        byte[] buffer = new byte[64 * 1024];
+        long start = System.nanoTime();
+        try {
+            HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            assertEquals(200, response.statusCode());
+            try (InputStream body = response.body()) {
+                CRC32C crc = new CRC32C();
+                long received = 0;
+                int read = body.read(buffer);
+                ttfb.record((System.nanoTime() - start) / 1_000);
+                while (read >= 0) {
+                    crc.update(buffer, 0, read);
+                    received += read;
+                    read = body.read(buffer);
+                }
+                return new Payload.Digest(received, crc.getValue());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    void upload() throws Exception {
+        if (proxyContainer == null) {
+            return;
+        }
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        String url = String.format("http://%s:%d%s", proxyContainer.getHost(), proxyContainer.getMappedPort(PROXY_PORT), EchoServer.UPLOAD);
+        HttpRequest probe = HttpRequest.newBuilder(URI.create(url)).POST(HttpRequest.BodyPublishers.ofString("probe")).build();
+        if (client.send(probe, HttpResponse.BodyHandlers.discarding()).statusCode() == 404) {
+            // upstream without upload endpoint
+            return;
+        }
+        long maxTotal = StaticFiles.size(uploadMaxTotal);
+
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("### Upload requests: %s%n%n", proxyImage()));
+        result.append(String.format("`POST %s application/octet-stream` once per client, up to %s per cell. "
+                + "First byte: request start to the upstream receiving the first body byte, in %% of the time the client took "
+                + "to send the body. Last byte lag: the client done sending to the upstream receiving the last body byte%n%n", url, uploadMaxTotal));
+        result.append("| Size    | Clients | Expect       | Encoding | Throughput (MB/s) | p50 (ms) | p99 (ms) | First byte p50 (%) | Last byte lag p50 (ms) | Proxy memory growth (MB) | Streamed |\n");
+        result.append("|---------|---------|--------------|----------|-------------------|----------|----------|--------------------|------------------------|--------------------------|----------|\n");
+        for (boolean expect : new boolean[]{false, true}) {
+            for (boolean chunked : new boolean[]{false, true}) {
+                for (String size : uploadSizes) {
+                    long bytes = StaticFiles.size(size);
+                    for (int clients : uploadConcurrency) {
+                        if (bytes * clients > maxTotal) {
+                            continue;
+                        }
+                        Histogram latency = new Histogram();
+                        Histogram firstByte = new Histogram();
+                        Histogram lastByteLag = new Histogram();
+                        long start;
+                        long end;
+                        long memory;
+                        try (ContainerStats.Sampler sampler = new ContainerStats.Sampler(proxyContainer, 100)) {
+                            start = System.nanoTime();
+                            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                                List<CompletableFuture<Void>> uploads = new ArrayList<>();
+                                for (int i = 0; i < clients; i++) {
+                                    uploads.add(CompletableFuture.runAsync(() -> upload(client, url, bytes, expect, chunked, latency, firstByte, lastByteLag), executor));
+                                }
+                                CompletableFuture.allOf(uploads.toArray(new CompletableFuture[0])).get();
+                            }
+                            end = System.nanoTime();
+                            memory = sampler.peakMemory() - sampler.start().memoryBytes();
+                        }
+                        // too small to tell apart, or the upstream clock is not comparable (e.g. Docker in a VM);
+                        // a buffering proxy forwards the first body byte only after the client sent the last one
+                        String streamed = bytes < 1_000_000 ? "-"
+                                : firstByte.count() == 0 ? "?"
+                                : firstByte.percentile(50) < 500 && memory < bytes * clients / 2 ? "yes" : "no";
+                        result.append(String.format("| %-7s | %-7d | %-12s | %-8s | %-17.1f | %-8.2f | %-8.2f | %-18.1f | %-22.2f | %-24.1f | %-8s |%n",
+                                size,
+                                clients,
+                                expect ? "100-continue" : "-",
+                                chunked ? "chunked" : "length",
+                                bytes * clients / 1_000_000.0 / ((end - start) / 1_000_000_000.0),
+                                latency.percentile(50) / 1_000.0,
+                                latency.percentile(99) / 1_000.0,
+                                firstByte.percentile(50) / 10.0,
+                                lastByteLag.percentile(50) / 1_000.0,
+                                memory / 1_000_000.0,
+                                streamed));
+                    }
+                }
+            }
+        }
+        System.out.println(result);
+    }
+
+    /**
+     * The first body byte at the upstream is recorded in per mille of the client's sending time, the last one in
+     * microseconds after the client handed over its last byte; samples out of order between the clocks are left out.
+     */
+    private static void upload(HttpClient client, String url, long bytes, boolean expect, boolean chunked, Histogram latency,
+                               Histogram firstByte, Histogram lastByteLag) {
+        // when the client read the end of the body, i.e. had sent all of it
+        AtomicLong sentAll = new AtomicLong();
+        HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.ofInputStream(() -> new FilterInputStream(Payload.stream(bytes)) {
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read < 0) {
+                    sentAll.compareAndSet(0, System.nanoTime());
+                }
+                return read;
+            }
+        });
+        if (!chunked) {
+            body = HttpRequest.BodyPublishers.fromPublisher(body, bytes);
+        }
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .expectContinue(expect)
+                .header("Content-Type", "application/octet-stream")
+                .POST(body)
+                .build();
+        try {
+            long start = System.nanoTime();
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            long end = System.nanoTime();
+            assertEquals(200, response.statusCode());
+            assertEquals(bytes, Long.parseLong(response.body().trim()));
+            assertEquals(Payload.digest(bytes).crc32c(), Long.parseLong(response.headers().firstValue(EchoServer.CRC).orElseThrow()),
+                    "Request body altered on the way to the upstream");
+            latency.record((end - start) / 1_000);
+            Optional<String> first = response.headers().firstValue(EchoServer.FIRST_BYTE);
+            Optional<String> last = response.headers().firstValue(EchoServer.LAST_BYTE);
+            long done = sentAll.get();
+            if (first.isEmpty() || last.isEmpty() || done <= start) {
+                return;
+            }
+            long firstNanos = Long.parseLong(first.get());
+            long lastNanos = Long.parseLong(last.get());
+            if (firstNanos >= start && lastNanos >= firstNanos && end >= lastNanos) {
+                firstByte.record(1_000 * (firstNanos - start) / (done - start));
+                // at most a socket buffer ahead of the client's view
+                lastByteLag.record(Math.max(0, lastNanos - done) / 1_000);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // outcomes of one kind of slow client
+    private record Slow(AtomicInteger completed, AtomicInteger cut, AtomicLong bytes, Histogram timeToCut) {
+        Slow() {
+            this(new AtomicInteger(), new AtomicInteger(), new AtomicLong(), new Histogram());
+        }
+    }
+
+    @Test
+    void slowClients() throws Exception {
+        if (proxyContainer == null) {
+            return;
+        }
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        String files = String.format("http://%s:%d%s", proxyContainer.getHost(), proxyContainer.getMappedPort(PROXY_PORT), StaticFiles.PREFIX);
+        // generated on the first request, not measured
+        if (client.send(HttpRequest.newBuilder(URI.create(files + slowResponse)).method("HEAD", HttpRequest.BodyPublishers.noBody()).build(),
+                HttpResponse.BodyHandlers.discarding()).statusCode() == 404) {
+            // upstream without files
+            return;
+        }
+        long rate = StaticFiles.size(slowRate);
+        long responseBytes = StaticFiles.size(slowResponse);
+        int perKind = slowClients / 3;
+
+        Histogram alone = new Histogram();
+        AtomicInteger aloneErrors = new AtomicInteger();
+        long aloneMemory;
+        try (ContainerStats.Sampler sampler = new ContainerStats.Sampler(proxyContainer, 100)) {
+            fast(System.nanoTime() + slowDuration * 1_000_000_000L, alone, aloneErrors);
+            aloneMemory = sampler.peakMemory() - sampler.start().memoryBytes();
+        }
+
+        Histogram mixed = new Histogram();
+        AtomicInteger mixedErrors = new AtomicInteger();
+        Slow headers = new Slow();
+        Slow bodies = new Slow();
+        Slow readers = new Slow();
+        long mixedMemory;
+        long endMemory;
+        AtomicBoolean stop = new AtomicBoolean();
+        try (ContainerStats.Sampler sampler = new ContainerStats.Sampler(proxyContainer, 100);
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < perKind; i++) {
+                executor.submit(() -> slowly(stop, headers, this::slowHeaders));
+                executor.submit(() -> slowly(stop, bodies, (socket, slow, stopped) -> slowBody(socket, slow, stopped, rate)));
+                executor.submit(() -> slowly(stop, readers, (socket, slow, stopped) -> slowRead(socket, slow, stopped, rate)));
+            }
+            try {
+                // slow clients settle in before the fast ones are measured
+                Thread.sleep(SLOW_SETTLE.toMillis());
+                fast(System.nanoTime() + slowDuration * 1_000_000_000L, mixed, mixedErrors);
+                endMemory = ContainerStats.sample(proxyContainer).memoryBytes() - sampler.start().memoryBytes();
+                mixedMemory = sampler.peakMemory() - sampler.start().memoryBytes();
+            } finally {
+                stop.set(true);
+            }
+        }
+
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("### Slow clients: %s%n%n", proxyImage()));
+        result.append(String.format("%d fast clients `GET %s` for %d s, alone and next to %d clients each sending headers byte by byte, "
+                + "trickling a body at %s/s and reading `%s` responses at %s/s%n%n", slowFast, url(), slowDuration, perKind, slowRate, slowResponse, slowRate));
+        result.append("| Fast clients          | Requests | Errors | p50 (ms) | p99 (ms) | Longest (ms) | Proxy memory growth (MB) |\n");
+        result.append("|-----------------------|----------|--------|----------|----------|--------------|--------------------------|\n");
+        result.append(String.format("| %-21s | %-8d | %-6d | %-8.2f | %-8.2f | %-12.2f | %-24.1f |%n", "alone", alone.count(), aloneErrors.get(),
+                alone.percentile(50) / 1_000.0, alone.percentile(99) / 1_000.0, alone.max() / 1_000.0, aloneMemory / 1_000_000.0));
+        result.append(String.format("| %-21s | %-8d | %-6d | %-8.2f | %-8.2f | %-12.2f | %-24.1f |%n", "next to slow clients", mixed.count(), mixedErrors.get(),
+                mixed.percentile(50) / 1_000.0, mixed.percentile(99) / 1_000.0, mixed.max() / 1_000.0, mixedMemory / 1_000_000.0));
+        result.append("\n| Slow clients          | Completed | Cut by proxy | Time to cut p50 (ms) | Bytes sent or read |\n");
+        result.append("|-----------------------|-----------|--------------|----------------------|--------------------|\n");
+        for (Map.Entry<String, Slow> kind : List.of(Map.entry("byte-by-byte headers", headers), Map.entry("trickled bodies", bodies), Map.entry("slow readers", readers))) {
+            Slow slow = kind.getValue();
+            result.append(String.format("| %-21s | %-9d | %-12d | %-20.2f | %-18d |%n", kind.getKey(), slow.completed().get(), slow.cut().get(),
+                    slow.timeToCut().percentile(50) / 1_000.0, slow.bytes().get()));
+        }
+        // what the slow readers left unread sits in socket buffers or in the proxy
+        long unread = (long) perKind * responseBytes - readers.bytes().get();
+        result.append(String.format("%nFast p99 degradation: x%.2f. Proxy memory at the end %.1f MB against %.1f MB of responses unread by slow readers%n",
+                alone.percentile(99) == 0 ? 0 : (double) mixed.percentile(99) / alone.percentile(99),
+                endMemory / 1_000_000.0, Math.max(0, unread) / 1_000_000.0));
+        System.out.println(result);
+        assertEquals(0, aloneErrors.get());
+        // a body sent in full is answered, a cut one is cut before its last byte is due
+        long trickleMicros = SLOW_BODY * 1_000_000 / rate;
+        assertTrue(bodies.timeToCut().count() == 0 || bodies.timeToCut().max() < trickleMicros,
+                "trickled body counted as cut after its last byte: " + bodies.timeToCut().max() / 1_000 + " ms");
+    }
+
+    // fast clients send keep-alive requests until the deadline
+    private void fast(long deadline, Histogram latency, AtomicInteger errors) throws Exception {
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<CompletableFuture<Void>> clients = new ArrayList<>();
+            for (int i = 0; i < slowFast; i++) {
+                clients.add(CompletableFuture.runAsync(() -> {
+                    while (System.nanoTime() < deadline) {
+                        long start = System.nanoTime();
+                        try {
+                            if (CLIENT.exchange(url(), HttpMethod.GET, null, String.class).getStatusCode().value() == 200) {
+                                latency.record((System.nanoTime() - start) / 1_000);
+                                continue;
+                            }
+                        } catch (Exception e) {
+                            // counted
+                        }
+                        errors.incrementAndGet();
+                    }
+                }, executor));
+            }
+            CompletableFuture.allOf(clients.toArray(new CompletableFuture[0])).get();
+        }
+    }
+
+    private interface SlowClient {
+        // returns when the exchange completed or the client is stopped, throws when the proxy cut it
+        void run(Socket socket, Slow slow, AtomicBoolean stop) throws IOException, InterruptedException;
+    }
+
+    // one slow client: reconnects after each completed or cut exchange until stopped
+    private Void slowly(AtomicBoolean stop, Slow slow, SlowClient exchange) throws InterruptedException {
+        while (!stop.get()) {
+            long start = System.nanoTime();
+            try (Socket socket = new Socket()) {
+                // a small receive window makes a slow reader push back on the proxy
+                socket.setReceiveBufferSize(8 * 1024);
+                socket.connect(new InetSocketAddress(proxyContainer.getHost(), proxyContainer.getMappedPort(PROXY_PORT)));
+                socket.setSoTimeout(1_000);
+                socket.setTcpNoDelay(true);
+                exchange.run(socket, slow, stop);
+                if (!stop.get()) {
+                    slow.completed().incrementAndGet();
+                }
+            } catch (IOException e) {
+                if (!stop.get()) {
+                    slow.cut().incrementAndGet();
+                    slow.timeToCut().record((System.nanoTime() - start) / 1_000);
+                    Thread.sleep(100);
+                }
+            }
+        }
+        return null;
+    }
+
+    // a header line every few bytes, the head never ends
+    private void slowHeaders(Socket socket, Slow slow, AtomicBoolean stop) throws IOException, InterruptedException {
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET " + APP_ENDPOINT + " HTTP/1.1\r\nHost: localhost\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        for (long i = 0; !stop.get(); i++) {
+            out.write(i % 8 == 7 ? '\n' : i % 8 == 6 ? '\r' : i % 8 == 1 ? ':' : 'x');
+            out.flush();
+            slow.bytes().incrementAndGet();
+            Thread.sleep(SLOW_HEADER_BYTE.toMillis());
+            if (closed(socket)) {
+                throw new IOException("closed by proxy");
+            }
+        }
+    }
+
+    private void slowBody(Socket socket, Slow slow, AtomicBoolean stop, long rate) throws IOException, InterruptedException {
+        OutputStream out = socket.getOutputStream();
+        out.write(("POST " + EchoServer.UPLOAD + " HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/octet-stream\r\n"
+                + "Content-Length: " + SLOW_BODY + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        byte[] chunk = new byte[(int) Math.max(1, rate / 10)];
+        long start = System.nanoTime();
+        for (long sent = 0; sent < SLOW_BODY && !stop.get(); ) {
+            int n = (int) Math.min(chunk.length, SLOW_BODY - sent);
+            out.write(chunk, 0, n);
+            out.flush();
+            sent += n;
+            slow.bytes().addAndGet(n);
+            pace(start, sent, rate);
+            // after the last byte the response is due, it is not a cut
+            if (sent < SLOW_BODY && closed(socket)) {
+                throw new IOException("closed by proxy");
+            }
+        }
+        if (!stop.get()) {
+            // completed only when the whole body is answered with a 2xx
+            socket.setSoTimeout((int) SLOW_SETTLE.toMillis());
+            String status = Http.readLine(socket.getInputStream(), new byte[1024]);
+            if (status == null || status.length() < 10 || status.charAt(9) != '2') {
+                throw new IOException("answered " + status);
+            }
+        }
+        drain(socket.getInputStream());
+    }
+
+    private void slowRead(Socket socket, Slow slow, AtomicBoolean stop, long rate) throws IOException, InterruptedException {
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET " + StaticFiles.PREFIX + slowResponse + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+        InputStream in = socket.getInputStream();
+        byte[] buffer = new byte[(int) Math.max(1, rate / 10)];
+        long start = System.nanoTime();
+        long read = 0;
+        long expected = StaticFiles.size(slowResponse);
+        while (read < expected && !stop.get()) {
+            int n;
+            try {
+                n = in.read(buffer);
+            } catch (SocketTimeoutException e) {
+                continue;
+            }
+            if (n < 0) {
+                throw new IOException("closed by proxy");
+            }
+            read += n;
+            slow.bytes().addAndGet(n);
+            pace(start, read, rate);
+        }
+    }
+
+    // the proxy closing the connection or answering early (e.g. 408) before the request is complete
+    private static boolean closed(Socket socket) throws IOException {
+        int timeout = socket.getSoTimeout();
+        socket.setSoTimeout(1);
+        try {
+            socket.getInputStream().read();
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            socket.setSoTimeout(timeout);
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8 * 1024];
+        while (true) {
+            try {
+                if (in.read(buffer) < 0) {
+                    return;
+                }
+            } catch (SocketTimeoutException e) {
+                // the response of a keep-alive connection does not end the stream
+                return;
+            }
+        }
+    }
+
+    // sleeps until the bytes are due at the rate
+    private static void pace(long start, long bytes, long bytesPerSecond) throws InterruptedException {
+        long due = start + bytes * 1_000_000_000L / bytesPerSecond;
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+        }
+    }
+
+    // one exchange split at the upstream's timestamps, in microseconds
+    private record Hop(long inbound, long service, long outbound, long total) {
+        long network() {
+            return inbound + outbound;
+        }
+    }
+
+    // client-observed latency split at the upstream timestamps, in microseconds
+    private record Hops(Histogram inbound, Histogram service, Histogram outbound, Histogram total, Histogram network) {
+        Hops() {
+            this(new Histogram(), new Histogram(), new Histogram(), new Histogram(), new Histogram());
+        }
+
+        void record(Hop hop) {
+            inbound.record(hop.inbound());
+            service.record(hop.service());
+            outbound.record(hop.outbound());
+            total.record(hop.total());
+            network.record(hop.network());
+        }
+    }
+
+    @Test
+    void decomposition() throws Exception {
+        if (proxyContainer == null) {
+            return;
+        }
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        // bypasses the proxy, and the relay if any
+        String direct = String.format("http://%s:%d%s", appContainer.getHost(), appContainer.getMappedPort(APP_PORT), APP_ENDPOINT);
+        // the first requests pay for the connections
+        if (client.send(HttpRequest.newBuilder(URI.create(direct)).GET().build(), HttpResponse.BodyHandlers.discarding())
+                .headers().firstValue(EchoServer.RECEIVED).isEmpty()) {
+            // upstream without timing headers
+            return;
+        }
+        client.send(HttpRequest.newBuilder(URI.create(url())).GET().build(), HttpResponse.BodyHandlers.discarding());
+
+        // direct and proxied requests in pairs, so the overhead is taken request by request
+        Hops baseline = new Hops();
+        Hops proxied = new Hops();
+        long[] overhead = new long[getSequential];
+        int pairs = 0;
+        int skewed = 0;
+        AtomicInteger rewritten = new AtomicInteger();
+        for (int i = 0; i < getSequential; i++) {
+            // which one goes first alternates, so neither always follows the other
+            Hop alone;
+            Hop through;
+            if (i % 2 == 0) {
+                alone = hop(client, direct, i, rewritten);
+                through = hop(client, url(), i, rewritten);
+            } else {
+                through = hop(client, url(), i, rewritten);
+                alone = hop(client, direct, i, rewritten);
+            }
+            if (alone == null || through == null) {
+                skewed++;
+                continue;
+            }
+            baseline.record(alone);
+            proxied.record(through);
+            // signed, the histograms hold no negative values
+            overhead[pairs++] = through.network() - alone.network();
+        }
+
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("### Latency decomposition GET requests: %s%n%n", proxyImage()));
+        result.append(String.format("`GET %s` x %d interleaved with `GET %s`, split at the upstream's `%s` and `%s`%n%n",
+                url(), getSequential, direct, EchoServer.RECEIVED, EchoServer.SENT));
+        if (skewed > getSequential / 100 || pairs == 0) {
+            // e.g. Docker in a VM, its monotonic clock is not the harness's
+            result.append(String.format("Upstream clock is not comparable: %d pairs out of order, decomposition skipped%n", skewed));
+            System.out.println(result);
+            return;
+        }
+        result.append("| Hop                          | p50 (ms) | p90 (ms) | p99 (ms) | Max (ms) |\n");
+        result.append("|------------------------------|----------|----------|----------|----------|\n");
+        hop(result, "Client to upstream", proxied.inbound());
+        hop(result, "Upstream service", proxied.service());
+        hop(result, "Upstream to client", proxied.outbound());
+        hop(result, "Total", proxied.total());
+        hop(result, "Total without proxy", baseline.total());
+        hop(result, "Network with proxy", proxied.network());
+        hop(result, "Network without proxy", baseline.network());
+        Arrays.sort(overhead, 0, pairs);
+        result.append(String.format("| %-28s | %-8.2f | %-8.2f | %-8.2f | %-8.2f |%n",
+                "Proxy overhead per pair",
+                rank(overhead, pairs, 50) / 1_000.0,
+                rank(overhead, pairs, 90) / 1_000.0,
+                rank(overhead, pairs, 99) / 1_000.0,
+                overhead[pairs - 1] / 1_000.0));
+        // only the upstream's timestamps are known, the proxy's share of each leg is not
+        result.append(String.format("%nThe legs to and from the upstream include the proxy and both network hops on either side of it. "
+                + "Proxy overhead is the network time of each proxied request minus that of its direct pair, over %d pairs%n", pairs));
+        if (rewritten.get() > 0) {
+            result.append(String.format("%n`%s` rewritten by the proxy in %d responses%n", EchoServer.REQUEST_ID, rewritten.get()));
+        }
+        System.out.println(result);
+    }
+
+    // null when the upstream's clock disagrees with the harness's
+    private Hop hop(HttpClient client, String url, int i, AtomicInteger rewritten) throws Exception {
+        String id = "perf-" + i;
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .header(EchoServer.REQUEST_ID, id)
+                .GET()
+                .build();
+        long start = System.nanoTime();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        long end = System.nanoTime();
+        assertEquals(200, response.statusCode());
+        // a proxy may replace or append request IDs, the timestamps of a sequential exchange are still its own
+        if (!id.equals(response.headers().firstValue(EchoServer.REQUEST_ID).orElse(null))) {
+            rewritten.incrementAndGet();
+        }
+        long received = Long.parseLong(response.headers().firstValue(EchoServer.RECEIVED).orElseThrow());
+        long sent = Long.parseLong(response.headers().firstValue(EchoServer.SENT).orElseThrow());
+        if (received < start || sent < received || end < sent) {
+            return null;
+        }
+        return new Hop((received - start) / 1_000, (sent - received) / 1_000, (end - sent) / 1_000, (end - start) / 1_000);
+    }
+
+    // nearest-rank percentile of the first values, sorted
+    private static long rank(long[] sorted, int values, double percentile) {
+        return sorted[Math.max(0, (int) Math.ceil(percentile / 100 * values) - 1)];
+    }
+
+    private static void hop(StringBuilder result, String name, Histogram histogram) {
+        result.append(String.format("| %-28s | %-8.2f | %-8.2f | %-8.2f | %-8.2f |%n",
+                name,
+                histogram.percentile(50) / 1_000.0,
+                histogram.percentile(90) / 1_000.0,
+                histogram.percentile(99) / 1_000.0,
+                histogram.max() / 1_000.0));
+    }
+
     private void sequential(HttpMethod method, HttpEntity<byte[]> entity, int requests) throws Exception {
         AtomicLongArray statsMicro = new AtomicLongArray(requests);
+        AtomicInteger corrupted = new AtomicInteger();
+        int scenario = samples.id("Sequential " + method + " @ " + proxyImage());
+        long started = System.nanoTime();
         for (int i = 0; i < requests; i++) {
             long start = System.nanoTime();
-            ResponseEntity<String> response = CLIENT.exchange(url(), method, entity, String.class);
+            Payload.Digest received = exchange(method, entity, corrupted);
             long end = System.nanoTime();
-            assertEquals(200, response.getStatusCode().value());
+            samples.record(scenario, start, end, 200, received.bytes());
             statsMicro.set(i, (end - start) / 1_000);
+            metrics.record(proxyImage(), "Sequential " + method, 200, statsMicro.get(i));
         }
-        report(statsMicro, method, entity, "Sequential");
+        report(statsMicro, method, entity, "Sequential", corrupted.get(), 0, System.nanoTime() - started);
+        assertEquals(0, corrupted.get());
+        assertEquals(0, samples.dropped(), "samples dropped, raise samples.max");
     }
 
     private void parallel(HttpMethod method, HttpEntity<byte[]> entity, int requests) throws Exception {
         ExecutorService executor = Executors.newFixedThreadPool(requests);
         AtomicLongArray statsMicro = new AtomicLongArray(requests);
+        AtomicInteger corrupted = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
         List<CompletableFuture<Void>> futures = new ArrayList<>();
+        int scenario = samples.id("Parallel " + method + " @ " + proxyImage());
+        long started = System.nanoTime();
         for (int i = 0; i < requests; i++) {
             int index = i;
             CompletableFuture<Void> future = CompletableFuture.runAsync(() -> {
+                long start = System.nanoTime();
                 try {
-                    long start = System.nanoTime();
-                    ResponseEntity<String> response = CLIENT.exchange(url(), method, entity, String.class);
+                    Payload.Digest received = exchange(method, entity, corrupted);
                     long end = System.nanoTime();
-                    assertEquals(200, response.getStatusCode().value());
+                    samples.record(scenario, start, end, 200, received.bytes());
                     statsMicro.set(index, (end - start) / 1_000);
-                } catch (Exception e) {
+                    metrics.record(proxyImage(), "Parallel " + method, 200, statsMicro.get(index));
+                } catch (Exception | AssertionError e) {
+                    // no latency for a request without a (good) response
+                    statsMicro.set(index, FAILED);
+                    failed.incrementAndGet();
+                    samples.error(scenario, start, System.nanoTime(), e);
+                    metrics.error(proxyImage(), "Parallel " + method);
                     e.printStackTrace();
                 }
             }, executor);
             futures.add(future);
         }
         CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
-        report(statsMicro, method, entity, "Parallel");
+        report(statsMicro, method, entity, "Parallel", corrupted.get(), failed.get(), System.nanoTime() - started);
+        assertEquals(0, corrupted.get());
+        assertEquals(0, samples.dropped(), "samples dropped, raise samples.max");
     }
 
-    private void report(AtomicLongArray statsMicro, HttpMethod method, HttpEntity<byte[]> entity, String title) {
+    // an echoed body is verified as it streams in against the sent body, a corruption either way is counted
+    private Payload.Digest exchange(HttpMethod method, HttpEntity<byte[]> entity, AtomicInteger corrupted) {
+        return CLIENT.execute(url(), method, CLIENT.httpEntityCallback(entity), response -> {
+            assertEquals(200, response.getStatusCode().value());
+            Payload.Digest received = Payload.digest(response.getBody());
+            if (entity.getBody() != null && !received.equals(bodyDigest)) {
+                corrupted.incrementAndGet();
+            }
+            return received;
+        });
+    }
+
+    private void report(AtomicLongArray statsMicro, HttpMethod method, HttpEntity<byte[]> entity, String title, int corrupted, int failed, long elapsedNanos) {
         double longestMicro = IntStream.range(0, statsMicro.length())
                 .mapToLong(statsMicro::get)
+                .filter(micros -> micros != FAILED)
                 .max()
-                .orElseThrow();
+                .orElse(0);
         double shortestMicro = IntStream.range(0, statsMicro.length())
                 .mapToLong(statsMicro::get)
+                .filter(micros -> micros != FAILED)
                 .min()
-                .orElseThrow();
+                .orElse(0);
         double averageMicro = IntStream.range(0, statsMicro.length())
                 .mapToLong(statsMicro::get)
+                .filter(micros -> micros != FAILED)
                 .average()
-                .orElseThrow();
+                .orElse(0);
 
         long bodySize = 0;
         if (method.equals(HttpMethod.POST) && entity.getBody() != null) {
@@ -225,11 +986,28 @@ abstract class PerfTest {
         StringBuilder result = new StringBuilder();
         result.append(String.format("### %s %s requests: %s%n%n", title, method, proxyImage()));
         result.append(String.format("`%s %s %s %dMb` x %d%n%n", method, url(), contentType, bodySize / 1_000_000, statsMicro.length()));
+        if (relayContainer != null) {
+            result.append(String.format("Network between proxy and app: `%s`%n%n", netem));
+        }
         result.append("| Metric               | Value         |\n");
         result.append("|----------------------|---------------|\n");
         result.append(String.format("| Longest response     | %.2f ms       |%n", longestMicro / 1_000));
         result.append(String.format("| Shortest response    | %.2f ms       |%n", shortestMicro / 1_000));
         result.append(String.format("| Average response     | %.2f ms       |%n", averageMicro / 1_000));
+        if (bodySize > 0) {
+            result.append(String.format("| Corrupted bodies     | %-13d |%n", corrupted));
+        }
+        if (failed > 0) {
+            result.append(String.format("| Failed requests      | %-13d |%n", failed));
+        }
         System.out.println(result);
+
+        Histogram latency = new Histogram();
+        for (int i = 0; i < statsMicro.length(); i++) {
+            if (statsMicro.get(i) != FAILED) {
+                latency.record(statsMicro.get(i));
+            }
+        }
+        results.add(title + " " + method, proxyImage(), latency, corrupted + failed, elapsedNanos);
     }
 }
@@ -0,0 +1,114 @@
+package perf;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the results of the last run with a stored baseline and fails when a scenario's p99 latency or throughput
+ * got worse beyond the threshold and the difference is significant. Run it after the benchmarks, e.g.
+ * {@code mvn test -Dtest=RegressionTest -Dresults.baseline=baseline.json}; without a baseline it is skipped.
+ */
+@SpringBootTest
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class RegressionTest {
+    @Value("${results.dir:target/results}")
+    private String directory;
+    @Value("${results.baseline:}")
+    private String baseline;
+    // relative change tolerated before a difference counts as a regression
+    @Value("${results.threshold:0.1}")
+    private double threshold;
+    // significance level of the Mann-Whitney U tests
+    @Value("${results.alpha:0.01}")
+    private double alpha;
+
+    // per-second completions needed to test throughput on its own, otherwise latency stands in for it
+    static final int MIN_WINDOWS = 5;
+
+    @Test
+    void againstBaseline() throws Exception {
+        Path current = Path.of(directory).resolve("results.json");
+        Assumptions.assumeTrue(!baseline.isBlank() && Files.exists(Path.of(baseline)), "no baseline");
+        Assumptions.assumeTrue(Files.exists(current), "no results");
+        Results.Run before = Results.read(Path.of(baseline));
+        Results.Run after = Results.read(current);
+        Map<String, Results.Result> baselines = merge(before.results());
+        Map<String, Results.Result> results = merge(after.results());
+
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("### Regression check against %s%n%n", baseline));
+        result.append(String.format("Regression: worse by more than %.0f%% with p < %s (one-sided Mann-Whitney U)%n%n", threshold * 100, alpha));
+        before.environment().forEach((name, value) -> {
+            if (!value.equals(after.environment().get(name))) {
+                result.append(String.format("Environment differs, %s: %s then, %s now%n%n", name, value, after.environment().get(name)));
+            }
+        });
+        result.append("| Scenario                                 | p99 before (ms) | p99 now (ms) | p99 change (%) | p      | req/s before | req/s now | req/s change (%) | p      | Verdict    |\n");
+        result.append("|------------------------------------------|-----------------|--------------|----------------|--------|--------------|-----------|------------------|--------|------------|\n");
+        List<String> regressions = new ArrayList<>();
+        for (Map.Entry<String, Results.Result> entry : results.entrySet()) {
+            Results.Result now = entry.getValue();
+            Results.Result then = baselines.get(entry.getKey());
+            if (then == null) {
+                continue;
+            }
+            long p99Before = then.latency().percentile(99);
+            long p99Now = now.latency().percentile(99);
+            double latencyChange = p99Before == 0 ? 0 : (double) p99Now / p99Before - 1;
+            double slower = Statistics.greater(now.latency(), then.latency());
+            double throughputChange = then.throughput() == 0 ? 0 : now.throughput() / then.throughput() - 1;
+            // closed-loop clients: fewer requests per second is the same as slower requests
+            double fewer = now.windows().length >= MIN_WINDOWS && then.windows().length >= MIN_WINDOWS
+                    ? Statistics.greater(then.rates(), now.rates())
+                    : slower;
+            boolean latencyRegressed = latencyChange > threshold && slower < alpha;
+            boolean throughputRegressed = -throughputChange > threshold && fewer < alpha;
+            if (latencyRegressed || throughputRegressed) {
+                regressions.add(entry.getKey());
+            }
+            result.append(String.format("| %-40s | %-15.2f | %-12.2f | %-14.1f | %-6.4f | %-12.1f | %-9.1f | %-16.1f | %-6.4f | %-10s |%n",
+                    entry.getKey(),
+                    p99Before / 1_000.0,
+                    p99Now / 1_000.0,
+                    latencyChange * 100,
+                    slower,
+                    then.throughput(),
+                    now.throughput(),
+                    throughputChange * 100,
+                    fewer,
+                    latencyRegressed || throughputRegressed ? "regressed" : "ok"));
+        }
+        System.out.println(result);
+
+        assertTrue(regressions.isEmpty(), "regressed: " + regressions);
+    }
+
+    // repeated scenarios pool their samples
+    private static Map<String, Results.Result> merge(List<Results.Result> results) {
+        Map<String, Results.Result> merged = new LinkedHashMap<>();
+        for (Results.Result result : results) {
+            merged.merge(result.key(), result, (a, b) -> {
+                Histogram latency = new Histogram();
+                latency.add(a.latency());
+                latency.add(b.latency());
+                long[] windows = new long[a.windows().length + b.windows().length];
+                System.arraycopy(a.windows(), 0, windows, 0, a.windows().length);
+                System.arraycopy(b.windows(), 0, windows, a.windows().length, b.windows().length);
+                return new Results.Result(a.scenario(), a.proxy(), latency, a.errors() + b.errors(), a.seconds() + b.seconds(), windows);
+            });
+        }
+        return merged;
+    }
+}
@@ -0,0 +1,403 @@
+package perf;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A self-contained HTML page per run, inline SVG without scripts: the percentile spectrum of every benchmark scenario
+ * with one line per proxy, and for every test recording through {@link ClientMetrics} a latency heatmap over time with
+ * its p99 and the throughput and errors, all with the events of the test (scale, update, container stop) as markers.
+ * Everything is drawn from histograms, the {@link Results} and one {@link Histogram} per time window and test, so the
+ * page stays small however many requests were sent. Written to {@code report.file} when the tests end.
+ */
+@Component
+class Report {
+    private static final String[] COLORS = {"#1f77b4", "#ff7f0e", "#2ca02c", "#d62728", "#9467bd", "#8c564b", "#e377c2", "#7f7f7f"};
+    private static final int WIDTH = 900;
+    private static final int HEIGHT = 260;
+    private static final int LEFT = 70;
+    private static final int RIGHT = 20;
+    private static final int TOP = 20;
+    private static final int BOTTOM = 40;
+    // heatmap rows per power of two of latency
+    private static final int ROWS_PER_OCTAVE = 4;
+    // percentile spectrum up to 99.999%
+    private static final int NINES = 5;
+    // heatmap columns, longer runs merge adjacent windows
+    private static final int COLUMNS = 200;
+
+    private record Event(double seconds, String series, String label) {
+    }
+
+    private static final class Window {
+        // every response
+        final Histogram latency = new Histogram();
+        // failed responses and requests without one
+        final LongAdder errors = new LongAdder();
+        // requests without a response
+        final LongAdder unanswered = new LongAdder();
+
+        long requests() {
+            return latency.count() + unanswered.sum();
+        }
+    }
+
+    private final Results results;
+    private final Path file;
+    private final long windowNanos;
+    private final long origin = System.nanoTime();
+    private final String started = Instant.now().toString();
+    // series, then window index since the start of the run
+    private final ConcurrentHashMap<String, ConcurrentSkipListMap<Long, Window>> series = new ConcurrentHashMap<>();
+    private final List<Event> events = new CopyOnWriteArrayList<>();
+
+    Report(Results results,
+           @Value("${report.file:target/results/report.html}") String file,
+           @Value("${report.window:1000}") long windowMillis) {
+        this.results = results;
+        this.file = file.isBlank() ? null : Path.of(file);
+        this.windowNanos = windowMillis * 1_000_000;
+    }
+
+    private Window window(String name) {
+        long index = (System.nanoTime() - origin) / windowNanos;
+        return series.computeIfAbsent(name, k -> new ConcurrentSkipListMap<>()).computeIfAbsent(index, k -> new Window());
+    }
+
+    void record(String name, long micros, boolean failed) {
+        Window window = window(name);
+        window.latency.record(micros);
+        if (failed) {
+            window.errors.increment();
+        }
+    }
+
+    // a request without a response: refused, reset or timed out
+    void error(String name) {
+        Window window = window(name);
+        window.errors.increment();
+        window.unanswered.increment();
+    }
+
+    /**
+     * Something done to the system under test, drawn as a marker on the series' charts at the current time.
+     */
+    void event(String name, String label) {
+        events.add(new Event((System.nanoTime() - origin) / 1_000_000_000.0, name, label));
+    }
+
+    @PreDestroy
+    void close() {
+        List<Results.Result> recorded = results.results();
+        if (file == null || (recorded.isEmpty() && series.isEmpty())) {
+            return;
+        }
+        try {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            Files.writeString(file, html(recorded), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    String html(List<Results.Result> recorded) {
+        StringBuilder out = new StringBuilder();
+        out.append("<!DOCTYPE html>\n<html lang=\"en\">\n<head>\n<meta charset=\"utf-8\">\n");
+        out.append("<title>Performance report ").append(started).append("</title>\n");
+        out.append("<style>body{font-family:sans-serif;margin:2em;color:#222}svg{display:block;margin:0.5em 0 2em}"
+                + "text{font-size:11px}</style>\n</head>\n<body>\n");
+        out.append("<h1>Performance report</h1>\n<p>Started ").append(started).append(", ");
+        Results.environment().forEach((name, value) -> {
+            if (!name.equals("jvmArgs")) {
+                out.append(escape(name)).append(": ").append(escape(value)).append(", ");
+            }
+        });
+        out.setLength(out.length() - 2);
+        out.append("</p>\n");
+
+        Map<String, List<Results.Result>> scenarios = new LinkedHashMap<>();
+        for (Results.Result result : recorded) {
+            scenarios.computeIfAbsent(result.scenario(), k -> new ArrayList<>()).add(result);
+        }
+        if (!scenarios.isEmpty()) {
+            out.append("<h2>Percentile spectrum</h2>\n");
+        }
+        for (Map.Entry<String, List<Results.Result>> scenario : scenarios.entrySet()) {
+            out.append("<h3>").append(escape(scenario.getKey())).append("</h3>\n");
+            spectrum(out, merge(scenario.getValue()));
+        }
+
+        List<String> names = new ArrayList<>(series.keySet());
+        names.sort(Comparator.comparing(name -> series.get(name).firstKey()));
+        if (!names.isEmpty()) {
+            out.append("<h2>Timelines</h2>\n");
+        }
+        for (String name : names) {
+            List<Event> marked = events.stream().filter(event -> event.series().equals(name)).toList();
+            out.append("<h3>").append(escape(name)).append("</h3>\n");
+            heatmap(out, series.get(name), marked);
+            throughput(out, series.get(name), marked);
+        }
+        return out.append("</body>\n</html>\n").toString();
+    }
+
+    // repeated runs of a scenario against the same proxy pool their samples
+    private static Map<String, Histogram> merge(List<Results.Result> results) {
+        Map<String, Histogram> byProxy = new LinkedHashMap<>();
+        for (Results.Result result : results) {
+            byProxy.computeIfAbsent(result.proxy(), k -> new Histogram()).add(result.latency());
+        }
+        return byProxy;
+    }
+
+    /**
+     * Latency by percentile, the percentile axis stretched towards the tail: 90%, 99% and 99.9% equally apart.
+     */
+    private static void spectrum(StringBuilder out, Map<String, Histogram> byProxy) {
+        long most = byProxy.values().stream().mapToLong(Histogram::count).max().orElse(1);
+        // no further than the samples reach: 99.99% needs 10,000 of them
+        int nines = Math.max(1, Math.min(NINES, (int) Math.floor(Math.log10(Math.max(10, most)))));
+        double top = byProxy.values().stream().mapToLong(h -> h.percentile(100 - 100 / Math.pow(10, nines))).max().orElse(1) / 1_000.0;
+        double step = step(top);
+        double yMax = Math.max(step, Math.ceil(top / step) * step);
+        svg(out, byProxy.size() * 16);
+        for (int i = 0; i <= nines; i++) {
+            double x = x(i, nines);
+            out.append(line(x, TOP, x, HEIGHT - BOTTOM, "#eee"));
+            out.append(text(x, HEIGHT - BOTTOM + 15, "middle", percentileLabel(i)));
+        }
+        yAxis(out, yMax, step, "ms");
+        out.append(text(LEFT + (WIDTH - LEFT - RIGHT) / 2.0, HEIGHT - 5, "middle", "percentile"));
+        int color = 0;
+        for (Map.Entry<String, Histogram> entry : byProxy.entrySet()) {
+            Histogram histogram = entry.getValue();
+            StringBuilder points = new StringBuilder();
+            for (double nine = 0; nine <= nines + 1e-9; nine += 0.05) {
+                double percentile = 100 - 100 / Math.pow(10, nine);
+                double ms = histogram.percentile(Math.max(0, percentile)) / 1_000.0;
+                points.append(f(x(nine, nines))).append(',').append(f(y(Math.min(ms, yMax), yMax))).append(' ');
+            }
+            String stroke = COLORS[color % COLORS.length];
+            out.append("<polyline fill=\"none\" stroke-width=\"1.5\" stroke=\"").append(stroke).append("\" points=\"").append(points).append("\"/>\n");
+            double legend = HEIGHT + 8 + color * 16;
+            out.append(line(LEFT, legend, LEFT + 20, legend, stroke));
+            out.append(text(LEFT + 26, legend + 4, "start", String.format(Locale.ROOT, "%s: %d requests, p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms",
+                    entry.getKey(), histogram.count(), histogram.percentile(50) / 1_000.0, histogram.percentile(99) / 1_000.0,
+                    histogram.percentile(99.9) / 1_000.0, histogram.max() / 1_000.0)));
+            color++;
+        }
+        out.append("</svg>\n");
+    }
+
+    private static String percentileLabel(int nines) {
+        if (nines == 0) {
+            return "0%";
+        }
+        return String.format(Locale.ROOT, "%." + Math.max(0, nines - 2) + "f%%", 100 - 100 / Math.pow(10, nines));
+    }
+
+    /**
+     * Requests per time window and latency row, darker for more, with the p99 of each window as a line.
+     */
+    private void heatmap(StringBuilder out, ConcurrentSkipListMap<Long, Window> windows, List<Event> marked) {
+        long low = Long.MAX_VALUE;
+        long high = 0;
+        for (Window window : windows.values()) {
+            if (window.latency.count() > 0) {
+                low = Math.min(low, window.latency.min());
+                high = Math.max(high, window.latency.max());
+            }
+        }
+        if (high == 0) {
+            return;
+        }
+        // rows in powers of two of microseconds
+        int first = (int) Math.floor(log2(Math.max(1, low)) * ROWS_PER_OCTAVE);
+        int last = (int) Math.ceil(log2(Math.max(2, high + 1)) * ROWS_PER_OCTAVE);
+        int rows = Math.max(1, last - first);
+        long from = windows.firstKey();
+        long columns = windows.lastKey() - from + 1;
+        int merged = (int) Math.ceil(columns / (double) COLUMNS);
+        long[][] cells = new long[(int) Math.ceil(columns / (double) merged)][rows];
+        long most = 1;
+        for (Map.Entry<Long, Window> entry : windows.entrySet()) {
+            long[] counts = entry.getValue().latency.counts();
+            long[] column = cells[(int) ((entry.getKey() - from) / merged)];
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    double middle = Math.max(1, (Histogram.lowerBound(i) + Histogram.upperBound(i)) / 2.0);
+                    int row = Math.min(rows - 1, Math.max(0, (int) Math.floor(log2(middle) * ROWS_PER_OCTAVE) - first));
+                    column[row] += counts[i];
+                    most = Math.max(most, column[row]);
+                }
+            }
+        }
+        double plotWidth = WIDTH - LEFT - RIGHT;
+        double plotHeight = HEIGHT - TOP - BOTTOM;
+        double cellWidth = plotWidth / columns;
+        double cellHeight = plotHeight / rows;
+        svg(out, 0);
+        for (int c = 0; c < cells.length; c++) {
+            for (int r = 0; r < rows; r++) {
+                if (cells[c][r] == 0) {
+                    continue;
+                }
+                double shade = Math.log1p(cells[c][r]) / Math.log1p(most);
+                out.append(String.format(Locale.ROOT, "<rect x=\"%.1f\" y=\"%.1f\" width=\"%.1f\" height=\"%.1f\" fill=\"rgb(%d,%d,%d)\"><title>%d</title></rect>\n",
+                        LEFT + c * merged * cellWidth, HEIGHT - BOTTOM - (r + 1) * cellHeight, merged * cellWidth + 0.5, cellHeight + 0.5,
+                        (int) (230 - shade * 222), (int) (240 - shade * 192), (int) (250 - shade * 143), cells[c][r]));
+            }
+        }
+        // latency axis labelled at every power of two with room for it
+        int labelEvery = Math.max(1, (int) Math.ceil(rows / 8.0 / ROWS_PER_OCTAVE));
+        for (int r = 0; r <= rows; r++) {
+            if ((first + r) % (ROWS_PER_OCTAVE * labelEvery) == 0) {
+                double y = HEIGHT - BOTTOM - r * cellHeight;
+                double ms = Math.pow(2, (double) (first + r) / ROWS_PER_OCTAVE) / 1_000;
+                out.append(line(LEFT - 4, y, LEFT, y, "#222"));
+                out.append(text(LEFT - 6, y + 4, "end", ms < 1 ? String.format(Locale.ROOT, "%.2f ms", ms) : String.format(Locale.ROOT, "%.0f ms", ms)));
+            }
+        }
+        StringBuilder p99 = new StringBuilder();
+        for (Map.Entry<Long, Window> entry : windows.entrySet()) {
+            Histogram latency = entry.getValue().latency;
+            if (latency.count() == 0) {
+                continue;
+            }
+            double row = log2(Math.max(1, latency.percentile(99))) * ROWS_PER_OCTAVE - first;
+            p99.append(f(LEFT + (entry.getKey() - from + 0.5) * cellWidth)).append(',')
+                    .append(f(HEIGHT - BOTTOM - Math.min(rows, Math.max(0, row)) * cellHeight)).append(' ');
+        }
+        out.append("<polyline fill=\"none\" stroke=\"#ff7f0e\" stroke-width=\"1.5\" points=\"").append(p99).append("\"><title>p99</title></polyline>\n");
+        timeAxis(out, from, columns, marked);
+        out.append(text(LEFT + 26, TOP - 6, "start", "latency heatmap, p99 in orange"));
+        out.append("</svg>\n");
+    }
+
+    private void throughput(StringBuilder out, ConcurrentSkipListMap<Long, Window> windows, List<Event> marked) {
+        double seconds = windowNanos / 1_000_000_000.0;
+        double top = 0;
+        for (Window window : windows.values()) {
+            top = Math.max(top, window.requests() / seconds);
+        }
+        double step = step(top);
+        double yMax = Math.max(step, Math.ceil(top / step) * step);
+        long from = windows.firstKey();
+        long columns = windows.lastKey() - from + 1;
+        double cellWidth = (double) (WIDTH - LEFT - RIGHT) / columns;
+        StringBuilder requests = new StringBuilder();
+        StringBuilder errors = new StringBuilder();
+        for (long index = from; index < from + columns; index++) {
+            Window window = windows.get(index);
+            long sent = window == null ? 0 : window.requests();
+            long failed = window == null ? 0 : window.errors.sum();
+            double x = LEFT + (index - from + 0.5) * cellWidth;
+            requests.append(f(x)).append(',').append(f(y(sent / seconds, yMax))).append(' ');
+            errors.append(f(x)).append(',').append(f(y(failed / seconds, yMax))).append(' ');
+        }
+        svg(out, 0);
+        yAxis(out, yMax, step, "req/s");
+        out.append("<polyline fill=\"none\" stroke=\"#1f77b4\" stroke-width=\"1.5\" points=\"").append(requests).append("\"/>\n");
+        out.append("<polyline fill=\"none\" stroke=\"#d62728\" stroke-width=\"1.5\" points=\"").append(errors).append("\"/>\n");
+        timeAxis(out, from, columns, marked);
+        out.append(text(LEFT + 26, TOP - 6, "start", "requests per second in blue, errors in red"));
+        out.append("</svg>\n");
+    }
+
+    // seconds since the start of the run along the bottom, events as dashed lines
+    private void timeAxis(StringBuilder out, long from, long columns, List<Event> marked) {
+        double seconds = windowNanos / 1_000_000_000.0;
+        double start = from * seconds;
+        double span = columns * seconds;
+        double step = step(span);
+        for (double t = Math.ceil(start / step) * step; t <= start + span + 1e-9; t += step) {
+            double x = LEFT + (t - start) / span * (WIDTH - LEFT - RIGHT);
+            out.append(line(x, HEIGHT - BOTTOM, x, HEIGHT - BOTTOM + 4, "#222"));
+            out.append(text(x, HEIGHT - BOTTOM + 15, "middle", String.format(Locale.ROOT, "%.0f s", t)));
+        }
+        out.append(line(LEFT, HEIGHT - BOTTOM, WIDTH - RIGHT, HEIGHT - BOTTOM, "#222"));
+        for (Event event : marked) {
+            if (event.seconds() < start || event.seconds() > start + span) {
+                continue;
+            }
+            double x = LEFT + (event.seconds() - start) / span * (WIDTH - LEFT - RIGHT);
+            out.append(String.format(Locale.ROOT, "<line x1=\"%.1f\" y1=\"%d\" x2=\"%.1f\" y2=\"%d\" stroke=\"#000\" stroke-dasharray=\"4,3\"/>\n",
+                    x, TOP, x, HEIGHT - BOTTOM));
+            out.append(text(x + 3, TOP + 10, "start", event.label()));
+        }
+    }
+
+    private static void svg(StringBuilder out, int extraHeight) {
+        out.append(String.format("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"%d\" height=\"%d\" viewBox=\"0 0 %d %d\">\n",
+                WIDTH, HEIGHT + extraHeight, WIDTH, HEIGHT + extraHeight));
+    }
+
+    private static void yAxis(StringBuilder out, double max, double step, String unit) {
+        for (double value = 0; value <= max + 1e-9; value += step) {
+            double y = y(value, max);
+            out.append(line(LEFT, y, WIDTH - RIGHT, y, "#eee"));
+            int decimals = Math.max(0, (int) -Math.floor(Math.log10(step)));
+            out.append(text(LEFT - 6, y + 4, "end", String.format(Locale.ROOT, "%." + decimals + "f %s", value, unit)));
+        }
+        out.append(line(LEFT, TOP, LEFT, HEIGHT - BOTTOM, "#222"));
+    }
+
+    // a round step giving about five grid lines up to the maximum
+    private static double step(double max) {
+        if (max <= 0) {
+            return 1;
+        }
+        double raw = max / 5;
+        double magnitude = Math.pow(10, Math.floor(Math.log10(raw)));
+        double normalized = raw / magnitude;
+        return (normalized <= 1 ? 1 : normalized <= 2 ? 2 : normalized <= 5 ? 5 : 10) * magnitude;
+    }
+
+    private static double x(double nines, int maxNines) {
+        return LEFT + nines / maxNines * (WIDTH - LEFT - RIGHT);
+    }
+
+    private static double y(double value, double max) {
+        return HEIGHT - BOTTOM - value / max * (HEIGHT - TOP - BOTTOM);
+    }
+
+    private static double log2(double value) {
+        return Math.log(value) / Math.log(2);
+    }
+
+    private static String line(double x1, double y1, double x2, double y2, String stroke) {
+        return String.format(Locale.ROOT, "<line x1=\"%.1f\" y1=\"%.1f\" x2=\"%.1f\" y2=\"%.1f\" stroke=\"%s\"/>\n", x1, y1, x2, y2, stroke);
+    }
+
+    private static String text(double x, double y, String anchor, String text) {
+        return String.format(Locale.ROOT, "<text x=\"%.1f\" y=\"%.1f\" text-anchor=\"%s\">%s</text>\n", x, y, anchor, escape(text));
+    }
+
+    private static String f(double value) {
+        return String.format(Locale.ROOT, "%.1f", value);
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+}
@@ -5,6 +5,7 @@ import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.*;
 import org.springframework.http.client.ClientHttpResponse;
@@ -28,6 +29,10 @@ import static org.junit.jupiter.api.Assertions.*;
 @SpringBootTest
 @TestInstance(TestInstance.Lifecycle.PER_CLASS)
 class RestTest {
+    // network impairment between proxy and app, see Relay
+    @Value("${netem:}")
+    private String netem;
+
     // app
     private static final Pattern INSTANCE_ID = Pattern.compile("ID:\\s([a-f0-9\\-]{36})", Pattern.CASE_INSENSITIVE);
 
@@ -39,6 +44,7 @@ class RestTest {
 
     // Docker
     GenericContainer<?> appAContainer;
+    private GenericContainer<?> relayContainer;
     private GenericContainer<?> proxyContainer;
     private static final Network NETWORK = Network.newNetwork();
 
@@ -48,18 +54,20 @@ class RestTest {
 
     @BeforeAll
     void setup() throws IOException {
+        Map<String, String> labels = Map.of(
+                "com.docker.compose.service", APP_NAME,
+                "millau.enabled", "true",
+                "millau.port", "" + APP_PORT,
+                "millau.path", "/rest/"
+        );
         appAContainer = new GenericContainer<>(DockerImageName.parse(appImage()))
                 .withExposedPorts(APP_PORT)
                 .withNetwork(NETWORK)
-                .withNetworkAliases(APP_NAME)
-                .withLabels(Map.of(
-                        "com.docker.compose.service", APP_NAME,
-                        "millau.enabled", "true",
-                        "millau.port", "" + APP_PORT,
-                        "millau.path", "/rest/"
-                ))
+                .withNetworkAliases(Netem.alias(APP_NAME, netem))
+                .withLabels(Netem.labels(labels, netem))
                 .waitingFor(Wait.forListeningPort().withStartupTimeout(Duration.ofSeconds(5)));
         appAContainer.start();
+        relayContainer = Netem.relay(NETWORK, APP_NAME, APP_PORT, labels, netem);
 
         proxyContainer = new GenericContainer<>(DockerImageName.parse(proxyImage()))
                 .withExposedPorts(PROXY_PORT)
@@ -76,6 +84,9 @@ class RestTest {
         if (proxyContainer != null) {
             proxyContainer.stop();
         }
+        if (relayContainer != null) {
+            relayContainer.stop();
+        }
         if (appAContainer != null) {
             appAContainer.stop();
         }
@@ -0,0 +1,177 @@
+package perf;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Machine-readable results of a test run, next to the printed tables: {@code results.json} with latency histograms
+ * and per-second completions for {@link RegressionTest}, {@code results.csv} with the summary for spreadsheets. Both
+ * are rewritten whenever a benchmark adds a result, so an aborted run keeps what it measured.
+ */
+@Component
+class Results {
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    /**
+     * One benchmark scenario against one proxy image; latencies in microseconds, {@code windows} the requests
+     * completed in each second, empty when the benchmark does not track them.
+     */
+    record Result(String scenario, String proxy, Histogram latency, long errors, double seconds, long[] windows) {
+        double throughput() {
+            return seconds == 0 ? 0 : latency.count() / seconds;
+        }
+
+        double[] rates() {
+            double[] rates = new double[windows.length];
+            for (int i = 0; i < windows.length; i++) {
+                rates[i] = windows[i];
+            }
+            return rates;
+        }
+
+        String key() {
+            return scenario + " @ " + proxy;
+        }
+    }
+
+    record Run(Map<String, String> environment, List<Result> results) {
+    }
+
+    private final Path directory;
+    private final String started = Instant.now().toString();
+    private final List<Result> results = new ArrayList<>();
+
+    Results(@Value("${results.dir:target/results}") String directory) {
+        this.directory = Path.of(directory);
+    }
+
+    synchronized void add(String scenario, String proxy, Histogram latency, long errors, long elapsedNanos, long[] windows) {
+        results.add(new Result(scenario, proxy, latency, errors, elapsedNanos / 1_000_000_000.0, windows));
+        try {
+            write();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    synchronized List<Result> results() {
+        return List.copyOf(results);
+    }
+
+    void add(String scenario, String proxy, Histogram latency, long errors, long elapsedNanos) {
+        add(scenario, proxy, latency, errors, elapsedNanos, new long[0]);
+    }
+
+    /**
+     * What the numbers depend on besides the proxy: the machine, the kernel and the JVM driving the load.
+     */
+    static Map<String, String> environment() {
+        Map<String, String> environment = new LinkedHashMap<>();
+        environment.put("cpus", "" + Runtime.getRuntime().availableProcessors());
+        environment.put("memory", "" + ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getTotalMemorySize());
+        environment.put("os", System.getProperty("os.name"));
+        environment.put("kernel", System.getProperty("os.version"));
+        environment.put("arch", System.getProperty("os.arch"));
+        environment.put("jvm", System.getProperty("java.vm.name") + " " + System.getProperty("java.vm.version"));
+        environment.put("jvmArgs", String.join(" ", ManagementFactory.getRuntimeMXBean().getInputArguments()));
+        return environment;
+    }
+
+    private void write() throws IOException {
+        Files.createDirectories(directory);
+        ObjectNode root = JSON.createObjectNode();
+        root.put("started", started);
+        ObjectNode environment = root.putObject("environment");
+        environment().forEach(environment::put);
+        ArrayNode entries = root.putArray("results");
+        for (Result result : results) {
+            ObjectNode entry = entries.addObject();
+            entry.put("scenario", result.scenario());
+            entry.put("proxy", result.proxy());
+            entry.put("requests", result.latency().count());
+            entry.put("errors", result.errors());
+            entry.put("seconds", result.seconds());
+            entry.put("throughput", result.throughput());
+            entry.put("p50", result.latency().percentile(50) / 1_000.0);
+            entry.put("p90", result.latency().percentile(90) / 1_000.0);
+            entry.put("p99", result.latency().percentile(99) / 1_000.0);
+            entry.put("p999", result.latency().percentile(99.9) / 1_000.0);
+            entry.put("max", result.latency().max() / 1_000.0);
+            // sparse bucket counts of the latency histogram
+            ObjectNode buckets = entry.putObject("buckets");
+            long[] counts = result.latency().counts();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    buckets.put("" + i, counts[i]);
+                }
+            }
+            ArrayNode windows = entry.putArray("windows");
+            for (long window : result.windows()) {
+                windows.add(window);
+            }
+        }
+        JSON.writerWithDefaultPrettyPrinter().writeValue(directory.resolve("results.json").toFile(), root);
+
+        try (Writer csv = Files.newBufferedWriter(directory.resolve("results.csv"), StandardCharsets.UTF_8)) {
+            csv.write("scenario,proxy,requests,errors,seconds,throughput,p50_ms,p90_ms,p99_ms,p999_ms,max_ms,cpus,kernel,jvm\n");
+            Map<String, String> fingerprint = environment();
+            for (Result result : results) {
+                csv.write(String.format(Locale.ROOT, "%s,%s,%d,%d,%.3f,%.1f,%.3f,%.3f,%.3f,%.3f,%.3f,%s,%s,%s\n",
+                        csv(result.scenario()),
+                        csv(result.proxy()),
+                        result.latency().count(),
+                        result.errors(),
+                        result.seconds(),
+                        result.throughput(),
+                        result.latency().percentile(50) / 1_000.0,
+                        result.latency().percentile(90) / 1_000.0,
+                        result.latency().percentile(99) / 1_000.0,
+                        result.latency().percentile(99.9) / 1_000.0,
+                        result.latency().max() / 1_000.0,
+                        fingerprint.get("cpus"),
+                        csv(fingerprint.get("kernel")),
+                        csv(fingerprint.get("jvm"))));
+            }
+        }
+    }
+
+    private static String csv(String value) {
+        return value.contains(",") || value.contains("\"") ? "\"" + value.replace("\"", "\"\"") + "\"" : value;
+    }
+
+    static Run read(Path file) throws IOException {
+        JsonNode root = JSON.readTree(file.toFile());
+        Map<String, String> environment = new LinkedHashMap<>();
+        root.path("environment").fields().forEachRemaining(field -> environment.put(field.getKey(), field.getValue().asText()));
+        List<Result> results = new ArrayList<>();
+        for (JsonNode entry : root.path("results")) {
+            long[] counts = new long[Histogram.BUCKETS];
+            entry.path("buckets").fields().forEachRemaining(field -> counts[Integer.parseInt(field.getKey())] = field.getValue().asLong());
+            long[] windows = new long[entry.path("windows").size()];
+            for (int i = 0; i < windows.length; i++) {
+                windows[i] = entry.path("windows").get(i).asLong();
+            }
+            results.add(new Result(entry.get("scenario").asText(), entry.get("proxy").asText(), Histogram.of(counts),
+                    entry.path("errors").asLong(), entry.path("seconds").asDouble(), windows));
+        }
+        return new Run(environment, results);
+    }
+}
@@ -0,0 +1,231 @@
+package perf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Re-slices a {@link Samples} file after the run: latency percentiles, throughput and errors per time window, upstream
+ * instance, status, error or scenario, optionally filtered, plus the slowest requests. From the test classes:
+ * {@code java -cp target/test-classes perf.SampleAnalyzer target/samples.bin --by window --window 100 --scenario
+ * "Parallel GET @ codelev/millau:test" --from 5 --to 7 --slowest 20}; times in seconds since the recorder started, windows in
+ * milliseconds.
+ */
+final class SampleAnalyzer {
+
+    /**
+     * The file's header and names; records are read with {@link #forEach}.
+     */
+    record Log(Path file, long epochNanos, long originNanos, long records, long dropped, List<String> names) {
+        String name(int id) {
+            return id < 0 || id >= names.size() ? "-" : names.get(id);
+        }
+
+        int id(String name) {
+            return names.indexOf(name);
+        }
+
+        // seconds since the recorder started
+        double offset(long nanos) {
+            return (nanos - originNanos) / 1_000_000_000.0;
+        }
+    }
+
+    interface Visitor {
+        void visit(long startNanos, long endNanos, long bytes, int status, int error, int scenario, int instance);
+    }
+
+    private SampleAnalyzer() {
+    }
+
+    static Log open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = read(channel, 0, Samples.RECORD);
+            if (header.getLong(0) != Samples.MAGIC) {
+                throw new IllegalArgumentException(file + " is not a samples file");
+            }
+            long records = header.getLong(8);
+            long names = (records + 1) * Samples.RECORD;
+            int count = read(channel, names, 4).getInt(0);
+            List<String> list = new ArrayList<>(count);
+            long position = names + 4;
+            for (int i = 0; i < count; i++) {
+                int length = read(channel, position, 4).getInt(0);
+                list.add(StandardCharsets.UTF_8.decode(read(channel, position + 4, length)).toString());
+                position += 4 + length;
+            }
+            long dropped = read(channel, position, 8).getLong(0);
+            return new Log(file, header.getLong(16), header.getLong(24), records, dropped, list);
+        }
+    }
+
+    static void forEach(Log log, Visitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(log.file(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Samples.RECORD * 32_768).order(ByteOrder.LITTLE_ENDIAN);
+            long position = Samples.RECORD;
+            long end = (log.records() + 1) * Samples.RECORD;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new IOException("truncated " + log.file());
+                    }
+                }
+                for (int at = 0; at < buffer.limit(); at += Samples.RECORD) {
+                    visitor.visit(buffer.getLong(at + Samples.START),
+                            buffer.getLong(at + Samples.END),
+                            buffer.getLong(at + Samples.BYTES),
+                            buffer.getShort(at + Samples.STATUS),
+                            buffer.getShort(at + Samples.ERROR),
+                            buffer.getShort(at + Samples.SCENARIO),
+                            buffer.getShort(at + Samples.INSTANCE));
+                }
+                position += buffer.limit();
+            }
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("truncated at " + position);
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static final class Slice {
+        final Histogram latency = new Histogram();
+        long errors;
+        long bytes;
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+    }
+
+    private record Slow(long startNanos, long endNanos, int status, int error, int scenario, int instance) {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: SampleAnalyzer <file> [--by window|instance|status|error|scenario] [--window ms] "
+                    + "[--scenario name] [--instance name] [--status code] [--from s] [--to s] [--slowest n]");
+            System.exit(2);
+        }
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        Log log = open(Path.of(args[0]));
+        String by = options.getOrDefault("by", "window");
+        long windowNanos = Long.parseLong(options.getOrDefault("window", "1000")) * 1_000_000;
+        int scenario = options.containsKey("scenario") ? known(log, options.get("scenario")) : Integer.MIN_VALUE;
+        int instance = options.containsKey("instance") ? known(log, options.get("instance")) : Integer.MIN_VALUE;
+        int status = options.containsKey("status") ? Integer.parseInt(options.get("status")) : Integer.MIN_VALUE;
+        double from = Double.parseDouble(options.getOrDefault("from", "-Infinity"));
+        double to = Double.parseDouble(options.getOrDefault("to", "Infinity"));
+        int slowest = Integer.parseInt(options.getOrDefault("slowest", "0"));
+
+        // windows sort by time, the other keys by name
+        TreeMap<Long, Slice> windows = new TreeMap<>();
+        TreeMap<String, Slice> keyed = new TreeMap<>();
+        PriorityQueue<Slow> slow = new PriorityQueue<>((a, b) -> Long.compare(a.endNanos() - a.startNanos(), b.endNanos() - b.startNanos()));
+        long[] matched = new long[1];
+        forEach(log, (start, end, bytes, code, error, scene, replica) -> {
+            double offset = log.offset(start);
+            if ((scenario != Integer.MIN_VALUE && scene != scenario)
+                    || (instance != Integer.MIN_VALUE && replica != instance)
+                    || (status != Integer.MIN_VALUE && code != status)
+                    || offset < from || offset >= to) {
+                return;
+            }
+            matched[0]++;
+            Slice slice = switch (by) {
+                case "window" -> windows.computeIfAbsent(Math.floorDiv(start - log.originNanos(), windowNanos), k -> new Slice());
+                case "instance" -> keyed.computeIfAbsent(log.name(replica), k -> new Slice());
+                case "status" -> keyed.computeIfAbsent(code == 0 ? "-" : "" + code, k -> new Slice());
+                case "error" -> keyed.computeIfAbsent(Samples.ERRORS[Math.min(error, Samples.ERRORS.length - 1)], k -> new Slice());
+                case "scenario" -> keyed.computeIfAbsent(log.name(scene), k -> new Slice());
+                default -> throw new IllegalArgumentException("--by " + by);
+            };
+            if (error != Samples.NONE) {
+                slice.errors++;
+            } else {
+                slice.latency.record((end - start) / 1_000);
+            }
+            slice.bytes += bytes;
+            slice.first = Math.min(slice.first, start);
+            slice.last = Math.max(slice.last, end);
+            if (slowest > 0 && (slow.size() < slowest || end - start > slow.peek().endNanos() - slow.peek().startNanos())) {
+                slow.add(new Slow(start, end, code, error, scene, replica));
+                if (slow.size() > slowest) {
+                    slow.poll();
+                }
+            }
+        });
+
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("### Samples by %s: %s%n%n", by, log.file()));
+        result.append(String.format("%d of %d requests, recorder started %s%n%n", matched[0], log.records(), Instant.ofEpochSecond(0, log.epochNanos())));
+        if (log.dropped() > 0) {
+            result.append(String.format("**%d more requests dropped, the file was full: raise samples.max**%n%n", log.dropped()));
+        }
+        result.append("| Slice                          | Requests | Errors | Req/s      | p50 (ms) | p90 (ms) | p99 (ms) | p99.9 (ms) | Max (ms) | MB        |\n");
+        result.append("|--------------------------------|----------|--------|------------|----------|----------|----------|------------|----------|-----------|\n");
+        if (by.equals("window")) {
+            windows.forEach((window, slice) -> row(result, String.format("%.3f s", window * windowNanos / 1_000_000_000.0), slice, windowNanos));
+        } else {
+            keyed.forEach((key, slice) -> row(result, key, slice, slice.last - slice.first));
+        }
+        if (slowest > 0) {
+            List<Slow> slowestFirst = new ArrayList<>(slow);
+            slowestFirst.sort(slow.comparator().reversed());
+            result.append(String.format("%n| Start (s)  | Latency (ms) | Status | Error   | Scenario                       | Instance             |%n"));
+            result.append("|------------|--------------|--------|---------|--------------------------------|----------------------|\n");
+            for (Slow request : slowestFirst) {
+                result.append(String.format("| %-10.3f | %-12.2f | %-6d | %-7s | %-30s | %-20s |%n",
+                        log.offset(request.startNanos()),
+                        (request.endNanos() - request.startNanos()) / 1_000_000.0,
+                        request.status(),
+                        Samples.ERRORS[Math.min(request.error(), Samples.ERRORS.length - 1)],
+                        log.name(request.scenario()),
+                        log.name(request.instance())));
+            }
+        }
+        System.out.println(result);
+    }
+
+    private static int known(Log log, String name) {
+        int id = log.id(name);
+        if (id < 0) {
+            throw new IllegalArgumentException("not in the samples: " + name + ", known: " + log.names());
+        }
+        return id;
+    }
+
+    private static void row(StringBuilder result, String key, Slice slice, long spanNanos) {
+        long requests = slice.latency.count() + slice.errors;
+        result.append(String.format("| %-30s | %-8d | %-6d | %-10.1f | %-8.2f | %-8.2f | %-8.2f | %-10.2f | %-8.2f | %-9.2f |%n",
+                key,
+                requests,
+                slice.errors,
+                spanNanos <= 0 ? 0 : requests * 1_000_000_000.0 / spanNanos,
+                slice.latency.percentile(50) / 1_000.0,
+                slice.latency.percentile(90) / 1_000.0,
+                slice.latency.percentile(99) / 1_000.0,
+                slice.latency.percentile(99.9) / 1_000.0,
+                slice.latency.max() / 1_000.0,
+                slice.bytes / 1_000_000.0));
+    }
+}
@@ -0,0 +1,189 @@
+package perf;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Every request of a run as one fixed-width record in a memory-mapped file, for the questions aggregates cannot answer
+ * afterwards: which requests made up a tail-latency spike, on which upstream instance, with which status. Appending
+ * claims a slot with one {@code getAndAdd} on the cursor and writes into the mapping, without locks or allocation; the
+ * page cache takes it to disk. Off unless {@code samples.file} is set; {@link SampleAnalyzer} reads the file.
+ * <p>
+ * Layout, little-endian: a header of one record size with {@link #MAGIC}, the number of records, the wall-clock epoch
+ * in nanoseconds and the {@code System.nanoTime()} taken with it; then the records; then the scenario and instance
+ * names the records refer to by index, as counted UTF-8 strings; then the number of records dropped on a full file.
+ */
+@Component
+class Samples {
+    static final long MAGIC = 0x31504d4153465250L; // "PRFSAMP1"
+    static final int RECORD = 32;
+    // start ns, end ns, bytes, then status, error, scenario and instance as shorts
+    static final int START = 0, END = 8, BYTES = 16, STATUS = 24, ERROR = 26, SCENARIO = 28, INSTANCE = 30;
+    static final int NO_INSTANCE = -1;
+
+    // client-side errors, the request got no response
+    static final short NONE = 0, TIMEOUT = 1, REFUSED = 2, RESET = 3, OTHER = 4;
+    static final String[] ERRORS = {"none", "timeout", "refused", "reset", "other"};
+
+    // mappings are limited to 2 GiB, the file is mapped in segments of a whole number of records
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final long capacity;
+    private final AtomicLong cursor = new AtomicLong(RECORD);
+    private final LongAdder dropped = new LongAdder();
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    Samples(@Value("${samples.file:}") String file,
+            @Value("${samples.max:1g}") String max) throws IOException {
+        if (file.isBlank()) {
+            this.file = null;
+            channel = null;
+            segments = new MappedByteBuffer[0];
+            capacity = 0;
+            return;
+        }
+        this.file = Path.of(file);
+        capacity = StaticFiles.size(max) / RECORD * RECORD;
+        if (capacity < 2 * RECORD) {
+            throw new IllegalArgumentException("samples.max too small: " + max);
+        }
+        channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments = new MappedByteBuffer[(int) ((capacity + SEGMENT_MASK) >>> SEGMENT_BITS)];
+        for (int i = 0; i < segments.length; i++) {
+            long position = (long) i << SEGMENT_BITS;
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.min(SEGMENT_MASK + 1, capacity - position));
+            segments[i].order(ByteOrder.LITTLE_ENDIAN);
+        }
+        segments[0].putLong(0, MAGIC);
+        segments[0].putLong(16, System.currentTimeMillis() * 1_000_000);
+        segments[0].putLong(24, System.nanoTime());
+    }
+
+    boolean enabled() {
+        return file != null;
+    }
+
+    /**
+     * The index records use for a scenario or instance name; look it up once per test, not per request.
+     */
+    int id(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (names) {
+            return ids.computeIfAbsent(name, k -> {
+                names.add(k);
+                return names.size() - 1;
+            });
+        }
+    }
+
+    /**
+     * One request, times from {@code System.nanoTime()}; {@code instance} is {@link #NO_INSTANCE} when unknown.
+     */
+    void record(int scenario, long startNanos, long endNanos, int status, long bytes, int instance, short error) {
+        if (file == null) {
+            return;
+        }
+        long offset = cursor.getAndAdd(RECORD);
+        if (offset + RECORD > capacity) {
+            dropped.increment();
+            return;
+        }
+        MappedByteBuffer segment = segments[(int) (offset >>> SEGMENT_BITS)];
+        int at = (int) (offset & SEGMENT_MASK);
+        segment.putLong(at + START, startNanos);
+        segment.putLong(at + END, endNanos);
+        segment.putLong(at + BYTES, bytes);
+        segment.putShort(at + STATUS, (short) status);
+        segment.putShort(at + ERROR, error);
+        segment.putShort(at + SCENARIO, (short) scenario);
+        segment.putShort(at + INSTANCE, (short) instance);
+    }
+
+    void record(int scenario, long startNanos, long endNanos, int status, long bytes) {
+        record(scenario, startNanos, endNanos, status, bytes, NO_INSTANCE, NONE);
+    }
+
+    void error(int scenario, long startNanos, long endNanos, Throwable error) {
+        record(scenario, startNanos, endNanos, 0, 0, NO_INSTANCE, error(error));
+    }
+
+    static short error(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof HttpTimeoutException || cause instanceof SocketTimeoutException) {
+                return TIMEOUT;
+            }
+            if (cause instanceof ConnectException) {
+                return REFUSED;
+            }
+            if (cause instanceof IOException && cause.getMessage() != null && cause.getMessage().contains("reset")) {
+                return RESET;
+            }
+        }
+        return OTHER;
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Writes the record count, the names and the dropped count, and cuts the file to what was written.
+     */
+    @PreDestroy
+    synchronized void close() {
+        if (file == null || !channel.isOpen()) {
+            return;
+        }
+        long end = Math.min(cursor.get(), capacity);
+        try (channel) {
+            segments[0].putLong(8, end / RECORD - 1);
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+            channel.truncate(end);
+            List<String> written;
+            synchronized (names) {
+                written = List.copyOf(names);
+            }
+            channel.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, written.size()), end);
+            long position = end + 4;
+            for (String name : written) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer entry = ByteBuffer.allocate(4 + bytes.length).order(ByteOrder.LITTLE_ENDIAN);
+                entry.putInt(bytes.length).put(bytes).flip();
+                position += channel.write(entry, position);
+            }
+            channel.write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(0, dropped()), position);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
@@ -29,6 +30,11 @@ class ScaleSwarmTest {
     static final String APP_ENDPOINT = "/rest/echo";
     static final int PROXY_PORT = 8080;
 
+    @Autowired
+    private ClientMetrics metrics;
+    @Autowired
+    private Report report;
+
     String url() {
         return String.format("http://localhost:%d%s", PROXY_PORT, APP_ENDPOINT);
     }
@@ -55,7 +61,8 @@ class ScaleSwarmTest {
             if (i == requests / 6) {
                 setReplicas(1);
             }
-            ResponseEntity<String> response = client.exchange(url(), HttpMethod.GET, null, String.class);
+            ResponseEntity<String> response = metrics.exchange(Upstream.PROXY_IMAGE, "Scale Swarm GET",
+                    () -> client.exchange(url(), HttpMethod.GET, null, String.class), this::getInstanceId);
             assertEquals(200, response.getStatusCode().value());
             assertNotNull(response.getBody());
             stats.compute(getInstanceId(response.getBody()), (k, v) -> v == null ? 1 : v + 1);
@@ -93,6 +100,7 @@ class ScaleSwarmTest {
     }
 
     private void setReplicas(int replicas) throws Exception {
+        report.event("Scale Swarm GET @ " + Upstream.PROXY_IMAGE, "scale to " + replicas);
         ProcessBuilder pb = new ProcessBuilder("docker", "service", "scale", STACK_NAME + "_echo=" + replicas);
         pb.inheritIO();
         Process process = pb.start();
@@ -0,0 +1,461 @@
+package perf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * One scrape of a Prometheus text exposition: a value per series, stored in a primitive array indexed by the
+ * series' id. Series are interned once for the whole run, so parsing a known line allocates nothing and two scrapes
+ * subtract as arrays. Lines are matched byte for byte, as the exporter prints them, labels in its order.
+ */
+final class Scrape {
+    private static final HttpClient CLIENT = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(Duration.ofSeconds(5)).build();
+    private static final int MAX_LINE = 64 * 1024;
+
+    // interned series, guarded by the class lock
+    private static Series[] table = new Series[4096];
+    private static final List<Series> SERIES = new ArrayList<>();
+    private static final Map<String, Series> BY_KEY = new HashMap<>();
+    // metric family types from # TYPE lines
+    private static final Map<String, String> TYPES = new HashMap<>();
+
+    /**
+     * A metric name with its label set, e.g. {@code millau_ingress_requests_total{method="GET",port=":8080",protocol="http"}}.
+     */
+    static final class Series {
+        final int id;
+        final String key;
+        final String name;
+        final Map<String, String> labels;
+        final String type;
+        private final byte[] bytes;
+        private final int hash;
+
+        private Series(int id, byte[] bytes, int hash, String type) {
+            this.id = id;
+            this.bytes = bytes;
+            this.hash = hash;
+            this.key = new String(bytes, StandardCharsets.UTF_8);
+            int brace = key.indexOf('{');
+            this.name = brace < 0 ? key : key.substring(0, brace);
+            this.labels = brace < 0 ? Map.of() : Collections.unmodifiableMap(labels(key.substring(brace + 1, key.length() - 1)));
+            this.type = type;
+        }
+
+        String label(String name) {
+            return labels.get(name);
+        }
+
+        // counters, and the counters a histogram or summary is made of, only grow until the target restarts
+        boolean monotonic() {
+            return "counter".equals(type)
+                    || (("histogram".equals(type) || "summary".equals(type)) && (name.endsWith("_bucket") || name.endsWith("_count") || name.endsWith("_sum")));
+        }
+
+        @Override
+        public String toString() {
+            return key;
+        }
+    }
+
+    @FunctionalInterface
+    interface SampleConsumer {
+        void accept(Series series, double value);
+    }
+
+    final long nanos;
+    private final double[] values;
+    private final long[] present;
+
+    private Scrape(long nanos, double[] values, long[] present) {
+        this.nanos = nanos;
+        this.values = values;
+        this.present = present;
+    }
+
+    /**
+     * Fetches and parses the exposition as it streams in, {@link #nanos} is when the response arrived.
+     */
+    static Scrape get(String url) throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = CLIENT.send(HttpRequest.newBuilder(URI.create(url)).GET().build(), HttpResponse.BodyHandlers.ofInputStream());
+        long nanos = System.nanoTime();
+        try (InputStream body = response.body()) {
+            if (response.statusCode() != 200) {
+                throw new IOException("GET " + url + ": " + response.statusCode());
+            }
+            return parse(body, nanos);
+        }
+    }
+
+    static Scrape parse(InputStream in, long nanos) throws IOException {
+        byte[] buffer = new byte[16 * 1024];
+        int read;
+        Parser parser = new Parser(count());
+        while ((read = in.read(buffer)) >= 0) {
+            for (int i = 0; i < read; i++) {
+                parser.accept(buffer[i]);
+            }
+        }
+        parser.accept((byte) '\n');
+        return new Scrape(nanos, parser.values, parser.present);
+    }
+
+    private static synchronized int count() {
+        return SERIES.size();
+    }
+
+    // collects the samples of one exposition
+    private static final class Parser {
+        double[] values;
+        long[] present;
+        private byte[] line = new byte[256];
+        private int length;
+
+        // sized for the series seen so far
+        Parser(int series) {
+            values = new double[Math.max(64, series)];
+            present = new long[(values.length >> 6) + 1];
+        }
+
+        void accept(byte b) throws IOException {
+            if (b != '\n') {
+                if (length == line.length) {
+                    if (length == MAX_LINE) {
+                        throw new IOException("Line too long");
+                    }
+                    line = Arrays.copyOf(line, Math.min(MAX_LINE, length * 2));
+                }
+                line[length++] = b;
+                return;
+            }
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            if (length > 0) {
+                if (line[0] == '#') {
+                    comment(line, length);
+                } else {
+                    sample();
+                }
+            }
+            length = 0;
+        }
+
+        private void sample() throws IOException {
+            int end = 0;
+            boolean quoted = false;
+            boolean labels = false;
+            for (; end < length; end++) {
+                byte b = line[end];
+                if (labels) {
+                    if (b == '\\' && quoted) {
+                        end++;
+                    } else if (b == '"') {
+                        quoted = !quoted;
+                    } else if (b == '}' && !quoted) {
+                        end++;
+                        break;
+                    }
+                } else if (b == '{') {
+                    labels = true;
+                } else if (b == ' ' || b == '\t') {
+                    break;
+                }
+            }
+            int start = end;
+            while (start < length && (line[start] == ' ' || line[start] == '\t')) {
+                start++;
+            }
+            int stop = start;
+            while (stop < length && line[stop] != ' ' && line[stop] != '\t') {
+                stop++;
+            }
+            if (start == stop) {
+                throw new IOException("No value: " + new String(line, 0, length, StandardCharsets.UTF_8));
+            }
+            double value = number(line, start, stop);
+            // an optional timestamp follows, the scrape time stands for all samples
+            int id = intern(line, end).id;
+            if (id >= values.length) {
+                values = Arrays.copyOf(values, Math.max(values.length * 2, id + 1));
+            }
+            if (id >> 6 >= present.length) {
+                present = Arrays.copyOf(present, Math.max(present.length * 2, (id >> 6) + 1));
+            }
+            values[id] = value;
+            present[id >> 6] |= 1L << id;
+        }
+    }
+
+    private static final byte[] TYPE = "# TYPE ".getBytes(StandardCharsets.US_ASCII);
+
+    // only # TYPE lines matter, # HELP lines are skipped without a copy
+    private static synchronized void comment(byte[] line, int length) {
+        if (length > TYPE.length && Arrays.equals(line, 0, TYPE.length, TYPE, 0, TYPE.length)) {
+            String[] parts = new String(line, TYPE.length, length - TYPE.length, StandardCharsets.UTF_8).trim().split("\\s+");
+            if (parts.length == 2) {
+                TYPES.put(parts[0], parts[1]);
+            }
+        }
+    }
+
+    private static synchronized Series intern(byte[] line, int length) {
+        int hash = 1;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + line[i];
+        }
+        int mask = table.length - 1;
+        for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            Series series = table[slot];
+            if (series == null) {
+                break;
+            }
+            if (series.hash == hash && Arrays.equals(series.bytes, 0, series.bytes.length, line, 0, length)) {
+                return series;
+            }
+        }
+        byte[] bytes = Arrays.copyOf(line, length);
+        String key = new String(bytes, StandardCharsets.UTF_8);
+        int brace = key.indexOf('{');
+        Series series = new Series(SERIES.size(), bytes, hash, type(brace < 0 ? key : key.substring(0, brace)));
+        SERIES.add(series);
+        BY_KEY.put(series.key, series);
+        if (SERIES.size() * 2 > table.length) {
+            Series[] grown = new Series[table.length * 2];
+            for (Series s : SERIES) {
+                int m = grown.length - 1;
+                int slot = mix(s.hash) & m;
+                while (grown[slot] != null) {
+                    slot = (slot + 1) & m;
+                }
+                grown[slot] = s;
+            }
+            table = grown;
+        } else {
+            int slot = mix(hash) & mask;
+            while (table[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = series;
+        }
+        return series;
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    // the family's type, histogram and summary series carry a suffix
+    private static String type(String name) {
+        String type = TYPES.get(name);
+        if (type != null) {
+            return type;
+        }
+        for (String suffix : new String[]{"_bucket", "_count", "_sum"}) {
+            if (name.endsWith(suffix)) {
+                type = TYPES.get(name.substring(0, name.length() - suffix.length()));
+                if (type != null) {
+                    return type;
+                }
+            }
+        }
+        return "untyped";
+    }
+
+    // decimal numbers without allocating, anything else through Double.parseDouble
+    private static double number(byte[] line, int start, int stop) {
+        int i = start;
+        boolean negative = false;
+        if (line[i] == '-' || line[i] == '+') {
+            negative = line[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+        for (; i < stop; i++) {
+            byte b = line[i];
+            if (b >= '0' && b <= '9') {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    if (point) {
+                        scale++;
+                    }
+                } else if (!point) {
+                    scale--;
+                }
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+        if (i < stop || i == start || (i == start + 1 && (line[start] == '-' || line[start] == '+'))) {
+            // exponent, Inf, NaN
+            String text = new String(line, start, stop - start, StandardCharsets.US_ASCII);
+            return switch (text) {
+                case "+Inf", "Inf" -> Double.POSITIVE_INFINITY;
+                case "-Inf" -> Double.NEGATIVE_INFINITY;
+                case "NaN" -> Double.NaN;
+                default -> Double.parseDouble(text);
+            };
+        }
+        double result = scale == 0 ? mantissa : scale > 0 ? mantissa / Math.pow(10, scale) : mantissa * Math.pow(10, -scale);
+        return negative ? -result : result;
+    }
+
+    private static Map<String, String> labels(String text) {
+        Map<String, String> labels = new LinkedHashMap<>();
+        int i = 0;
+        while (i < text.length()) {
+            int equals = text.indexOf('=', i);
+            if (equals < 0) {
+                break;
+            }
+            String name = text.substring(i, equals).trim();
+            StringBuilder value = new StringBuilder();
+            int j = equals + 2;
+            for (; j < text.length() && text.charAt(j) != '"'; j++) {
+                char c = text.charAt(j);
+                if (c == '\\' && j + 1 < text.length()) {
+                    char next = text.charAt(++j);
+                    value.append(next == 'n' ? '\n' : next);
+                } else {
+                    value.append(c);
+                }
+            }
+            labels.put(name, value.toString());
+            i = j + 1;
+            while (i < text.length() && (text.charAt(i) == ',' || text.charAt(i) == ' ')) {
+                i++;
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * The series as printed, e.g. {@code millau_lb_status{service="app"}}, null when it never appeared.
+     */
+    static synchronized Series series(String key) {
+        return BY_KEY.get(key);
+    }
+
+    /**
+     * Series of a metric seen so far whose labels include the given name, value pairs.
+     */
+    static synchronized List<Series> named(String name, String... labels) {
+        List<Series> named = new ArrayList<>();
+        for (Series series : SERIES) {
+            if (series.name.equals(name) && matches(series, labels)) {
+                named.add(series);
+            }
+        }
+        return named;
+    }
+
+    boolean has(Series series) {
+        return series != null && series.id >> 6 < present.length && (present[series.id >> 6] & (1L << series.id)) != 0;
+    }
+
+    double value(Series series) {
+        return has(series) ? values[series.id] : Double.NaN;
+    }
+
+    /**
+     * Value of the series as printed, NaN when absent from this scrape.
+     */
+    double value(String key) {
+        return value(series(key));
+    }
+
+    /**
+     * Sum over the series of a metric whose labels include the given name, value pairs.
+     */
+    double sum(String name, String... labels) {
+        double[] sum = {0};
+        forEach((series, value) -> {
+            if (series.name.equals(name) && matches(series, labels)) {
+                sum[0] += value;
+            }
+        });
+        return sum[0];
+    }
+
+    /**
+     * Cumulative bucket counts of a histogram by upper bound, summed over the series whose labels include the given
+     * name, value pairs.
+     */
+    TreeMap<Double, Double> buckets(String histogram, String... labels) {
+        TreeMap<Double, Double> buckets = new TreeMap<>();
+        String name = histogram + "_bucket";
+        forEach((series, value) -> {
+            if (series.name.equals(name) && series.label("le") != null && matches(series, labels)) {
+                buckets.merge(bound(series), value, Double::sum);
+            }
+        });
+        return buckets;
+    }
+
+    // upper bound of a histogram bucket series
+    static double bound(Series bucket) {
+        String le = bucket.label("le");
+        return le.equals("+Inf") ? Double.POSITIVE_INFINITY : Double.parseDouble(le);
+    }
+
+    private static synchronized Series[] all() {
+        return SERIES.toArray(new Series[0]);
+    }
+
+    void forEach(SampleConsumer consumer) {
+        Series[] series = all();
+        for (int w = 0; w < present.length; w++) {
+            long word = present[w];
+            while (word != 0) {
+                int id = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                consumer.accept(series[id], values[id]);
+            }
+        }
+    }
+
+    /**
+     * This scrape minus an earlier one, per series present in this one. Counters that went down restarted,
+     * their increase is their new value. Series new since the earlier scrape count from zero.
+     */
+    Scrape delta(Scrape before) {
+        double[] delta = new double[values.length];
+        long[] mask = present.clone();
+        forEach((series, value) -> {
+            double previous = before.has(series) ? before.values[series.id] : 0;
+            delta[series.id] = series.monotonic() && value < previous ? value : value - previous;
+        });
+        return new Scrape(nanos, delta, mask);
+    }
+
+    private static boolean matches(Series series, String... labels) {
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (!labels[i + 1].equals(series.labels.get(labels[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,171 @@
+package perf;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scrapes a {@code /metrics} endpoint in the background while load runs and keeps every series in a
+ * {@link SeriesStore}. Samples are stamped with {@link System#nanoTime()} when the response arrived, the axis the
+ * clients record latencies on, so rates and quantiles can be computed over the same windows afterwards.
+ */
+final class Scraper implements AutoCloseable {
+    private final String url;
+    private final Duration interval;
+    private final SeriesStore store;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().name("scraper").factory());
+    private final AtomicLong scrapes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    // scrape and parse time in microseconds
+    private final Histogram duration = new Histogram();
+    // when the first scrape arrived, series first seen later were born during the run
+    private volatile long firstScrapeNanos = Long.MAX_VALUE;
+
+    Scraper(String url, Duration interval, long maxBytes) {
+        this.url = url;
+        this.interval = interval;
+        this.store = new SeriesStore(maxBytes);
+    }
+
+    Scraper start() {
+        scheduler.scheduleAtFixedRate(this::scrape, 0, interval.toNanos(), TimeUnit.NANOSECONDS);
+        return this;
+    }
+
+    // a scrape taking longer than the interval delays the next one, scrapes never overlap
+    private void scrape() {
+        long start = System.nanoTime();
+        try {
+            Scrape scrape = Scrape.get(url);
+            scrape.forEach((series, value) -> store.append(series.id, scrape.nanos, value));
+            if (scrapes.getAndIncrement() == 0) {
+                firstScrapeNanos = scrape.nanos;
+            }
+        } catch (Exception e) {
+            failures.incrementAndGet();
+        }
+        duration.record((System.nanoTime() - start) / 1_000);
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        scheduler.shutdown();
+        scheduler.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    SeriesStore store() {
+        return store;
+    }
+
+    long scrapes() {
+        return scrapes.get();
+    }
+
+    long failures() {
+        return failures.get();
+    }
+
+    Histogram duration() {
+        return duration;
+    }
+
+    /**
+     * Increase of a counter from one time to another, summed over the series matching the labels. Counters going down
+     * restarted. A series that first appeared after the scraper started counts from zero.
+     */
+    double increase(String name, long fromNanos, long toNanos, String... labels) {
+        double increase = 0;
+        for (Scrape.Series series : Scrape.named(name, labels)) {
+            increase += increase(series, fromNanos, toNanos);
+        }
+        return increase;
+    }
+
+    double increase(Scrape.Series series, long fromNanos, long toNanos) {
+        SeriesStore.Samples samples = store.samples(series.id, fromNanos, toNanos);
+        if (samples.size() == 0) {
+            return 0;
+        }
+        double[] values = samples.values();
+        double increase = 0;
+        long born = store.firstNanos(series.id);
+        if (samples.nanos()[0] >= fromNanos && born > firstScrapeNanos && born >= fromNanos) {
+            // born within the range
+            increase = values[0];
+        }
+        for (int i = 1; i < values.length; i++) {
+            double delta = values[i] - values[i - 1];
+            increase += delta < 0 ? values[i] : delta;
+        }
+        return increase;
+    }
+
+    // per second
+    double rate(String name, long fromNanos, long toNanos, String... labels) {
+        return increase(name, fromNanos, toNanos, labels) / ((toNanos - fromNanos) / 1_000_000_000.0);
+    }
+
+    /**
+     * Last value at or before the time, summed over the series matching the labels, NaN without samples.
+     */
+    double gauge(String name, long atNanos, String... labels) {
+        double sum = Double.NaN;
+        for (Scrape.Series series : Scrape.named(name, labels)) {
+            SeriesStore.Samples samples = store.samples(series.id, atNanos, atNanos);
+            if (samples.size() > 0) {
+                double value = samples.values()[samples.size() - 1];
+                sum = Double.isNaN(sum) ? value : sum + value;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Increase of each bucket of a histogram over the range, by upper bound, summed over the series matching the labels.
+     */
+    TreeMap<Double, Double> buckets(String histogram, long fromNanos, long toNanos, String... labels) {
+        TreeMap<Double, Double> buckets = new TreeMap<>();
+        List<Scrape.Series> series = Scrape.named(histogram + "_bucket", labels);
+        for (Scrape.Series bucket : series) {
+            if (bucket.label("le") != null) {
+                buckets.merge(Scrape.bound(bucket), increase(bucket, fromNanos, toNanos), Double::sum);
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * The q-quantile of a histogram over the range, interpolated within the bucket as Prometheus'
+     * {@code histogram_quantile} does. NaN without observations.
+     */
+    double quantile(double q, String histogram, long fromNanos, long toNanos, String... labels) {
+        return quantile(q, buckets(histogram, fromNanos, toNanos, labels));
+    }
+
+    static double quantile(double q, TreeMap<Double, Double> buckets) {
+        if (buckets.isEmpty() || buckets.lastEntry().getValue() <= 0) {
+            return Double.NaN;
+        }
+        double rank = q * buckets.lastEntry().getValue();
+        double lowerBound = 0;
+        double lowerCount = 0;
+        for (var bucket : buckets.entrySet()) {
+            if (bucket.getValue() >= rank) {
+                if (bucket.getKey() == Double.POSITIVE_INFINITY) {
+                    return lowerBound;
+                }
+                if (bucket.getValue() == lowerCount) {
+                    return bucket.getKey();
+                }
+                return lowerBound + (bucket.getKey() - lowerBound) * (rank - lowerCount) / (bucket.getValue() - lowerCount);
+            }
+            lowerBound = bucket.getKey();
+            lowerCount = bucket.getValue();
+        }
+        return lowerBound;
+    }
+}
@@ -0,0 +1,336 @@
+package perf;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * In-memory time series compressed as in Facebook's Gorilla: timestamps as delta-of-delta, values XOR'ed with the
+ * previous one, both in variable-length bit fields, in chunks of {@link #CHUNK} samples. Regular scrapes of a
+ * slowly changing series take a few bits per sample. Timestamps are kept in milliseconds since the store was created,
+ * read back on the {@link System#nanoTime()} axis. Beyond the byte budget the oldest sealed chunks are dropped.
+ */
+final class SeriesStore {
+    static final int CHUNK = 120;
+
+    record Samples(long[] nanos, double[] values) {
+        int size() {
+            return nanos.length;
+        }
+    }
+
+    private final long originNanos = System.nanoTime();
+    private final long maxBytes;
+    private Line[] lines = new Line[256];
+    // sealed chunks in the order they were sealed, the first is the oldest
+    private final ArrayDeque<Chunk> sealed = new ArrayDeque<>();
+    private long bytes;
+    private long samples;
+    private long evicted;
+
+    SeriesStore(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    private static final class Line {
+        final ArrayDeque<Chunk> sealed = new ArrayDeque<>();
+        final long firstNanos;
+        Chunk head;
+
+        Line(long firstNanos) {
+            this.firstNanos = firstNanos;
+        }
+    }
+
+    synchronized void append(int series, long nanos, double value) {
+        if (series >= lines.length) {
+            lines = Arrays.copyOf(lines, Math.max(lines.length * 2, series + 1));
+        }
+        Line line = lines[series];
+        if (line == null) {
+            line = lines[series] = new Line(nanos);
+        }
+        if (line.head == null) {
+            line.head = new Chunk(line);
+        }
+        long before = line.head.bytes();
+        line.head.append(Math.max(0, (nanos - originNanos) / 1_000_000), value);
+        bytes += line.head.bytes() - before;
+        samples++;
+        if (line.head.count == CHUNK) {
+            Chunk chunk = line.head;
+            bytes -= chunk.bytes();
+            chunk.trim();
+            bytes += chunk.bytes();
+            line.sealed.add(chunk);
+            sealed.add(chunk);
+            line.head = null;
+        }
+        while (bytes > maxBytes && !sealed.isEmpty()) {
+            Chunk oldest = sealed.removeFirst();
+            oldest.line.sealed.removeFirst();
+            bytes -= oldest.bytes();
+            evicted += oldest.count;
+        }
+    }
+
+    /**
+     * Samples of the series from {@code fromNanos} to {@code toNanos}, inclusive, preceded by the last sample before
+     * the range if any, so increases over the range can be computed.
+     */
+    synchronized Samples samples(int series, long fromNanos, long toNanos) {
+        Decoded decoded = new Decoded();
+        Line line = series < lines.length ? lines[series] : null;
+        if (line != null) {
+            long from = (fromNanos - originNanos) / 1_000_000;
+            long to = (toNanos - originNanos) / 1_000_000;
+            for (Chunk chunk : line.sealed) {
+                if (chunk.firstMillis > to) {
+                    break;
+                }
+                chunk.read(from, to, decoded);
+            }
+            if (line.head != null && line.head.count > 0 && line.head.firstMillis <= to) {
+                line.head.read(from, to, decoded);
+            }
+        }
+        return decoded.samples(originNanos);
+    }
+
+    // when the series was first appended, Long.MIN_VALUE if never
+    synchronized long firstNanos(int series) {
+        Line line = series < lines.length ? lines[series] : null;
+        return line == null ? Long.MIN_VALUE : line.firstNanos;
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    synchronized long samples() {
+        return samples;
+    }
+
+    // samples dropped with the oldest chunks to stay within the byte budget
+    synchronized long evicted() {
+        return evicted;
+    }
+
+    // samples read back, in milliseconds since the origin
+    private static final class Decoded {
+        long[] times = new long[CHUNK];
+        double[] values = new double[CHUNK];
+        int n;
+        long beforeTime = Long.MIN_VALUE;
+        double beforeValue;
+
+        void before(long millis, double value) {
+            beforeTime = millis;
+            beforeValue = value;
+        }
+
+        void add(long millis, double value) {
+            if (n == times.length) {
+                times = Arrays.copyOf(times, n * 2);
+                values = Arrays.copyOf(values, n * 2);
+            }
+            times[n] = millis;
+            values[n++] = value;
+        }
+
+        Samples samples(long originNanos) {
+            int offset = beforeTime == Long.MIN_VALUE ? 0 : 1;
+            long[] nanos = new long[n + offset];
+            double[] result = new double[n + offset];
+            if (offset == 1) {
+                nanos[0] = originNanos + beforeTime * 1_000_000;
+                result[0] = beforeValue;
+            }
+            for (int i = 0; i < n; i++) {
+                nanos[i + offset] = originNanos + times[i] * 1_000_000;
+                result[i + offset] = values[i];
+            }
+            return new Samples(nanos, result);
+        }
+    }
+
+    /**
+     * Appends bit fields to a growing long array, reads them back in order.
+     */
+    private static final class Chunk {
+        final Line line;
+        long[] words = new long[4];
+        int bits;
+        int count;
+        long firstMillis;
+        long lastMillis;
+        // encoder state
+        private long previousDelta;
+        private long previousValue;
+        private int leading = Integer.MAX_VALUE;
+        private int trailing;
+
+        Chunk(Line line) {
+            this.line = line;
+        }
+
+        long bytes() {
+            return 8L * words.length + 64;
+        }
+
+        void trim() {
+            words = Arrays.copyOf(words, (bits + 63) >>> 6);
+        }
+
+        void append(long millis, double value) {
+            long valueBits = Double.doubleToRawLongBits(value);
+            if (count == 0) {
+                write(millis, 64);
+                write(valueBits, 64);
+                firstMillis = millis;
+            } else {
+                long delta = millis - lastMillis;
+                long dod = delta - previousDelta;
+                if (dod == 0) {
+                    write(0, 1);
+                } else if (fits(dod, 7)) {
+                    write(0b10, 2);
+                    write(dod, 7);
+                } else if (fits(dod, 9)) {
+                    write(0b110, 3);
+                    write(dod, 9);
+                } else if (fits(dod, 12)) {
+                    write(0b1110, 4);
+                    write(dod, 12);
+                } else {
+                    write(0b1111, 4);
+                    write(dod, 64);
+                }
+                previousDelta = delta;
+
+                long xor = valueBits ^ previousValue;
+                if (xor == 0) {
+                    write(0, 1);
+                } else {
+                    int lead = Math.min(31, Long.numberOfLeadingZeros(xor));
+                    int trail = Long.numberOfTrailingZeros(xor);
+                    if (lead >= leading && trail >= trailing) {
+                        // fits the previous window
+                        write(0b10, 2);
+                        write(xor >>> trailing, 64 - leading - trailing);
+                    } else {
+                        write(0b11, 2);
+                        write(lead, 5);
+                        int length = 64 - lead - trail;
+                        // 64 significant bits are stored as 0
+                        write(length & 63, 6);
+                        write(xor >>> trail, length);
+                        leading = lead;
+                        trailing = trail;
+                    }
+                }
+            }
+            lastMillis = millis;
+            previousValue = valueBits;
+            count++;
+        }
+
+        // decodes the samples up to the end of the range, a chunk ending before it is not decoded
+        void read(long from, long to, Decoded decoded) {
+            if (lastMillis < from) {
+                decoded.before(lastMillis, Double.longBitsToDouble(previousValue));
+                return;
+            }
+            int[] position = {0};
+            long millis = 0;
+            long delta = 0;
+            long valueBits = 0;
+            int lead = 0;
+            int trail = 0;
+            for (int i = 0; i < count; i++) {
+                if (i == 0) {
+                    millis = read(position, 64);
+                    valueBits = read(position, 64);
+                } else {
+                    long dod;
+                    if (read(position, 1) == 0) {
+                        dod = 0;
+                    } else if (read(position, 1) == 0) {
+                        dod = signed(read(position, 7), 7);
+                    } else if (read(position, 1) == 0) {
+                        dod = signed(read(position, 9), 9);
+                    } else if (read(position, 1) == 0) {
+                        dod = signed(read(position, 12), 12);
+                    } else {
+                        dod = read(position, 64);
+                    }
+                    delta += dod;
+                    millis += delta;
+                    if (read(position, 1) == 1) {
+                        if (read(position, 1) == 1) {
+                            lead = (int) read(position, 5);
+                            int length = (int) read(position, 6);
+                            if (length == 0) {
+                                length = 64;
+                            }
+                            trail = 64 - lead - length;
+                        }
+                        valueBits ^= read(position, 64 - lead - trail) << trail;
+                    }
+                }
+                if (millis > to) {
+                    return;
+                }
+                if (millis < from) {
+                    decoded.before(millis, Double.longBitsToDouble(valueBits));
+                } else {
+                    decoded.add(millis, Double.longBitsToDouble(valueBits));
+                }
+            }
+        }
+
+        private static boolean fits(long value, int bits) {
+            return value >= -(1L << (bits - 1)) && value < (1L << (bits - 1));
+        }
+
+        private static long signed(long value, int bits) {
+            return (value << (64 - bits)) >> (64 - bits);
+        }
+
+        private void write(long value, int length) {
+            if (length == 0) {
+                return;
+            }
+            long masked = length == 64 ? value : value & ((1L << length) - 1);
+            if (bits + length > 64L * words.length) {
+                words = Arrays.copyOf(words, words.length * 2);
+            }
+            int index = bits >>> 6;
+            int offset = bits & 63;
+            int free = 64 - offset;
+            if (length <= free) {
+                words[index] |= masked << (free - length);
+            } else {
+                words[index] |= masked >>> (length - free);
+                words[index + 1] |= masked << (64 - (length - free));
+            }
+            bits += length;
+        }
+
+        private long read(int[] position, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            int index = position[0] >>> 6;
+            int offset = position[0] & 63;
+            int free = 64 - offset;
+            long result;
+            if (length <= free) {
+                result = words[index] >>> (free - length);
+            } else {
+                result = (words[index] << (length - free)) | (words[index + 1] >>> (64 - (length - free)));
+            }
+            position[0] += length;
+            return length == 64 ? result : result & ((1L << length) - 1);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package perf;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests whether one benchmark result differs from another beyond noise. Mann-Whitney U makes no assumption on the
+ * shape of latency distributions, ties (values in the same {@link Histogram} bucket) get their average rank and the
+ * p-value comes from the normal approximation with tie correction, sound for the sample sizes benchmarks produce.
+ * Confidence intervals come from bootstrapping whole trials, so the drift between runs is part of the interval.
+ */
+final class Statistics {
+
+    private Statistics() {
+    }
+
+    /**
+     * One-sided p-value of the hypothesis that values of {@code a} tend to be greater than those of {@code b}.
+     */
+    static double greater(Histogram a, Histogram b) {
+        long[] countsA = a.counts();
+        long[] countsB = b.counts();
+        double rankSum = 0;
+        double ties = 0;
+        long seen = 0;
+        for (int i = 0; i < Histogram.BUCKETS; i++) {
+            long tied = countsA[i] + countsB[i];
+            if (tied == 0) {
+                continue;
+            }
+            rankSum += countsA[i] * (seen + (tied + 1) / 2.0);
+            ties += (double) tied * tied * tied - tied;
+            seen += tied;
+        }
+        return p(rankSum, ties, a.count(), b.count());
+    }
+
+    static double greater(double[] a, double[] b) {
+        int n = a.length + b.length;
+        double[][] values = new double[n][];
+        for (int i = 0; i < a.length; i++) {
+            values[i] = new double[]{a[i], 1};
+        }
+        for (int i = 0; i < b.length; i++) {
+            values[a.length + i] = new double[]{b[i], 0};
+        }
+        Arrays.sort(values, (x, y) -> Double.compare(x[0], y[0]));
+        double rankSum = 0;
+        double ties = 0;
+        for (int i = 0; i < n; ) {
+            int j = i;
+            double fromA = 0;
+            while (j < n && values[j][0] == values[i][0]) {
+                fromA += values[j][1];
+                j++;
+            }
+            int tied = j - i;
+            rankSum += fromA * (i + (tied + 1) / 2.0);
+            ties += (double) tied * tied * tied - tied;
+            i = j;
+        }
+        return p(rankSum, ties, a.length, b.length);
+    }
+
+    // two-sided p-value of the hypothesis that the distributions differ
+    static double different(Histogram a, Histogram b) {
+        return Math.min(1, 2 * Math.min(greater(a, b), greater(b, a)));
+    }
+
+    /**
+     * The percentile of the pooled trials with the bounds of its percentile-bootstrap confidence interval, resampling
+     * trials with replacement: {estimate, low, high}.
+     */
+    static double[] bootstrap(List<Histogram> trials, double percentile, double confidence, int resamples, Random random) {
+        double[] replicates = new double[resamples];
+        for (int r = 0; r < resamples; r++) {
+            replicates[r] = resample(trials, random).percentile(percentile);
+        }
+        return interval(pool(trials).percentile(percentile), replicates, confidence);
+    }
+
+    /**
+     * The difference of the percentile between the pooled trials of {@code a} and of {@code b}, with the bounds of its
+     * confidence interval, both sides resampled independently: {estimate, low, high}.
+     */
+    static double[] bootstrapDifference(List<Histogram> a, List<Histogram> b, double percentile, double confidence, int resamples, Random random) {
+        double[] replicates = new double[resamples];
+        for (int r = 0; r < resamples; r++) {
+            replicates[r] = resample(a, random).percentile(percentile) - resample(b, random).percentile(percentile);
+        }
+        return interval(pool(a).percentile(percentile) - pool(b).percentile(percentile), replicates, confidence);
+    }
+
+    static Histogram pool(List<Histogram> trials) {
+        Histogram pooled = new Histogram();
+        trials.forEach(pooled::add);
+        return pooled;
+    }
+
+    private static Histogram resample(List<Histogram> trials, Random random) {
+        Histogram pooled = new Histogram();
+        for (int i = 0; i < trials.size(); i++) {
+            pooled.add(trials.get(random.nextInt(trials.size())));
+        }
+        return pooled;
+    }
+
+    private static double[] interval(double estimate, double[] replicates, double confidence) {
+        Arrays.sort(replicates);
+        double tail = (1 - confidence) / 2;
+        int low = (int) Math.floor(tail * (replicates.length - 1));
+        int high = (int) Math.ceil((1 - tail) * (replicates.length - 1));
+        return new double[]{estimate, replicates[low], replicates[high]};
+    }
+
+    private static double p(double rankSum, double ties, long n1, long n2) {
+        if (n1 == 0 || n2 == 0) {
+            return 1;
+        }
+        double n = n1 + n2;
+        double u = rankSum - n1 * (n1 + 1) / 2.0;
+        double mean = n1 * (double) n2 / 2;
+        double variance = n1 * (double) n2 / 12 * ((n + 1) - ties / (n * (n - 1)));
+        if (variance <= 0) {
+            // all values tied
+            return 1;
+        }
+        // continuity correction
+        double z = (u - mean - 0.5) / Math.sqrt(variance);
+        return 1 - normal(z);
+    }
+
+    // standard normal cumulative distribution, Abramowitz and Stegun 7.1.26, error below 1.5e-7
+    static double normal(double z) {
+        double x = Math.abs(z) / Math.sqrt(2);
+        double t = 1 / (1 + 0.3275911 * x);
+        double erf = 1 - t * (0.254829592 + t * (-0.284496736 + t * (1.421413741 + t * (-1.453152027 + t * 1.061405429)))) * Math.exp(-x * x);
+        return z >= 0 ? (1 + erf) / 2 : (1 - erf) / 2;
+    }
+}
@@ -0,0 +1,204 @@
+package perf;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Replaces the service certificate by updating the {@code millau.cert} and {@code millau.key} labels
+ * while HTTPS clients keep opening new connections.
+ */
+@SpringBootTest
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class TLSRotationSwarmTest {
+    @Value("${tls.rotation.duration:30}")
+    private int durationSeconds;
+    @Value("${tls.rotation.clients:8}")
+    private int clients;
+
+    static final String STACK_NAME = "tls";
+    static final String SERVICE = STACK_NAME + "_echo";
+    static final String HOST = "rotate.localhost";
+    static final String APP_ENDPOINT = "/rest/echo";
+    static final int PROXY_PORT = 8443;
+
+    private record Connection(long nanos, BigInteger serial, long latencyMicro, String error) {
+    }
+
+    private Certificates.Issued authority;
+    private SSLContext sslContext;
+
+    @BeforeAll
+    void setup() throws Exception {
+        authority = Certificates.authority("Millau Test CA");
+        sslContext = TLSSharingTest.sslContext(null, null, authority.certificate());
+        deployStack();
+        Certificates.Issued initial = Certificates.leaf(authority, HOST, HOST);
+        setCertificate(initial);
+        awaitCertificate(initial.certificate().getSerialNumber());
+    }
+
+    @AfterAll
+    void tearDown() throws Exception {
+        removeStack();
+    }
+
+    @Test
+    void rotate() throws Exception {
+        Certificates.Issued rotated = Certificates.leaf(authority, HOST, HOST);
+        BigInteger newSerial = rotated.certificate().getSerialNumber();
+
+        Queue<Connection> connections = new ConcurrentLinkedQueue<>();
+        long start = System.nanoTime();
+        long deadline = start + durationSeconds * 1_000_000_000L;
+        long rotationStart;
+        long rotationEnd;
+        List<Future<?>> futures = new ArrayList<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(clients)) {
+            for (int i = 0; i < clients; i++) {
+                futures.add(executor.submit(() -> {
+                    while (System.nanoTime() < deadline) {
+                        connections.add(connect());
+                    }
+                    return null;
+                }));
+            }
+            Thread.sleep(durationSeconds * 1_000L / 3);
+            rotationStart = System.nanoTime();
+            setCertificate(rotated);
+            rotationEnd = System.nanoTime();
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        Histogram before = new Histogram();
+        Histogram after = new Histogram();
+        long failures = 0;
+        long firstNew = Long.MAX_VALUE;
+        long lastOld = rotationStart;
+        for (Connection connection : connections) {
+            if (connection.error() != null) {
+                failures++;
+                System.out.println("Failed connection at " + (connection.nanos() - start) / 1_000_000 + " ms: " + connection.error());
+                continue;
+            }
+            (connection.nanos() < rotationStart ? before : after).record(connection.latencyMicro());
+            if (connection.serial().equals(newSerial)) {
+                firstNew = Math.min(firstNew, connection.nanos());
+            } else if (connection.nanos() > rotationStart) {
+                lastOld = Math.max(lastOld, connection.nanos());
+            }
+        }
+
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("### TLS certificate rotation under load: %s%n%n", Upstream.PROXY_IMAGE));
+        result.append(String.format("%d clients, new connection per request, %d s, rotation at %d ms (label update took %.2f ms)%n%n",
+                clients, durationSeconds, (rotationStart - start) / 1_000_000, (rotationEnd - rotationStart) / 1e6));
+        result.append("| Metric                                 | Value         |\n");
+        result.append("|----------------------------------------|---------------|\n");
+        result.append(String.format("| Connections                            | %d            |%n", connections.size()));
+        result.append(String.format("| Failed handshakes or requests          | %d            |%n", failures));
+        result.append(String.format("| Reconnect p99 before rotation          | %.2f ms       |%n", before.percentile(99) / 1_000.0));
+        result.append(String.format("| Reconnect p99 after rotation           | %.2f ms       |%n", after.percentile(99) / 1_000.0));
+        result.append(String.format("| Longest reconnect after rotation       | %.2f ms       |%n", after.max() / 1_000.0));
+        result.append(String.format("| Rotation to first new certificate      | %.2f ms       |%n", (firstNew - rotationStart) / 1e6));
+        result.append(String.format("| Rotation to last old certificate       | %.2f ms       |%n", (lastOld - rotationStart) / 1e6));
+        System.out.println(result);
+
+        assertEquals(0, failures);
+        assertTrue(firstNew < deadline, "new certificate was never presented");
+    }
+
+    // a new connection per request, so every request observes the certificate currently selected by the proxy
+    private Connection connect() {
+        long start = System.nanoTime();
+        try (SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket("localhost", PROXY_PORT)) {
+            SSLParameters parameters = socket.getSSLParameters();
+            parameters.setServerNames(List.of(new SNIHostName(HOST)));
+            socket.setSSLParameters(parameters);
+            socket.startHandshake();
+            BigInteger serial = ((X509Certificate) socket.getSession().getPeerCertificates()[0]).getSerialNumber();
+            socket.getSession().invalidate();
+
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + APP_ENDPOINT + " HTTP/1.1\r\nHost: " + HOST + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            String status = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+            long end = System.nanoTime();
+            if (status == null || !status.startsWith("HTTP/1.1 200")) {
+                return new Connection(end, serial, (end - start) / 1_000, "status " + status);
+            }
+            return new Connection(end, serial, (end - start) / 1_000, null);
+        } catch (Exception e) {
+            return new Connection(System.nanoTime(), null, (System.nanoTime() - start) / 1_000, String.valueOf(e));
+        }
+    }
+
+    private void awaitCertificate(BigInteger serial) throws Exception {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (System.currentTimeMillis() < deadline) {
+            Connection connection = connect();
+            if (connection.error() == null && serial.equals(connection.serial())) {
+                return;
+            }
+            Thread.sleep(500);
+        }
+        throw new AssertionError("Certificate " + serial + " was not presented");
+    }
+
+    private void setCertificate(Certificates.Issued cert) throws Exception {
+        ProcessBuilder pb = new ProcessBuilder("docker", "service", "update",
+                "--label-add", "millau.cert=" + cert.certLabel(),
+                "--label-add", "millau.key=" + cert.keyLabel(),
+                SERVICE);
+        pb.inheritIO();
+        Process process = pb.start();
+        process.waitFor();
+    }
+
+    private void deployStack() throws Exception {
+        URL resource = getClass().getClassLoader().getResource("docker-compose." + STACK_NAME + ".yml");
+        Path path = Paths.get(resource.getPath());
+        ProcessBuilder pb = new ProcessBuilder("docker", "stack", "deploy", "-c", path.toString(), STACK_NAME);
+        pb.inheritIO();
+        Process p = pb.start();
+        p.waitFor();
+        Thread.sleep(10_000);
+    }
+
+    private void removeStack() throws Exception {
+        ProcessBuilder pb = new ProcessBuilder("docker", "stack", "rm", STACK_NAME);
+        pb.inheritIO();
+        Process p = pb.start();
+        p.waitFor();
+        Thread.sleep(5_000);
+    }
+}
@@ -0,0 +1,229 @@
+package perf;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.testcontainers.containers.BindMode;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.Network;
+import org.testcontainers.containers.wait.strategy.Wait;
+import org.testcontainers.utility.DockerImageName;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Registers many services, each with its own certificate, and measures TLS handshake latency by certificate count.
+ */
+@SpringBootTest
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class TLSScaleTest {
+    @Value("${tls.scale.services:200}")
+    private int services;
+    @Value("${tls.scale.steps:4}")
+    private int steps;
+    @Value("${tls.scale.handshakes:3}")
+    private int handshakesPerName;
+    // tolerated growth of the median handshake from the first to the last step
+    @Value("${tls.scale.degradation:2.0}")
+    private double degradation;
+
+    // app
+    static final int APP_PORT = 9000;
+    static final String DOMAIN = "localhost";
+    // every n-th service gets a wildcard certificate
+    static final int WILDCARD_EVERY = 10;
+
+    // proxy
+    static final int PROXY_PORT = 8443;
+
+    // Docker
+    private final List<GenericContainer<?>> appContainers = new ArrayList<>();
+    private GenericContainer<?> proxyContainer;
+    private static final Network NETWORK = Network.newNetwork();
+
+    private Certificates.Issued authority;
+    private SSLContext sslContext;
+    // SNI names sent by the client, by service index
+    private final List<String> serverNames = new ArrayList<>();
+
+    @BeforeAll
+    void setup() throws Exception {
+        authority = Certificates.authority("Millau Test CA");
+
+        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("ca", authority.certificate());
+        TrustManagerFactory trustManager = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManager.init(trustStore);
+        sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, trustManager.getTrustManagers(), null);
+
+        proxyContainer = new GenericContainer<>(DockerImageName.parse(proxyImage()))
+                .withExposedPorts(PROXY_PORT)
+                .withNetwork(NETWORK)
+                .withEnv("HTTPS", ":" + PROXY_PORT)
+                .withFileSystemBind("/var/run/docker.sock", "/var/run/docker.sock", BindMode.READ_ONLY)
+                .waitingFor(Wait.forListeningPort().withStartupTimeout(Duration.ofSeconds(5)));
+        proxyContainer.start();
+    }
+
+    @AfterAll
+    void tearDown() throws Exception {
+        if (proxyContainer != null) {
+            proxyContainer.stop();
+        }
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            appContainers.forEach(container -> executor.submit(container::stop));
+        }
+    }
+
+    String proxyImage() {
+        return "codelev/millau:test";
+    }
+
+    // one JVM per service would not scale to thousands of services
+    String appImage() {
+        return "hashicorp/http-echo:latest";
+    }
+
+    @Test
+    void handshakes() throws Exception {
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("### TLS handshakes by certificate count: %s%n%n", proxyImage()));
+        result.append("| Certificates | Handshakes | Median (ms) | p99 (ms) | Longest (ms) | Proxy memory (MB) |\n");
+        result.append("|--------------|------------|-------------|----------|--------------|-------------------|\n");
+
+        long firstMedian = 0;
+        long lastMedian = 0;
+        for (int step = 1; step <= steps; step++) {
+            int target = services * step / steps;
+            register(target);
+
+            Histogram latency = new Histogram();
+            for (int round = 0; round < handshakesPerName; round++) {
+                for (int i = 0; i < serverNames.size(); i++) {
+                    latency.record(handshake(i));
+                }
+            }
+            long memory = ContainerStats.sample(proxyContainer).memoryBytes();
+            result.append(String.format("| %-12d | %-10d | %-11.2f | %-8.2f | %-12.2f | %-17.1f |%n",
+                    serverNames.size(), latency.count(),
+                    latency.percentile(50) / 1_000.0, latency.percentile(99) / 1_000.0, latency.max() / 1_000.0,
+                    memory / 1_000_000.0));
+            if (step == 1) {
+                firstMedian = latency.percentile(50);
+            }
+            lastMedian = latency.percentile(50);
+        }
+        System.out.println(result);
+
+        assertTrue(lastMedian <= firstMedian * degradation,
+                String.format("median handshake grew from %d us to %d us", firstMedian, lastMedian));
+    }
+
+    // starts services up to the given count and waits until the proxy presents the last certificate
+    private void register(int target) throws Exception {
+        List<Future<?>> starts = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = serverNames.size(); i < target; i++) {
+                String name = "svc-" + i;
+                String host = name + "." + DOMAIN;
+                Certificates.Issued cert;
+                if (i % WILDCARD_EVERY == 0) {
+                    cert = Certificates.leaf(authority, "*." + host, "*." + host);
+                    serverNames.add("www." + host);
+                } else {
+                    cert = Certificates.leaf(authority, host, host);
+                    serverNames.add(host);
+                }
+                GenericContainer<?> container = new GenericContainer<>(DockerImageName.parse(appImage()))
+                        .withCommand("-listen=:" + APP_PORT, "-text=" + name)
+                        .withNetwork(NETWORK)
+                        .withNetworkAliases(name)
+                        .withLabels(Map.of(
+                                "com.docker.compose.service", name,
+                                "millau.enabled", "true",
+                                "millau.port", "" + APP_PORT,
+                                "millau.hosts", host,
+                                "millau.cert", cert.certLabel(),
+                                "millau.key", cert.keyLabel()
+                        ));
+                appContainers.add(container);
+                starts.add(executor.submit(container::start));
+            }
+        }
+        for (Future<?> start : starts) {
+            start.get();
+        }
+
+        long deadline = System.currentTimeMillis() + 60_000;
+        int last = serverNames.size() - 1;
+        while (true) {
+            try {
+                handshake(last);
+                return;
+            } catch (AssertionError | Exception e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(500);
+            }
+        }
+    }
+
+    // full handshake duration in microseconds, verifying the certificate selected for the SNI name
+    private long handshake(int service) throws Exception {
+        String serverName = serverNames.get(service);
+        long start = System.nanoTime();
+        try (SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket(proxyContainer.getHost(), proxyContainer.getMappedPort(PROXY_PORT))) {
+            SSLParameters parameters = socket.getSSLParameters();
+            parameters.setServerNames(List.of(new SNIHostName(serverName)));
+            socket.setSSLParameters(parameters);
+            socket.startHandshake();
+            long end = System.nanoTime();
+
+            X509Certificate presented = (X509Certificate) socket.getSession().getPeerCertificates()[0];
+            // never resume, every measurement is a full handshake
+            socket.getSession().invalidate();
+            assertEquals(expectedName(service), dnsName(presented), serverName);
+            return (end - start) / 1_000;
+        }
+    }
+
+    private String expectedName(int service) {
+        String host = "svc-" + service + "." + DOMAIN;
+        return service % WILDCARD_EVERY == 0 ? "*." + host : host;
+    }
+
+    private static String dnsName(X509Certificate cert) throws Exception {
+        Collection<List<?>> names = cert.getSubjectAlternativeNames();
+        if (names == null) {
+            return null;
+        }
+        return names.stream()
+                .filter(name -> (Integer) name.get(0) == 2)
+                .map(name -> (String) name.get(1))
+                .findFirst()
+                .orElse(null);
+    }
+}
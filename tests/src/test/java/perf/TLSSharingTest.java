@@ -11,8 +11,10 @@ import org.testcontainers.containers.Network;
 import org.testcontainers.containers.wait.strategy.Wait;
 import org.testcontainers.utility.DockerImageName;
 
+import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -185,24 +187,36 @@ class TLSSharingTest {
                 .replaceAll("\\s+", "");
         PKCS8EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(Base64.getDecoder().decode(privateKeyPEM));
         PrivateKey privateKey = KeyFactory.getInstance("RSA").generatePrivate(keySpec);
+        return HttpClient.newBuilder()
+                .sslContext(sslContext(new X509Certificate[]{cert}, privateKey, cert))
+                .build();
+    }
+
+    // client certificate chain and key are optional, without them no client certificate is presented
+    static SSLContext sslContext(X509Certificate[] chain, PrivateKey privateKey, X509Certificate trusted) throws Exception {
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagers(chain, privateKey), trustManagers(trusted), null);
+        return sslContext;
+    }
 
-        // keystore
+    // no key, no client certificate
+    static KeyManager[] keyManagers(X509Certificate[] chain, PrivateKey privateKey) throws Exception {
         KeyStore keyStore = KeyStore.getInstance("PKCS12");
         keyStore.load(null, null);
-        keyStore.setKeyEntry("client", privateKey, null, new java.security.cert.Certificate[]{cert});
-        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
-        trustStore.load(null, null);
-        trustStore.setCertificateEntry("server", cert);
+        if (privateKey != null) {
+            keyStore.setKeyEntry("client", privateKey, null, chain);
+        }
         KeyManagerFactory keyManager = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
         keyManager.init(keyStore, null);
+        return keyManager.getKeyManagers();
+    }
+
+    static TrustManager[] trustManagers(X509Certificate trusted) throws Exception {
+        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("server", trusted);
         TrustManagerFactory trustManager = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
         trustManager.init(trustStore);
-        
-        // SSL
-        SSLContext sslContext = SSLContext.getInstance("TLS");
-        sslContext.init(keyManager.getKeyManagers(), trustManager.getTrustManagers(), null);
-        return HttpClient.newBuilder()
-                .sslContext(sslContext)
-                .build();
+        return trustManager.getTrustManagers();
     }
 }
@@ -4,6 +4,7 @@ import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
@@ -29,6 +30,11 @@ class UpdateMillauTest {
     static final String APP_ENDPOINT = "/rest/echo";
     static final int PROXY_PORT = 8080;
 
+    @Autowired
+    private ClientMetrics metrics;
+    @Autowired
+    private Report report;
+
     String url() {
         return String.format("http://localhost:%d%s", PROXY_PORT, APP_ENDPOINT);
     }
@@ -50,7 +56,8 @@ class UpdateMillauTest {
         ConcurrentHashMap<String, Integer> stats = new ConcurrentHashMap<>(2);
         RestTemplate client = new RestTemplate();
         do {
-            ResponseEntity<String> response = client.exchange(url(), HttpMethod.GET, null, String.class);
+            ResponseEntity<String> response = metrics.exchange(Upstream.PROXY_IMAGE, "Update Millau GET",
+                    () -> client.exchange(url(), HttpMethod.GET, null, String.class), this::getInstanceId);
             assertEquals(200, response.getStatusCode().value());
             assertNotNull(response.getBody());
             stats.compute(getInstanceId(response.getBody()), (k, v) -> v == null ? 1 : v + 1);
@@ -91,6 +98,7 @@ class UpdateMillauTest {
     }
 
     private void asyncUpdateStack() throws Exception {
+        report.event("Update Millau GET @ " + Upstream.PROXY_IMAGE, "update proxy");
         ProcessBuilder pb = new ProcessBuilder("docker", "service", "update", "--force", STACK_NAME + "_proxy");
         pb.start();
     }
@@ -0,0 +1,39 @@
+package perf;
+
+import org.testcontainers.images.builder.ImageFromDockerfile;
+
+import java.nio.file.Paths;
+
+/**
+ * Docker image of the in-repo echo upstream ({@link Main}), built from {@code target/classes} once per test run.
+ * It runs on the JDK alone, Spring is not on its classpath.
+ */
+final class Upstream {
+    static final String IMAGE = "codelev/echo-main:test";
+    // the proxy of the compose stacks in src/test/resources
+    static final String PROXY_IMAGE = "codelev/millau:test";
+    private static boolean built;
+
+    private Upstream() {
+    }
+
+    static synchronized String image() {
+        if (!built) {
+            try {
+                new ImageFromDockerfile(IMAGE, false)
+                        .withFileFromPath("classes", Paths.get("target/classes"))
+                        .withDockerfileFromBuilder(builder -> builder
+                                .from("eclipse-temurin:21-jre")
+                                .copy("classes", "/app")
+                                .expose(9000)
+                                .entryPoint("java", "-cp", "/app", "perf.Main")
+                                .build())
+                        .get();
+            } catch (Exception e) {
+                throw new IllegalStateException("Cannot build " + IMAGE, e);
+            }
+            built = true;
+        }
+        return IMAGE;
+    }
+}